@@ -1 +1,5 @@
-# no extra dependencies at this point.
\ No newline at end of file
+# JMH: only used by the benchmarks.
+JMH = [ "org.openjdk.jmh:jmh-core:jar:1.21",
+        "org.openjdk.jmh:jmh-generator-annprocess:jar:1.21",
+        "net.sf.jopt-simple:jopt-simple:jar:4.6",
+        "org.apache.commons:commons-math3:jar:3.2" ]
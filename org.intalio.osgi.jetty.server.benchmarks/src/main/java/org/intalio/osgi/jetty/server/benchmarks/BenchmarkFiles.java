@@ -0,0 +1,133 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Locates the sample bundles of the repository and generates the files
+ * the benchmarks need.
+ *
+ * @author hmalphettes
+ */
+public class BenchmarkFiles {
+
+	/** System property: the root of the repository. Defaults to the parent folder. */
+	public static final String SYS_PROP_BASEDIR = "benchmarks.basedir";
+
+	/**
+	 * @return The root of the repository where the sample bundles are.
+	 */
+	public static File getBaseDir() {
+		File basedir = new File(System.getProperty(SYS_PROP_BASEDIR, ".."));
+		if (!new File(basedir, "org.intalio.osgi.jetty.server").isDirectory()) {
+			throw new IllegalStateException("Unable to locate the repository in "
+					+ basedir.getAbsolutePath() + ": set -D" + SYS_PROP_BASEDIR);
+		}
+		return basedir;
+	}
+
+	/**
+	 * @param symbolicName
+	 * @return The folder of one of the bundles of the repository.
+	 */
+	public static File getBundleDir(String symbolicName) {
+		return new File(getBaseDir(), symbolicName);
+	}
+
+	/**
+	 * @param prefix
+	 * @return A new temporary folder; deleted when the jvm exits.
+	 */
+	public static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		return dir;
+	}
+
+	/**
+	 * @param jar The jar to create.
+	 * @param manifest Can be null.
+	 * @param entries The entries; each contains its own name.
+	 */
+	public static File createJar(File jar, Manifest manifest, String... entries) throws IOException {
+		jar.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(jar);
+		JarOutputStream jarOut = manifest != null
+				? new JarOutputStream(out, manifest) : new JarOutputStream(out);
+		try {
+			for (String entry : entries) {
+				jarOut.putNextEntry(new ZipEntry(entry));
+				jarOut.write(entry.getBytes("UTF-8"));
+				jarOut.closeEntry();
+			}
+		} finally {
+			jarOut.close();
+		}
+		jar.deleteOnExit();
+		return jar;
+	}
+
+	/**
+	 * Deletes a folder and its content.
+	 * @param f
+	 */
+	public static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+
+	/**
+	 * Copies a file or a folder and its content.
+	 * @param from
+	 * @param to
+	 */
+	public static void copy(File from, File to) throws IOException {
+		if (from.isDirectory()) {
+			to.mkdirs();
+			for (File child : from.listFiles()) {
+				copy(child, new File(to, child.getName()));
+			}
+			return;
+		}
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buf = new byte[8192];
+				int read;
+				while ((read = in.read(buf)) != -1) {
+					out.write(buf, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
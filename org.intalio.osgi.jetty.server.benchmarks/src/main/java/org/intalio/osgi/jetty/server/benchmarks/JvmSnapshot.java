@@ -0,0 +1,101 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Snapshot of the garbage collections and of the bytes allocated by the jvm.
+ * <p>
+ * The allocated bytes are the sum over the live threads: it requires the
+ * com.sun.management extension of the ThreadMXBean; -1 when it is not available.
+ * The threads that died since the previous snapshot are not accounted for.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class JvmSnapshot {
+
+	private static final Method GET_ALLOCATED_BYTES = allocatedBytesMethod();
+
+	private final long _time = System.nanoTime();
+	private final long _gcCount;
+	private final long _gcTime;
+	private final long _allocatedBytes;
+
+	public JvmSnapshot() {
+		long count = 0;
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		_gcCount = count;
+		_gcTime = time;
+		_allocatedBytes = allocatedBytes();
+	}
+
+	/**
+	 * @param since
+	 * @return The json object of the gcs and of the allocation rate since the other snapshot.
+	 */
+	public String toJson(JvmSnapshot since) {
+		double seconds = (_time - since._time) / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"gcCount\":").append(_gcCount - since._gcCount);
+		sb.append(",\"gcTimeMs\":").append(_gcTime - since._gcTime);
+		if (_allocatedBytes >= 0 && since._allocatedBytes >= 0 && seconds > 0) {
+			sb.append(",\"allocatedBytes\":").append(_allocatedBytes - since._allocatedBytes);
+			sb.append(",\"allocationRateMBps\":").append(
+					Math.round((_allocatedBytes - since._allocatedBytes) / seconds / 10485.76) / 100.0);
+		} else {
+			sb.append(",\"allocatedBytes\":-1,\"allocationRateMBps\":-1");
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private static long allocatedBytes() {
+		if (GET_ALLOCATED_BYTES == null) {
+			return -1;
+		}
+		try {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			long[] allocated = (long[])GET_ALLOCATED_BYTES.invoke(threads,
+					(Object)threads.getAllThreadIds());
+			long sum = 0;
+			for (long a : allocated) {
+				if (a > 0) {
+					sum += a;
+				}
+			}
+			return sum;
+		} catch (Throwable t) {
+			return -1;
+		}
+	}
+
+	private static Method allocatedBytesMethod() {
+		try {
+			Class<?> sunThreads = Class.forName("com.sun.management.ThreadMXBean");
+			if (!sunThreads.isInstance(ManagementFactory.getThreadMXBean())) {
+				return null;
+			}
+			return sunThreads.getMethod("getThreadAllocatedBytes", long[].class);
+		} catch (Throwable t) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,227 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one url with GET requests on keep-alive connections.
+ * <ul>
+ * <li>closed loop: a fixed number of clients send a new request as soon as the previous
+ * one completed. Measures the throughput.</li>
+ * <li>open loop: the requests are sent at a fixed rate whatever the response times.
+ * The latency is measured from the time the request should have been sent so that
+ * a stalled server is not hidden by the clients waiting for it.</li>
+ * </ul>
+ *
+ * @author hmalphettes
+ */
+public class LoadGenerator {
+
+	/**
+	 * The outcome of one run.
+	 */
+	public static class Result {
+		private final String _mode;
+		private final String _url;
+		private final long _elapsedNanos;
+		private final long _errors;
+		/** microseconds; sorted. */
+		private final long[] _latencies;
+		private final String _jvm;
+
+		Result(String mode, String url, long elapsedNanos, long errors, Latencies latencies,
+				String jvm) {
+			_mode = mode;
+			_url = url;
+			_elapsedNanos = elapsedNanos;
+			_errors = errors;
+			_latencies = latencies.sorted();
+			_jvm = jvm;
+		}
+
+		public double getRequestsPerSecond() {
+			return _latencies.length / (_elapsedNanos / 1e9);
+		}
+
+		/**
+		 * @param percentile between 0 and 1.
+		 * @return in microseconds.
+		 */
+		public long getLatency(double percentile) {
+			if (_latencies.length == 0) {
+				return 0;
+			}
+			int rank = (int)Math.ceil(percentile * _latencies.length) - 1;
+			return _latencies[Math.min(Math.max(rank, 0), _latencies.length - 1)];
+		}
+
+		public String toJson() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"mode\":\"").append(_mode).append('"');
+			sb.append(",\"url\":\"").append(_url).append('"');
+			sb.append(",\"requests\":").append(_latencies.length);
+			sb.append(",\"errors\":").append(_errors);
+			sb.append(",\"durationMs\":").append(_elapsedNanos / 1000000);
+			sb.append(",\"requestsPerSecond\":").append(Math.round(getRequestsPerSecond() * 10) / 10.0);
+			sb.append(",\"latencyMicros\":{\"p50\":").append(getLatency(0.5));
+			sb.append(",\"p90\":").append(getLatency(0.9));
+			sb.append(",\"p99\":").append(getLatency(0.99));
+			sb.append(",\"p999\":").append(getLatency(0.999));
+			sb.append(",\"max\":").append(getLatency(1));
+			sb.append("},\"jvm\":").append(_jvm);
+			sb.append('}');
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The latencies recorded by the clients. Growable; guarded by itself.
+	 */
+	static class Latencies {
+		private long[] _values = new long[1024];
+		private int _size;
+		synchronized void add(long micros) {
+			if (_size == _values.length) {
+				_values = Arrays.copyOf(_values, _size * 2);
+			}
+			_values[_size++] = micros;
+		}
+		synchronized long[] sorted() {
+			long[] res = Arrays.copyOf(_values, _size);
+			Arrays.sort(res);
+			return res;
+		}
+	}
+
+	private final URL _url;
+
+	/**
+	 * @param url
+	 */
+	public LoadGenerator(URL url) {
+		_url = url;
+	}
+
+	/**
+	 * @param clients The number of concurrent clients.
+	 * @param durationMs
+	 * @return The result.
+	 */
+	public Result closedLoop(int clients, final long durationMs) throws InterruptedException {
+		final Latencies latencies = new Latencies();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(clients);
+		JvmSnapshot before = new JvmSnapshot();
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		for (int i = 0; i < clients; i++) {
+			Thread client = new Thread("closed-loop-" + i) {
+				public void run() {
+					try {
+						while (System.nanoTime() < end) {
+							long sent = System.nanoTime();
+							if (get()) {
+								latencies.add((System.nanoTime() - sent) / 1000);
+							} else {
+								errors.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		return new Result("closed", _url.toString(), elapsed, errors.get(), latencies,
+				new JvmSnapshot().toJson(before));
+	}
+
+	/**
+	 * @param ratePerSecond The number of requests sent per second.
+	 * @param maxConcurrency The number of connections available to send them.
+	 * @param durationMs
+	 * @return The result.
+	 */
+	public Result openLoop(int ratePerSecond, int maxConcurrency, long durationMs)
+	throws InterruptedException {
+		final Latencies latencies = new Latencies();
+		final AtomicLong errors = new AtomicLong();
+		ExecutorService clients = Executors.newFixedThreadPool(maxConcurrency);
+		JvmSnapshot before = new JvmSnapshot();
+		long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(ratePerSecond, 1);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+		for (long intended = start; intended < end; intended += interval) {
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final long scheduled = intended;
+			clients.execute(new Runnable() {
+				public void run() {
+					if (get()) {
+						latencies.add((System.nanoTime() - scheduled) / 1000);
+					} else {
+						errors.incrementAndGet();
+					}
+				}
+			});
+		}
+		clients.shutdown();
+		if (!clients.awaitTermination(Math.max(durationMs, 10000), TimeUnit.MILLISECONDS)) {
+			clients.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+		return new Result("open", _url.toString(), elapsed, errors.get(), latencies,
+				new JvmSnapshot().toJson(before));
+	}
+
+	/**
+	 * @return true if the response was a 2xx. The body is read so that the
+	 * connection is reused.
+	 */
+	boolean get() {
+		HttpURLConnection con = null;
+		try {
+			con = (HttpURLConnection)_url.openConnection();
+			int status = con.getResponseCode();
+			InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream();
+			if (in != null) {
+				byte[] buf = new byte[4096];
+				while (in.read(buf) != -1) {
+				}
+				in.close();
+			}
+			return status >= 200 && status < 300;
+		} catch (IOException e) {
+			if (con != null) {
+				con.disconnect();
+			}
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,411 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * Cold start of an embedded OSGi framework with the jetty bootstrap and N generated
+ * webapp bundles.
+ * <p>
+ * Each run happens in a new jvm: the framework is started with the bundles of the
+ * platform, the bootstrap and the generated bundles; the run is over when all the
+ * contexts are started. It reports the time it took, the peak heap, the number of
+ * classes loaded and the metaspace.
+ * </p>
+ * <p>
+ * The generated bundles are jars with a web folder. Half of them are webapps,
+ * the others are defined by a context file. Two ways to deploy them:
+ * <ul>
+ * <li>extender: the bundles carry the headers Jetty-WarFolderPath and Jetty-WarContextPath
+ * or Jetty-ContextFilePath.</li>
+ * <li>service: the bundles have no header; JettyBootstrapActivator.registerWebapplication
+ * and registerContext are called for each of them once they are started.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>benchmarks.startup.platform</code>: folder with the bundles jetty depends on
+ * (required).</li>
+ * <li><code>benchmarks.startup.server</code>: the jar of the jetty bootstrap bundle
+ * (required).</li>
+ * <li><code>benchmarks.startup.bundles</code>: the values of N. Defaults to 1,10,50,100,250,500.</li>
+ * <li><code>benchmarks.startup.mode</code>: extender, service or both. Defaults to both.</li>
+ * <li><code>benchmarks.startup.timeout</code>: seconds to wait for the contexts. Defaults to 600.</li>
+ * <li><code>benchmarks.startup.report</code>: file where the json is written. Defaults to stdout.</li>
+ * <li><code>benchmarks.startup.framework.factory</code>: the FrameworkFactory. Defaults
+ * to the one found on the classpath: felix or equinox.</li>
+ * </ul>
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class StartupBenchmark {
+
+	private static final String RUN = "run";
+	private static final String REQUEST_STATISTICS =
+		"org.intalio.osgi.jetty.server.management.RequestStatistics";
+	private static final String ACTIVATOR =
+		"org.intalio.osgi.jetty.server.JettyBootstrapActivator";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 3 && args[0].equals(RUN)) {
+			System.out.println(run(Integer.parseInt(args[1]), args[2]));
+			return;
+		}
+		List<String> modes = new ArrayList<String>();
+		String mode = System.getProperty("benchmarks.startup.mode", "both");
+		if (!mode.equals("service")) {
+			modes.add("extender");
+		}
+		if (!mode.equals("extender")) {
+			modes.add("service");
+		}
+		List<String> results = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(
+				System.getProperty("benchmarks.startup.bundles", "1,10,50,100,250,500"), ", ");
+		while (tokenizer.hasMoreTokens()) {
+			int n = Integer.parseInt(tokenizer.nextToken());
+			for (String m : modes) {
+				System.err.println("Starting " + n + " bundles through the " + m);
+				results.add(fork(n, m));
+			}
+		}
+		StringBuilder sb = new StringBuilder("{\"java\":\"");
+		sb.append(System.getProperty("java.version")).append("\",\"results\":[");
+		for (int i = 0; i < results.size(); i++) {
+			sb.append(i == 0 ? "\n  " : ",\n  ").append(results.get(i));
+		}
+		sb.append("\n]}");
+		String report = System.getProperty("benchmarks.startup.report");
+		if (report == null) {
+			System.out.println(sb);
+		} else {
+			FileOutputStream out = new FileOutputStream(report);
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Runs one measure in a new jvm with the same classpath and jvm arguments.
+	 * @return Its json.
+	 */
+	private static String fork(int bundles, String mode) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(StartupBenchmark.class.getName());
+		command.add(RUN);
+		command.add(String.valueOf(bundles));
+		command.add(mode);
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process process = pb.start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		String result = null;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("{")) {
+				result = line;
+			}
+		}
+		int exit = process.waitFor();
+		if (result == null) {
+			return "{\"bundles\":" + bundles + ",\"mode\":\"" + mode + "\",\"error\":\"exit " + exit + "\"}";
+		}
+		return result;
+	}
+
+	/**
+	 * Starts the framework with the bundles then waits for the contexts.
+	 * @return The json of the measure.
+	 */
+	static String run(int bundles, String mode) throws Exception {
+		File work = BenchmarkFiles.createTempDir("startup");
+		try {
+			boolean extender = mode.equals("extender");
+			List<File> generated = new ArrayList<File>();
+			Set<String> contextPaths = new HashSet<String>();
+			for (int i = 0; i < bundles; i++) {
+				generated.add(generateBundle(new File(work, "bundles"), i, extender));
+				contextPaths.add(contextPath(i));
+			}
+			System.setProperty("jetty.home", copyJettyHome(new File(work, "jettyhome")));
+			if (System.getProperty("jetty.port") == null) {
+				System.setProperty("jetty.port", "0");
+			}
+			resetPeakUsage();
+
+			long start = System.nanoTime();
+			Map<String,String> config = new HashMap<String,String>();
+			config.put("org.osgi.framework.storage", new File(work, "storage").getAbsolutePath());
+			config.put("org.osgi.framework.storage.clean", "onFirstInit");
+			config.put("osgi.compatibility.bootdelegation", "true");
+			Framework framework = newFrameworkFactory().newFramework(config);
+			framework.init();
+			BundleContext context = framework.getBundleContext();
+			List<Bundle> installed = new ArrayList<Bundle>();
+			for (File jar : getPlatform()) {
+				installed.add(context.installBundle(jar.toURI().toString()));
+			}
+			Bundle server = context.installBundle(new File(
+					getRequiredProperty("benchmarks.startup.server")).toURI().toString());
+			installed.add(server);
+			List<Bundle> webapps = new ArrayList<Bundle>();
+			for (File jar : generated) {
+				webapps.add(context.installBundle(jar.toURI().toString()));
+			}
+			installed.addAll(webapps);
+			framework.start();
+			for (Bundle b : installed) {
+				if (b.getHeaders().get("Fragment-Host") == null) {
+					b.start();
+				}
+			}
+			long frameworkStarted = System.nanoTime();
+			if (!extender) {
+				register(server, webapps);
+			}
+			int started = waitForContexts(context, contextPaths);
+			long end = System.nanoTime();
+
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"bundles\":").append(bundles);
+			sb.append(",\"mode\":\"").append(mode).append('"');
+			sb.append(",\"contextsStarted\":").append(started);
+			sb.append(",\"frameworkStartMs\":").append((frameworkStarted - start) / 1000000);
+			sb.append(",\"timeToAllContextsStartedMs\":").append((end - start) / 1000000);
+			sb.append(",\"peakHeapBytes\":").append(getPeakHeap());
+			sb.append(",\"loadedClasses\":").append(
+					ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+			sb.append(",\"metaspaceBytes\":").append(getMetaspace());
+			sb.append('}');
+			framework.stop();
+			framework.waitForStop(30000);
+			return sb.toString();
+		} finally {
+			BenchmarkFiles.delete(work);
+		}
+	}
+
+	/**
+	 * What the service path does: the bundles register a ContextHandler service.
+	 */
+	private static void register(Bundle server, List<Bundle> webapps) throws Exception {
+		Class<?> activator = server.loadClass(ACTIVATOR);
+		Method registerWebapp = activator.getMethod("registerWebapplication",
+				Bundle.class, String.class, String.class, String.class);
+		Method registerContext = activator.getMethod("registerContext",
+				Bundle.class, String.class, String.class);
+		for (int i = 0; i < webapps.size(); i++) {
+			if (i % 2 == 0) {
+				registerWebapp.invoke(null, webapps.get(i), "web", contextPath(i), null);
+			} else {
+				registerContext.invoke(null, webapps.get(i), "contexts/bench.xml", null);
+			}
+		}
+	}
+
+	/**
+	 * Polls the RequestStatistics service: a context path appears once it is started.
+	 * @return The number of contexts started.
+	 */
+	private static int waitForContexts(BundleContext context, Set<String> contextPaths)
+	throws Exception {
+		long deadline = System.currentTimeMillis()
+			+ Long.getLong("benchmarks.startup.timeout", 600) * 1000;
+		Set<String> deployed = new HashSet<String>();
+		while (true) {
+			ServiceReference sr = context.getServiceReference(REQUEST_STATISTICS);
+			if (sr != null) {
+				Object stats = context.getService(sr);
+				String[] paths = (String[])stats.getClass().getMethod("getContextPaths").invoke(stats);
+				context.ungetService(sr);
+				deployed.clear();
+				deployed.addAll(Arrays.asList(paths));
+				deployed.retainAll(contextPaths);
+				if (deployed.size() == contextPaths.size()) {
+					return deployed.size();
+				}
+			}
+			if (System.currentTimeMillis() > deadline) {
+				System.err.println("Timeout: " + deployed.size() + " contexts started out of "
+						+ contextPaths.size());
+				return deployed.size();
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private static String contextPath(int i) {
+		return "/bench" + i;
+	}
+
+	/**
+	 * @param i even for a webapp, odd for a context file.
+	 * @param headers true to add the headers of the extender.
+	 */
+	static File generateBundle(File dir, int i, boolean headers) throws IOException {
+		Manifest manifest = new Manifest();
+		Attributes main = manifest.getMainAttributes();
+		main.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		main.putValue("Bundle-ManifestVersion", "2");
+		main.putValue("Bundle-SymbolicName", "bench.webapp" + i);
+		main.putValue("Bundle-Version", "1.0.0");
+		if (headers) {
+			if (i % 2 == 0) {
+				main.putValue("Jetty-WarFolderPath", "web");
+				main.putValue("Jetty-WarContextPath", contextPath(i));
+			} else {
+				main.putValue("Jetty-ContextFilePath", "contexts/bench.xml");
+			}
+		}
+		Map<String,String> entries = new LinkedHashMap<String,String>();
+		entries.put("web/WEB-INF/web.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<web-app xmlns=\"http://java.sun.com/xml/ns/javaee\" version=\"2.5\">\n"
+				+ "  <display-name>bench" + i + "</display-name>\n"
+				+ "</web-app>\n");
+		entries.put("web/index.html", "<html><body>bench" + i + "</body></html>\n");
+		if (i % 2 == 1) {
+			entries.put("contexts/bench.xml", "<?xml version=\"1.0\"?>\n"
+					+ "<!DOCTYPE Configure PUBLIC \"-//Jetty//Configure//EN\""
+					+ " \"http://www.eclipse.org/jetty/configure.dtd\">\n"
+					+ "<Configure class=\"org.eclipse.jetty.webapp.WebAppContext\">\n"
+					+ "  <Set name=\"contextPath\">" + contextPath(i) + "</Set>\n"
+					+ "  <Set name=\"war\"><Property name=\"this.bundle.install\"/>/web</Set>\n"
+					+ "</Configure>\n");
+		}
+		dir.mkdirs();
+		File jar = new File(dir, "bench.webapp" + i + ".jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+		try {
+			for (Map.Entry<String,String> entry : entries.entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue().getBytes("UTF-8"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		return jar;
+	}
+
+	private static FrameworkFactory newFrameworkFactory() throws Exception {
+		String factory = System.getProperty("benchmarks.startup.framework.factory");
+		if (factory != null) {
+			return (FrameworkFactory)Class.forName(factory).newInstance();
+		}
+		Iterator<FrameworkFactory> factories = ServiceLoader.load(FrameworkFactory.class).iterator();
+		if (!factories.hasNext()) {
+			throw new IllegalStateException("No OSGi framework on the classpath: add felix or"
+					+ " equinox or set -Dbenchmarks.startup.framework.factory");
+		}
+		return factories.next();
+	}
+
+	private static List<File> getPlatform() {
+		File platform = new File(getRequiredProperty("benchmarks.startup.platform"));
+		List<File> jars = new ArrayList<File>();
+		File[] files = platform.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File f : files) {
+				if (f.getName().endsWith(".jar")) {
+					jars.add(f);
+				}
+			}
+		}
+		if (jars.isEmpty()) {
+			throw new IllegalStateException("No bundle in " + platform.getAbsolutePath());
+		}
+		return jars;
+	}
+
+	private static String copyJettyHome(File to) throws IOException {
+		File from = new File(BenchmarkFiles.getBundleDir("org.intalio.osgi.jetty.server"), "jettyhome");
+		BenchmarkFiles.copy(from, to);
+		return to.getAbsolutePath();
+	}
+
+	private static String getRequiredProperty(String name) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing the system property " + name);
+		}
+		return value;
+	}
+
+	private static void resetPeakUsage() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * @return The metaspace or the permanent generation used; -1 if there is none.
+	 */
+	private static long getMetaspace() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			String name = pool.getName();
+			if (name.equals("Metaspace") || name.endsWith("Perm Gen")) {
+				return pool.getUsage().getUsed();
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,191 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.Version;
+
+/**
+ * A bundle installed in a folder or in a jar; outside of any OSGi framework.
+ * <p>
+ * The entries are served like felix does: file urls for a folder and jar urls for a jar.
+ * The location is a <code>reference:file:</code> url.
+ * Only what the bootstrap reads is implemented.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class StubBundle implements Bundle {
+
+	private final String _symbolicName;
+	private final File _install;
+	private final Hashtable<String,String> _headers = new Hashtable<String,String>();
+
+	/**
+	 * @param symbolicName
+	 * @param install The folder or the jar of the bundle.
+	 */
+	public StubBundle(String symbolicName, File install) {
+		_symbolicName = symbolicName;
+		_install = install;
+		_headers.put("Bundle-SymbolicName", symbolicName);
+	}
+
+	/**
+	 * @param name
+	 * @param value
+	 * @return this
+	 */
+	public StubBundle header(String name, String value) {
+		_headers.put(name, value);
+		return this;
+	}
+
+	public URL getEntry(String path) {
+		try {
+			if (_install.isDirectory()) {
+				File f = new File(_install, path);
+				return f.exists() ? f.toURI().toURL() : null;
+			}
+			if (!path.startsWith("/")) {
+				path = "/" + path;
+			}
+			return new URL("jar:" + _install.toURI().toURL() + "!" + path);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getLocation() {
+		try {
+			return "reference:" + _install.toURI().toURL();
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getSymbolicName() {
+		return _symbolicName;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Dictionary getHeaders() {
+		return _headers;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Dictionary getHeaders(String locale) {
+		return _headers;
+	}
+
+	public long getBundleId() {
+		return _symbolicName.hashCode();
+	}
+
+	public int getState() {
+		return ACTIVE;
+	}
+
+	public Version getVersion() {
+		return Version.emptyVersion;
+	}
+
+	public long getLastModified() {
+		return _install.lastModified();
+	}
+
+	@SuppressWarnings("unchecked")
+	public Class loadClass(String name) throws ClassNotFoundException {
+		return getClass().getClassLoader().loadClass(name);
+	}
+
+	public URL getResource(String name) {
+		return getClass().getClassLoader().getResource(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Enumeration getResources(String name) throws IOException {
+		return getClass().getClassLoader().getResources(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Enumeration getEntryPaths(String path) {
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Enumeration findEntries(String path, String filePattern, boolean recurse) {
+		return null;
+	}
+
+	public BundleContext getBundleContext() {
+		return null;
+	}
+
+	public ServiceReference[] getRegisteredServices() {
+		return null;
+	}
+
+	public ServiceReference[] getServicesInUse() {
+		return null;
+	}
+
+	public boolean hasPermission(Object permission) {
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public Map getSignerCertificates(int signersType) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void start() throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void start(int options) throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void stop() throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void stop(int options) throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void update() throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void update(InputStream input) throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+	public void uninstall() throws BundleException {
+		throw new UnsupportedOperationException();
+	}
+
+}
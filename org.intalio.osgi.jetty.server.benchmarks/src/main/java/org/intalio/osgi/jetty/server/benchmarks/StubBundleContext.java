@@ -0,0 +1,78 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * The context of a bundle outside of any OSGi framework.
+ * <p>
+ * Knows the installed bundles; the listeners are ignored and the services
+ * registered are not published. Anything else returns null.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class StubBundleContext implements InvocationHandler {
+
+	private final Bundle _bundle;
+	private final Bundle[] _installed;
+
+	/**
+	 * @param bundle The bundle of this context.
+	 * @param installed The other bundles installed.
+	 * @return The context.
+	 */
+	public static BundleContext create(Bundle bundle, Bundle... installed) {
+		return (BundleContext)Proxy.newProxyInstance(StubBundleContext.class.getClassLoader(),
+				new Class<?>[] { BundleContext.class },
+				new StubBundleContext(bundle, installed));
+	}
+
+	private StubBundleContext(Bundle bundle, Bundle[] installed) {
+		_bundle = bundle;
+		_installed = new Bundle[installed.length + 1];
+		_installed[0] = bundle;
+		System.arraycopy(installed, 0, _installed, 1, installed.length);
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (name.equals("getBundle") && (args == null || args.length == 0)) {
+			return _bundle;
+		} else if (name.equals("getBundles")) {
+			return _installed.clone();
+		} else if (name.equals("registerService")) {
+			return Proxy.newProxyInstance(StubBundleContext.class.getClassLoader(),
+					new Class<?>[] { ServiceRegistration.class }, new InvocationHandler() {
+						public Object invoke(Object p, Method m, Object[] a) {
+							return null;
+						}
+					});
+		} else if (name.equals("toString")) {
+			return "StubBundleContext[" + _bundle.getSymbolicName() + "]";
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("equals")) {
+			return proxy == args[0];
+		} else if (method.getReturnType() == boolean.class) {
+			return false;
+		}
+		return null;
+	}
+
+}
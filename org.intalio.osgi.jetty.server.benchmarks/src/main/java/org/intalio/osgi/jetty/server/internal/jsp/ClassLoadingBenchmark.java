@@ -0,0 +1,124 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class and resource lookups through the classloader that sits between a webapp
+ * and its bundle.
+ * <ul>
+ * <li>hit: the bundle's classloader has the class.</li>
+ * <li>miss: nobody has it.</li>
+ * <li>fallback: only the inserted jetty classloader has it.</li>
+ * </ul>
+ * The uncached variants clear the lookup cache before each lookup.
+ *
+ * @author hmalphettes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadingBenchmark {
+
+	private static final String CLASS = Server.class.getName();
+	private static final String RESOURCE = CLASS.replace('.', '/') + ".class";
+	private static final String MISSING = "org.intalio.osgi.benchmarks.DoesNotExist";
+
+	/** the bundle's classloader sees jetty. */
+	private TldLocatableURLClassloaderWithInsertedJettyClassloader _bundleSeesJetty;
+	/** the bundle's classloader only sees the jdk. */
+	private TldLocatableURLClassloaderWithInsertedJettyClassloader _insertedSeesJetty;
+
+	@Setup
+	public void setup() {
+		ClassLoader jetty = Server.class.getClassLoader();
+		ClassLoader jdkOnly = new URLClassLoader(new URL[0], null);
+		_bundleSeesJetty = new TldLocatableURLClassloaderWithInsertedJettyClassloader(
+				jetty, jetty, new URL[0]);
+		_insertedSeesJetty = new TldLocatableURLClassloaderWithInsertedJettyClassloader(
+				jdkOnly, jetty, new URL[0]);
+	}
+
+	@Benchmark
+	public Class<?> hit() throws ClassNotFoundException {
+		return _bundleSeesJetty.loadClass(CLASS);
+	}
+
+	@Benchmark
+	public Class<?> hitUncached() throws ClassNotFoundException {
+		_bundleSeesJetty.invalidateLookupCache();
+		return _bundleSeesJetty.loadClass(CLASS);
+	}
+
+	@Benchmark
+	public Object miss() {
+		try {
+			return _bundleSeesJetty.loadClass(MISSING);
+		} catch (ClassNotFoundException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public Object missUncached() {
+		_bundleSeesJetty.invalidateLookupCache();
+		try {
+			return _bundleSeesJetty.loadClass(MISSING);
+		} catch (ClassNotFoundException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public Class<?> fallback() throws ClassNotFoundException {
+		return _insertedSeesJetty.loadClass(CLASS);
+	}
+
+	@Benchmark
+	public Class<?> fallbackUncached() throws ClassNotFoundException {
+		_insertedSeesJetty.invalidateLookupCache();
+		return _insertedSeesJetty.loadClass(CLASS);
+	}
+
+	@Benchmark
+	public URL resourceHit() {
+		return _bundleSeesJetty.getResource(RESOURCE);
+	}
+
+	@Benchmark
+	public URL resourceFallback() {
+		return _insertedSeesJetty.getResource(RESOURCE);
+	}
+
+	@Benchmark
+	public URL resourceMiss() {
+		return _bundleSeesJetty.getResource("META-INF/does-not-exist.tld");
+	}
+
+}
@@ -0,0 +1,64 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jasper.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolution of the dtds of the tlds and of the web.xml files:
+ * once per tld and per web.xml parsed.
+ *
+ * @author hmalphettes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityResolverBenchmark {
+
+	private final TldConfigurationHelper.MyFixedupEntityResolver _resolver =
+		new TldConfigurationHelper.MyFixedupEntityResolver();
+
+	@Benchmark
+	public InputSource taglibDtd() throws SAXException {
+		return _resolver.resolveEntity(Constants.TAGLIB_DTD_PUBLIC_ID_12, null);
+	}
+
+	@Benchmark
+	public InputSource webappDtd() throws SAXException {
+		return _resolver.resolveEntity(Constants.WEBAPP_DTD_PUBLIC_ID_23, null);
+	}
+
+	/**
+	 * The schemas are not resolved here: the loop over the public ids fails.
+	 */
+	@Benchmark
+	public InputSource unknown() throws SAXException {
+		return _resolver.resolveEntity("-//Unknown//DTD//EN",
+				"http://java.sun.com/xml/ns/javaee/web-app_2_5.xsd");
+	}
+
+}
@@ -0,0 +1,89 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.deploy.ContextDeployer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.resource.Resource;
+import org.intalio.osgi.jetty.server.benchmarks.BenchmarkFiles;
+import org.intalio.osgi.jetty.server.benchmarks.StubBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creating the context defined by the context files of the sample bundles.
+ * <p>
+ * The parsed context files are cached after the first call; the uncached variant
+ * forgets them before each call.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextFileBenchmark {
+
+	/** bundle and context file inside it. */
+	@Param({"org.intalio.osgi.examplecontextapp:contexts/examplecontext.xml",
+		"org.intalio.osgi.examplecontextappwithextender:contexts/examplecontextappwithextender.xml"})
+	public String contextFile;
+
+	private WebappRegistrationHelper _helper;
+	private StubBundle _bundle;
+	private Resource _contextFile;
+	private Field _templates;
+
+	@Setup
+	public void setup() throws Exception {
+		String symbolicName = contextFile.substring(0, contextFile.indexOf(':'));
+		String path = contextFile.substring(contextFile.indexOf(':') + 1);
+		File bundleDir = BenchmarkFiles.getBundleDir(symbolicName);
+		_bundle = new StubBundle(symbolicName, bundleDir);
+		_contextFile = Resource.newResource(new File(bundleDir, path).toURI().toURL());
+		_helper = new WebappRegistrationHelper(new Server());
+		//what setup() would have found in etc/jetty.xml
+		Field deployer = WebappRegistrationHelper.class.getDeclaredField("_ctxtDeployer");
+		deployer.setAccessible(true);
+		deployer.set(_helper, new ContextDeployer());
+		_templates = WebappRegistrationHelper.class.getDeclaredField("_contextFileTemplates");
+		_templates.setAccessible(true);
+	}
+
+	@Benchmark
+	public ContextHandler createContextHandler() {
+		return _helper.createContextHandler(_bundle, _contextFile);
+	}
+
+	@Benchmark
+	public ContextHandler createContextHandlerUncached() throws Exception {
+		((ContextFileTemplates)_templates.get(_helper)).clear();
+		return _helper.createContextHandler(_bundle, _contextFile);
+	}
+
+}
@@ -0,0 +1,246 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.intalio.osgi.jetty.server.benchmarks.BenchmarkFiles;
+import org.intalio.osgi.jetty.server.benchmarks.LoadGenerator;
+import org.intalio.osgi.jetty.server.benchmarks.StubBundle;
+import org.intalio.osgi.jetty.server.benchmarks.StubBundleContext;
+import org.intalio.osgi.jetty.server.internal.jsp.TldJarIndex;
+import org.osgi.framework.Bundle;
+
+/**
+ * Throughput and latency of the sample webapps served by the bootstrapped server.
+ * <p>
+ * The server is setup like inside OSGi: {@link WebappRegistrationHelper#setup}
+ * on a copy of the bundled jettyhome. The three sample bundles are deployed from their
+ * folders: the servlet, hello.jsp, the JSTL page and the static index.html of each are
+ * driven in closed loop then in open loop. The report is printed as json.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>benchmarks.basedir</code>: the root of the repository.</li>
+ * <li><code>benchmarks.http.endpoints</code>: comma separated paths. Defaults to all.</li>
+ * <li><code>benchmarks.http.mode</code>: closed, open or both. Defaults to both.</li>
+ * <li><code>benchmarks.http.warmup</code>: seconds per endpoint before measuring. Defaults to 5.</li>
+ * <li><code>benchmarks.http.duration</code>: seconds per endpoint and per mode. Defaults to 10.</li>
+ * <li><code>benchmarks.http.clients</code>: concurrent clients. Defaults to 16.</li>
+ * <li><code>benchmarks.http.rate</code>: requests per second of the open loop. Defaults to 1000.</li>
+ * <li><code>benchmarks.http.report</code>: file where the json is written. Defaults to stdout.</li>
+ * <li><code>benchmarks.tld.jars</code>: the jars with the tlds (JSTL) separated by the
+ * path separator. Defaults to the jars of the classpath that contain tlds.</li>
+ * </ul>
+ * The thread pool, the connector and the caches are set with the usual
+ * system properties of the server: the same machine can compare them.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class HttpLoadBenchmark {
+
+	static final String[] DEFAULT_ENDPOINTS = {
+		"/example/hello.xsp", "/example/hello.jsp",
+		"/example/tags/x-for-each.jsp", "/example/index.html",
+		"/examplecontext/hello.xsp", "/examplecontext/hello.jsp",
+		"/examplecontext/tags/x-for-each.jsp", "/examplecontext/index.html",
+		"/examplebiscontext/hello.xsp", "/examplebiscontext/hello.jsp",
+		"/examplebiscontext/index.html" };
+
+	public static void main(String[] args) throws Exception {
+		File jettyHome = BenchmarkFiles.createTempDir("jettyhome");
+		BenchmarkFiles.copy(new File(BenchmarkFiles.getBundleDir("org.intalio.osgi.jetty.server"), "jettyhome"),
+				jettyHome);
+		System.setProperty("jetty.home", jettyHome.getAbsolutePath());
+		if (System.getProperty("jetty.port") == null) {
+			System.setProperty("jetty.port", "0");
+		}
+		Server server = new Server();
+		WebappRegistrationHelper helper = new WebappRegistrationHelper(server);
+		try {
+			StubBundle bootstrap = new StubBundle("org.intalio.osgi.jetty.server",
+					BenchmarkFiles.getBundleDir("org.intalio.osgi.jetty.server"));
+			helper.setup(StubBundleContext.create(bootstrap, getTldBundles()));
+			deploy(helper);
+			int port = server.getConnectors()[0].getLocalPort();
+			report(run(port), getProperty("benchmarks.http.report", null));
+		} finally {
+			helper.stop();
+			server.stop();
+			BenchmarkFiles.delete(jettyHome);
+		}
+	}
+
+	private static void deploy(WebappRegistrationHelper helper) throws Exception {
+		List<Future<ContextHandler>> deployments = new ArrayList<Future<ContextHandler>>();
+		deployments.add(helper.registerWebapplication(
+				bundle("org.intalio.osgi.examplewebapp"), "web", "/example",
+				loadClass("org.intalio.osgi.examplewebapp.MyServlet"), null));
+		deployments.add(helper.registerContext(
+				bundle("org.intalio.osgi.examplecontextapp"), "contexts/examplecontext.xml",
+				loadClass("org.intalio.osgi.examplecontextapp.MyServlet"), null));
+		//what the extender does with the headers of the bundle.
+		deployments.add(helper.registerContext(
+				bundle("org.intalio.osgi.examplecontextappwithextender"),
+				"contexts/examplecontextappwithextender.xml",
+				loadClass("org.intalio.osgi.examplecontextappwithextender.MyServlet"), null));
+		for (Future<ContextHandler> deployment : deployments) {
+			deployment.get(2, TimeUnit.MINUTES);
+		}
+	}
+
+	private static List<String> run(int port) throws Exception {
+		long warmup = TimeUnit.SECONDS.toMillis(getIntProperty("benchmarks.http.warmup", 5));
+		long duration = TimeUnit.SECONDS.toMillis(getIntProperty("benchmarks.http.duration", 10));
+		int clients = getIntProperty("benchmarks.http.clients", 16);
+		int rate = getIntProperty("benchmarks.http.rate", 1000);
+		String mode = getProperty("benchmarks.http.mode", "both");
+		List<String> results = new ArrayList<String>();
+		for (String endpoint : getEndpoints()) {
+			LoadGenerator generator = new LoadGenerator(
+					new URL("http", "localhost", port, endpoint));
+			System.err.println("Benchmarking " + endpoint);
+			if (warmup > 0) {
+				generator.closedLoop(clients, warmup);
+			}
+			if (!mode.equals("open")) {
+				results.add(generator.closedLoop(clients, duration).toJson());
+			}
+			if (!mode.equals("closed")) {
+				results.add(generator.openLoop(rate, clients, duration).toJson());
+			}
+		}
+		return results;
+	}
+
+	private static void report(List<String> results, String file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"java\":\"").append(System.getProperty("java.version")).append('"');
+		sb.append(",\"cpus\":").append(Runtime.getRuntime().availableProcessors());
+		sb.append(",\"results\":[");
+		for (int i = 0; i < results.size(); i++) {
+			sb.append(i == 0 ? "\n  " : ",\n  ").append(results.get(i));
+		}
+		sb.append("\n]}");
+		if (file == null) {
+			System.out.println(sb);
+			return;
+		}
+		PrintStream out = new PrintStream(new FileOutputStream(file), true, "UTF-8");
+		try {
+			out.println(sb);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static StubBundle bundle(String symbolicName) {
+		return new StubBundle(symbolicName, BenchmarkFiles.getBundleDir(symbolicName));
+	}
+
+	/**
+	 * @return null when the classes of the sample bundle are not on the classpath:
+	 * its servlet will fail.
+	 */
+	private static Class<?> loadClass(String className) {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			System.err.println("Warn: " + className + " is not on the classpath.");
+			return null;
+		}
+	}
+
+	/**
+	 * @return The jars that contain tlds as tld bundles.
+	 */
+	private static Bundle[] getTldBundles() throws IOException {
+		String jars = System.getProperty("benchmarks.tld.jars");
+		List<Bundle> bundles = new ArrayList<Bundle>();
+		StringTokenizer tokenizer = new StringTokenizer(
+				jars != null ? jars : System.getProperty("java.class.path"), File.pathSeparator);
+		while (tokenizer.hasMoreTokens()) {
+			File jar = new File(tokenizer.nextToken());
+			if (jar.isFile() && (jars != null || containsTlds(jar))) {
+				bundles.add(new StubBundle(jar.getName(), jar)
+						.header(TldJarIndex.HEADER_TLD_BUNDLE, "true"));
+			}
+		}
+		return bundles.toArray(new Bundle[bundles.size()]);
+	}
+
+	private static boolean containsTlds(File jar) throws IOException {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.startsWith("META-INF/") && name.endsWith(".tld")) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	private static List<String> getEndpoints() {
+		String prop = System.getProperty("benchmarks.http.endpoints");
+		List<String> endpoints = new ArrayList<String>();
+		if (prop == null) {
+			for (String endpoint : DEFAULT_ENDPOINTS) {
+				endpoints.add(endpoint);
+			}
+			return endpoints;
+		}
+		StringTokenizer tokenizer = new StringTokenizer(prop, ", ");
+		while (tokenizer.hasMoreTokens()) {
+			endpoints.add(tokenizer.nextToken());
+		}
+		return endpoints;
+	}
+
+	private static String getProperty(String name, String defaultValue) {
+		String value = System.getProperty(name);
+		return value != null && value.trim().length() != 0 ? value.trim() : defaultValue;
+	}
+
+	private static int getIntProperty(String name, int defaultValue) {
+		String value = getProperty(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException nfe) {
+			System.err.println("Warn: invalid " + name + " '" + value + "'");
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.intalio.osgi.jetty.server.benchmarks.BenchmarkFiles;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The classloader of ${jetty.home}/lib/etc with a number of generated jars:
+ * creating it and looking up through it.
+ *
+ * @author hmalphettes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibEtcClassLoaderBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int jars;
+
+	private File _jettyHome;
+	private Server _server;
+	private ClassLoader _loader;
+	/** in the last jar. */
+	private String _lastResource;
+
+	@Setup
+	public void setup() throws Exception {
+		_jettyHome = BenchmarkFiles.createTempDir("jettyhome");
+		File libEtc = new File(_jettyHome, "lib/etc");
+		for (int i = 0; i < jars; i++) {
+			_lastResource = "lib" + i + "/resource.properties";
+			BenchmarkFiles.createJar(new File(libEtc, "lib" + i + ".jar"), null, _lastResource);
+		}
+		_server = new Server();
+		_loader = createLoader();
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkFiles.delete(_jettyHome);
+	}
+
+	@Benchmark
+	public ClassLoader createLoader() throws Exception {
+		return LibEtcClassLoaderHelper.createLibEtcClassLoaderHelper(_jettyHome, _server,
+				LibEtcClassLoaderHelper.class.getClassLoader());
+	}
+
+	/**
+	 * Found in the parent: the usual case for the jetty classes.
+	 */
+	@Benchmark
+	public Class<?> parentClass() throws ClassNotFoundException {
+		return _loader.loadClass(Server.class.getName());
+	}
+
+	/**
+	 * Found in the last jar: all the jars are searched.
+	 */
+	@Benchmark
+	public URL lastJarResource() {
+		return _loader.getResource(_lastResource);
+	}
+
+	@Benchmark
+	public URL missingResource() {
+		return _loader.getResource("META-INF/does-not-exist.xml");
+	}
+
+}
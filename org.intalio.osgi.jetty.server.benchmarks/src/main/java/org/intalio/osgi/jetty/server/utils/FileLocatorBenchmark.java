@@ -0,0 +1,70 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.utils;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.intalio.osgi.jetty.server.benchmarks.BenchmarkFiles;
+import org.intalio.osgi.jetty.server.benchmarks.StubBundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Locating the install folder or jar of a bundle: done for every deployment
+ * and every context file.
+ * <ul>
+ * <li>folder: the manifest is a file url; felix with an unpacked bundle.</li>
+ * <li>jar: the manifest is a jar url; falls back on the location of the bundle.</li>
+ * </ul>
+ *
+ * @author hmalphettes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileLocatorBenchmark {
+
+	private StubBundle _folderBundle;
+	private StubBundle _jarBundle;
+
+	@Setup
+	public void setup() throws Exception {
+		_folderBundle = new StubBundle("org.intalio.osgi.examplewebapp",
+				BenchmarkFiles.getBundleDir("org.intalio.osgi.examplewebapp"));
+		File jar = BenchmarkFiles.createJar(
+				new File(BenchmarkFiles.createTempDir("bundles"), "jarred.jar"),
+				null, "META-INF/MANIFEST.MF", "web/index.html");
+		_jarBundle = new StubBundle("jarred", jar);
+	}
+
+	@Benchmark
+	public File folder() throws Exception {
+		return FileLocatorHelper.getBundleInstallLocation(_folderBundle);
+	}
+
+	@Benchmark
+	public File jar() throws Exception {
+		return FileLocatorHelper.getBundleInstallLocation(_jarBundle);
+	}
+
+}
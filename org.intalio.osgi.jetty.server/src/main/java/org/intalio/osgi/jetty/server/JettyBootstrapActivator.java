@@ -20,6 +20,7 @@ import org.intalio.osgi.jetty.server.internal.webapp.JettyContextHandlerServiceT
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * Experiment: bootstrap jetty's complete distrib from an OSGi bundle.
@@ -54,6 +55,7 @@ public class JettyBootstrapActivator implements BundleActivator {
 	}
 	
 	private Server _server;
+	private JettyContextHandlerServiceTracker _jettyContextHandlerTracker;
 	
 	/**
 	 * Setup a new jetty Server, registers it as a service.
@@ -72,12 +74,12 @@ public class JettyBootstrapActivator implements BundleActivator {
 		context.registerService(_server.getClass().getName(), _server, new Properties());
 		//the tracker in charge of the actual deployment
 		//and that will configure and start the jetty server.
-		JettyContextHandlerServiceTracker jettyContextHandlerTracker =
+		_jettyContextHandlerTracker =
 			new JettyContextHandlerServiceTracker(context, _server);
 		
 		//TODO: add a couple more checks on the properties?
 		//kind of nice not to so we can debug what is missing easily.
-		context.addServiceListener(jettyContextHandlerTracker,
+		context.addServiceListener(_jettyContextHandlerTracker,
 				"(objectclass=" + ContextHandler.class.getName() + ")");
 		
 		//now ready to support the Extender pattern:
@@ -96,6 +98,11 @@ public class JettyBootstrapActivator implements BundleActivator {
 	 */
 	public void stop(BundleContext context) throws Exception {
 		INSTANCE = null;
+		if (_jettyContextHandlerTracker != null) {
+			context.removeServiceListener(_jettyContextHandlerTracker);
+			_jettyContextHandlerTracker.stop();
+			_jettyContextHandlerTracker = null;
+		}
 		_server.stop();
 	}
 	
@@ -113,16 +120,20 @@ public class JettyBootstrapActivator implements BundleActivator {
 	 * @param classInBundle A class that belongs to the current bundle
 	 * to inherit from the osgi classloader. Null to not have access to the
 	 * OSGI classloader.
+	 * @return The registration of the service. Unregistering it undeploys the webapp.
 	 * @throws Exception
 	 */
-	public static void registerWebapplication(Bundle contributor, String webappFolderPath,
+	public static ServiceRegistration registerWebapplication(Bundle contributor, String webappFolderPath,
 			String contextPath, String classInBundle) throws Exception {
 		WebAppContext contextHandler = new WebAppContext();
 		Properties dic = new Properties();
 		dic.put("war", webappFolderPath);
 		dic.put("contextPath", contextPath);
-		dic.put("classInBundle", classInBundle);
-		contributor.getBundleContext().registerService(
+		if (classInBundle != null) {
+			//defaults on the activator of the contributor.
+			dic.put("classInBundle", classInBundle);
+		}
+		return contributor.getBundleContext().registerService(
 				ContextHandler.class.getName(),
 				contextHandler, dic);
 	}
@@ -135,22 +146,39 @@ public class JettyBootstrapActivator implements BundleActivator {
 	 * @param contributor The bundle that registers a new context
 	 * @param contextFilePath The path to the file inside the bundle that defines the context.
 	 * @param classInBundle Name of a class that is in the bundle.
+	 * @return The registration of the service. Unregistering it undeploys the context.
 	 * @throws Exception
 	 */
-	public static void registerContext(Bundle contributor, String contextFilePath,
+	public static ServiceRegistration registerContext(Bundle contributor, String contextFilePath,
 			String classInBundle) throws Exception {
 		ContextHandler contextHandler = new ContextHandler();
 		Properties dic = new Properties();
 		dic.put("contextFilePath", contextFilePath);
-		dic.put("classInBundle", classInBundle);
-		contributor.getBundleContext().registerService(
+		if (classInBundle != null) {
+			//defaults on the activator of the contributor.
+			dic.put("classInBundle", classInBundle);
+		}
+		return contributor.getBundleContext().registerService(
 				ContextHandler.class.getName(),
 				contextHandler, dic);
 	}
 	
 	
-	public static void unregister(String contextPath) {
-		//todo
+	/**
+	 * Undeploys the context deployed on a context path.
+	 * Its in-flight requests are drained before it is stopped.
+	 * The ContextHandler service that defined it remains registered:
+	 * to redeploy it, unregister the service and register a new one.
+	 * 
+	 * @param contextPath
+	 * @return true if such a context was deployed.
+	 */
+	public static boolean unregister(String contextPath) {
+		JettyBootstrapActivator activator = INSTANCE;
+		if (activator == null || activator._jettyContextHandlerTracker == null) {
+			return false;
+		}
+		return activator._jettyContextHandlerTracker.unregister(contextPath);
 	}
 	
 	
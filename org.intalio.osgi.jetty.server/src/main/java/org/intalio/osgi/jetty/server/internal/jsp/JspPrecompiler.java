@@ -0,0 +1,251 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.PathMap;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+import org.osgi.framework.Bundle;
+
+/**
+ * Compiles the jsps of a webapp before it serves its first request.
+ * <p>
+ * Otherwise the first request on each page pays for jasper's parsing and for the
+ * compilation of the generated servlet. A bundle opts in with the manifest header
+ * <code>Jetty-PrecompileJsp: true</code>. Once the webapp is started and before it is
+ * published, every *.jsp and *.jspx of the war folder is handed to the jsp servlet of the
+ * webapp with the parameter <code>jsp_precompile</code>: the page is compiled and its
+ * servlet loaded with the classloader of the webapp; it is not executed.
+ * </p>
+ * <p>
+ * The pages are compiled in parallel on a fork-join pool shared by all the deployments.
+ * Its parallelism is the number of processors unless the system property
+ * <code>jetty.jsp.precompile.parallelism</code> is set.
+ * A page that does not compile is reported and the webapp is deployed anyways:
+ * the error is raised again when the page is requested.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class JspPrecompiler {
+
+	/** Manifest header: true to compile the jsps before the webapp serves requests. */
+	public static final String HEADER_PRECOMPILE_JSP = "Jetty-PrecompileJsp";
+	/** System property: how many pages are compiled at the same time. */
+	public static final String SYS_PROP_PARALLELISM = "jetty.jsp.precompile.parallelism";
+
+	private final ForkJoinPool _pool;
+
+	public JspPrecompiler() {
+		int parallelism = (int)SystemPropertiesHelper.getLongProperty(SYS_PROP_PARALLELISM,
+				Runtime.getRuntime().availableProcessors());
+		_pool = new ForkJoinPool(Math.max(parallelism, 1));
+	}
+
+	/**
+	 * @param contributor
+	 * @return true if the bundle declares the header {@link #HEADER_PRECOMPILE_JSP}
+	 */
+	public static boolean isPrecompile(Bundle contributor) {
+		Object header = contributor.getHeaders().get(HEADER_PRECOMPILE_JSP);
+		return header != null && "true".equalsIgnoreCase(header.toString().trim());
+	}
+
+	/**
+	 * Compiles the jsps of the webapp; returns once they are all compiled.
+	 * @param webapp Started.
+	 * @return page -> why it did not compile; empty when they all compiled.
+	 */
+	public Map<String,Throwable> precompile(final WebAppContext webapp) throws Exception {
+		List<String> pages = new ArrayList<String>();
+		Resource base = webapp.getBaseResource();
+		if (base != null && base.exists()) {
+			findPages(base, "/", pages);
+		}
+		List<Callable<Throwable>> compilations = new ArrayList<Callable<Throwable>>();
+		for (final String page : pages) {
+			compilations.add(new Callable<Throwable>() {
+				public Throwable call() {
+					return compile(webapp, page);
+				}
+			});
+		}
+		Map<String,Throwable> failures = new TreeMap<String,Throwable>();
+		List<Future<Throwable>> results = _pool.invokeAll(compilations);
+		for (int i = 0; i < results.size(); i++) {
+			Throwable failure;
+			try {
+				failure = results.get(i).get();
+			} catch (ExecutionException e) {
+				failure = e.getCause();
+			}
+			if (failure != null) {
+				failures.put(pages.get(i), failure);
+				System.err.println("Warn: unable to precompile " + pages.get(i) + " of "
+						+ webapp.getContextPath() + ": " + failure);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Stops the threads of the pool; the compilations in progress are interrupted.
+	 */
+	public void stop() {
+		_pool.shutdownNow();
+	}
+
+	/**
+	 * Collects the jsps of a folder of the webapp.
+	 */
+	private static void findPages(Resource dir, String path, List<String> pages)
+	throws IOException {
+		String[] children = dir.list();
+		if (children == null) {
+			return;
+		}
+		for (String child : children) {
+			String childPath = path + child;
+			if (child.endsWith("/")) {
+				if (!childPath.equals("/META-INF/") && !childPath.equals("/WEB-INF/lib/")
+						&& !childPath.equals("/WEB-INF/classes/")) {
+					findPages(dir.addPath(child), childPath, pages);
+				}
+			} else if (child.endsWith(".jsp") || child.endsWith(".jspx")) {
+				pages.add(childPath);
+			}
+		}
+	}
+
+	/**
+	 * Compiles one page in the scope of the webapp.
+	 * @return why it did not compile; null when it compiled.
+	 */
+	private static Throwable compile(WebAppContext webapp, final String page) {
+		PathMap.Entry entry = webapp.getServletHandler().getHolderEntry(page);
+		if (entry == null) {
+			return new IllegalStateException("No servlet is mapped to " + page);
+		}
+		final ServletHolder holder = (ServletHolder)entry.getValue();
+		final Throwable[] failure = new Throwable[1];
+		final int[] status = new int[] { HttpServletResponse.SC_OK };
+		webapp.handle(new Runnable() {
+			public void run() {
+				try {
+					Servlet servlet = holder.getServlet();
+					servlet.service(newRequest(page), newResponse(status));
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		});
+		if (failure[0] == null && status[0] >= 400) {
+			failure[0] = new IllegalStateException("HTTP status " + status[0]);
+		}
+		return failure[0];
+	}
+
+	/**
+	 * @return The request of a page with the parameter jsp_precompile.
+	 */
+	private static HttpServletRequest newRequest(final String page) {
+		return (HttpServletRequest)Proxy.newProxyInstance(
+				JspPrecompiler.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("getServletPath") || name.equals("getRequestURI")) {
+							return page;
+						} else if (name.equals("getQueryString")) {
+							return "jsp_precompile=true";
+						} else if (name.equals("getParameter")) {
+							return "jsp_precompile".equals(args[0]) ? "true" : null;
+						} else if (name.equals("getMethod")) {
+							return "GET";
+						} else if (name.equals("getContextPath")) {
+							return "";
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	/**
+	 * @return A response that discards what is written and records the status.
+	 */
+	private static HttpServletResponse newResponse(final int[] status) {
+		return (HttpServletResponse)Proxy.newProxyInstance(
+				JspPrecompiler.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String name = method.getName();
+						if (name.equals("sendError") || name.equals("setStatus")) {
+							status[0] = ((Integer)args[0]).intValue();
+							return null;
+						} else if (name.equals("getWriter")) {
+							return new PrintWriter(new Writer() {
+								public void write(char[] cbuf, int off, int len) {
+								}
+								public void flush() {
+								}
+								public void close() {
+								}
+							});
+						} else if (name.equals("getOutputStream")) {
+							return new ServletOutputStream() {
+								public void write(int b) {
+								}
+							};
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type == long.class) {
+			return Long.valueOf(0);
+		} else if (type == Enumeration.class) {
+			return Collections.enumeration(Collections.emptyList());
+		}
+		return null;
+	}
+
+}
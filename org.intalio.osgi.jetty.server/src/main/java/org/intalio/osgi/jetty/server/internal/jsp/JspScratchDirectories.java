@@ -0,0 +1,203 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.osgi.framework.Bundle;
+
+/**
+ * Gives each webapp a scratch directory that survives the restarts: jasper reuses
+ * the jsps it compiled in a previous run.
+ * <p>
+ * By default jetty creates a new temporary directory for each webapp and deletes it
+ * when the webapp stops: every jsp is compiled again after a restart. Instead the
+ * temporary directory of a webapp is
+ * ${jetty.home}/work/jsp/&lt;bundle-symbolic-name&gt;/&lt;context-path&gt;/&lt;version&gt;-&lt;digest&gt;
+ * where the digest is computed from the path, size and last modification date of the files
+ * of the war folder. When the bundle is updated the key changes: the compiled jsps of a
+ * previous version are deleted once that version is stopped, or at the first deployment of
+ * the webapp after a restart. Jasper itself recompiles a jsp that is newer than its class.
+ * </p>
+ * <p>
+ * A webapp whose temporary directory is already configured is left alone.
+ * The system property <code>jetty.jsp.scratch.persist=false</code> restores the
+ * temporary directories of jetty.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class JspScratchDirectories {
+
+	/** System property: false to compile the jsps in a temporary directory deleted at stop. */
+	public static final String SYS_PROP_PERSIST = "jetty.jsp.scratch.persist";
+
+	private final File _root;
+	/** webapps that found their compiled jsps. */
+	private final AtomicInteger _hits = new AtomicInteger();
+	private final AtomicInteger _webapps = new AtomicInteger();
+	/** folder of the versions of a webapp -> the key last configured. Guarded by itself. */
+	private final Map<File,String> _current = new HashMap<File,String>();
+
+	/**
+	 * @param root ${jetty.home}/work/jsp
+	 */
+	public JspScratchDirectories(File root) {
+		_root = root;
+	}
+
+	/**
+	 * Sets the temporary directory of the webapp; jasper uses it as its scratch directory.
+	 * @param context Not started.
+	 * @param contributor The bundle of the webapp.
+	 */
+	public void configure(WebAppContext context, Bundle contributor) {
+		if (context.getTempDirectory() != null
+				|| "false".equals(System.getProperty(SYS_PROP_PERSIST))) {
+			return;
+		}
+		try {
+			Resource war = context.getBaseResource();
+			if (war == null && context.getWar() != null) {
+				war = Resource.newResource(context.getWar());
+			}
+			if (war == null || !war.exists()) {
+				return;
+			}
+			String contextPath = context.getContextPath();
+			File versions = new File(new File(_root, contributor.getSymbolicName()),
+					contextPath.length() <= 1 ? "ROOT" : contextPath.substring(1).replace('/', '_'));
+			String key = contributor.getVersion() + "-" + digest(war);
+			File scratch = new File(versions, key);
+			String previousKey;
+			synchronized (_current) {
+				previousKey = _current.put(versions, key);
+			}
+			if (previousKey == null) {
+				//first deployment since the server started: no previous version is running.
+				File[] previous = versions.listFiles();
+				if (previous != null) {
+					for (File f : previous) {
+						if (!f.getName().equals(key)) {
+							IO.delete(f);
+						}
+					}
+				}
+			}
+			int compiled = countClasses(scratch);
+			if (!scratch.isDirectory() && !scratch.mkdirs()) {
+				System.err.println("Warn: unable to create the jsp scratch directory " + scratch);
+				return;
+			}
+			context.setTempDirectory(scratch);
+			int hits = compiled != 0 ? _hits.incrementAndGet() : _hits.get();
+			int webapps = _webapps.incrementAndGet();
+			System.err.println("jsp scratch directory of " + contextPath + ": " + compiled
+					+ " compiled classes reused; " + hits + "/" + webapps
+					+ " webapps reused their compiled jsps (" + (hits * 100 / webapps) + "%)");
+		} catch (Throwable t) {
+			System.err.println("Warn: unable to configure the jsp scratch directory of "
+					+ context.getContextPath());
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * Deletes the scratch directory of a webapp that was stopped
+	 * when a new version of the webapp uses another one.
+	 * @param context Stopped.
+	 */
+	public void release(ContextHandler context) {
+		if (!(context instanceof WebAppContext)) {
+			return;
+		}
+		File scratch = ((WebAppContext)context).getTempDirectory();
+		File versions = scratch != null ? scratch.getParentFile() : null;
+		if (versions == null || versions.getParentFile() == null
+				|| !_root.equals(versions.getParentFile().getParentFile())) {
+			//not one of ours.
+			return;
+		}
+		String current;
+		synchronized (_current) {
+			current = _current.get(versions);
+		}
+		if (current != null && !current.equals(scratch.getName())) {
+			IO.delete(scratch);
+		}
+	}
+
+	/**
+	 * @return The hex digest of the path, size and last modification date of the files
+	 * of the war.
+	 */
+	private static String digest(Resource war) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest(war, "", digest);
+		byte[] bytes = digest.digest();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static void digest(Resource dir, String path, MessageDigest digest)
+	throws IOException {
+		String[] children = dir.list();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (String child : children) {
+			Resource r = dir.addPath(child);
+			digest.update((path + child).getBytes("UTF-8"));
+			if (child.endsWith("/")) {
+				digest(r, path + child, digest);
+			} else {
+				long length = r.length();
+				long lastModified = r.lastModified();
+				for (int i = 0; i < 8; i++) {
+					digest.update((byte)(length >>> (i * 8)));
+					digest.update((byte)(lastModified >>> (i * 8)));
+				}
+			}
+		}
+	}
+
+	private static int countClasses(File dir) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		int count = 0;
+		for (File f : children) {
+			if (f.isDirectory()) {
+				count += countClasses(f);
+			} else if (f.getName().endsWith(".class")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
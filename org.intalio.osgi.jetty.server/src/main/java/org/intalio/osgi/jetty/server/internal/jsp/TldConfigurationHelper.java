@@ -10,6 +10,9 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.internal.jsp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 import javax.servlet.jsp.JspContext;
@@ -82,6 +85,13 @@ public class TldConfigurationHelper {
 	        Constants.WEBAPP_DTD_RESOURCE_PATH_23,
 	    };
 
+	    /**
+	     * The content of the dtds once they were read: the same dtds are resolved
+	     * for every tld and every web.xml parsed.
+	     */
+	    private static final byte[][] CACHED_DTD_CONTENTS =
+	    	new byte[CACHED_DTD_RESOURCE_PATHS.length][];
+
 //	    static final String[] CACHED_SCHEMA_RESOURCE_PATHS = {
 //	        Constants.TAGLIB_SCHEMA_RESOURCE_PATH_20,
 //	        Constants.TAGLIB_SCHEMA_RESOURCE_PATH_21,
@@ -99,6 +109,13 @@ public class TldConfigurationHelper {
 	                // START PWC 6386258
 	                String resourcePath = CACHED_DTD_RESOURCE_PATHS[i];
 	                // END PWC 6386258
+	                byte[] content;
+	                synchronized (CACHED_DTD_CONTENTS) {
+	                	content = CACHED_DTD_CONTENTS[i];
+	                }
+	                if (content != null) {
+	                	return new InputSource(new ByteArrayInputStream(content));
+	                }
 	                InputStream input = null;
 //	                if (false /*ParserUtils.isDtdResourcePrefixFileUrl*/) {//we don't need this.
 //	                    try {
@@ -124,7 +141,11 @@ public class TldConfigurationHelper {
 	                        Localizer.getMessage("jsp.error.internal.filenotfound",
 	                                             resourcePath));
 	                }
-	                InputSource isrc = new InputSource(input);
+	                content = readFully(input);
+	                synchronized (CACHED_DTD_CONTENTS) {
+	                	CACHED_DTD_CONTENTS[i] = content;
+	                }
+	                InputSource isrc = new InputSource(new ByteArrayInputStream(content));
 	                return isrc;
 	            }
 	        }
@@ -140,6 +161,22 @@ public class TldConfigurationHelper {
 
 	        return null;
 	    }
+	    
+	    private static byte[] readFully(InputStream input) throws SAXException {
+	    	try {
+	    		ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    		byte[] buf = new byte[4096];
+	    		int read;
+	    		while ((read = input.read(buf)) != -1) {
+	    			out.write(buf, 0, read);
+	    		}
+	    		return out.toByteArray();
+	    	} catch (IOException e) {
+	    		throw new SAXException(e);
+	    	} finally {
+	    		try { input.close(); } catch (IOException ioe) {}
+	    	}
+	    }
 	}
 	
 }
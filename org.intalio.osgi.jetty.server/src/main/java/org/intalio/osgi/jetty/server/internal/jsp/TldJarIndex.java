@@ -0,0 +1,173 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.jasper.compiler.TldLocationsCache;
+import org.intalio.osgi.jetty.server.utils.BundleResolver;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Index of the jars that contain tag-libraries.
+ * <p>
+ * The jasper TldScanner expects a URLClassloader to parse a jar for the
+ * /META-INF/*.tld it may contain. This index is built once and kept up to
+ * date with the bundle events instead of locating the jars for every
+ * deployment.
+ * </p>
+ * <p>
+ * The bundle that contains jasper is always indexed.
+ * A third-party bundle that contains tag-libraries declares it with the manifest
+ * header <code>Jetty-TldBundle: true</code>.
+ * </p>
+ * <p>
+ * Support only 2 types of packaging for the bundle:
+ * - the bundle is a jar (recommended for runtime.)
+ * - the bundle is a folder and contain jars in the root and/or in the lib folder
+ * (nice for PDE developement situations)
+ * Unsupported: the bundle is a jar that embeds more jars.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class TldJarIndex implements BundleListener {
+
+	/** Manifest header: the bundle contains tag-libraries. */
+	public static final String HEADER_TLD_BUNDLE = "Jetty-TldBundle";
+
+	private static final URL[] EMPTY = new URL[0];
+
+	private final BundleResolver _bundleResolver;
+
+	/** bundle id -> its jars. Guarded by itself. */
+	private final Map<Long,URL[]> _jarsPerBundle = new LinkedHashMap<Long,URL[]>();
+	private volatile URL[] _jarsWithTlds = EMPTY;
+	private BundleContext _context;
+	private long _jasperBundleId = -1;
+
+	/**
+	 * @param bundleResolver Locates the bundles.
+	 */
+	public TldJarIndex(BundleResolver bundleResolver) {
+		_bundleResolver = bundleResolver;
+	}
+
+	/**
+	 * Indexes the bundles already installed and starts listening to the bundle events.
+	 * @param context
+	 */
+	public void open(BundleContext context) {
+		_context = context;
+		Bundle jasperBundle = FrameworkUtil.getBundle(TldLocationsCache.class);
+		if (jasperBundle != null) {
+			_jasperBundleId = jasperBundle.getBundleId();
+		}
+		context.addBundleListener(this);
+		for (Bundle b : context.getBundles()) {
+			index(b);
+		}
+	}
+
+	public void close() {
+		if (_context != null) {
+			_context.removeBundleListener(this);
+			_context = null;
+		}
+	}
+
+	/**
+	 * @return The jars that contain tld files. The same array is shared by all the
+	 * webapps until a bundle with taglibs is installed, updated or uninstalled: it
+	 * must not be modified.
+	 */
+	public URL[] getJarsWithTlds() {
+		return _jarsWithTlds;
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.INSTALLED:
+		case BundleEvent.UPDATED:
+			index(event.getBundle());
+			break;
+		case BundleEvent.UNINSTALLED:
+			remove(event.getBundle());
+			break;
+		}
+	}
+
+	private void index(Bundle bundle) {
+		if (!isTldBundle(bundle)) {
+			//the header might have been removed by an update.
+			remove(bundle);
+			return;
+		}
+		URL[] jars;
+		try {
+			File[] files = _bundleResolver.locateJarsInsideBundle(bundle);
+			jars = new URL[files.length];
+			for (int i = 0; i < files.length; i++) {
+				jars[i] = files[i].toURI().toURL();
+			}
+		} catch (Throwable t) {
+			System.err.println("Unable to locate the jars with tlds inside "
+					+ bundle.getSymbolicName());
+			t.printStackTrace();
+			return;
+		}
+		synchronized (_jarsPerBundle) {
+			_jarsPerBundle.put(bundle.getBundleId(), jars);
+			snapshot();
+		}
+	}
+
+	private void remove(Bundle bundle) {
+		synchronized (_jarsPerBundle) {
+			if (_jarsPerBundle.remove(bundle.getBundleId()) != null) {
+				snapshot();
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on the map.
+	 */
+	private void snapshot() {
+		ArrayList<URL> all = new ArrayList<URL>();
+		for (URL[] jars : _jarsPerBundle.values()) {
+			for (URL jar : jars) {
+				all.add(jar);
+			}
+		}
+		_jarsWithTlds = all.toArray(new URL[all.size()]);
+	}
+
+	private boolean isTldBundle(Bundle bundle) {
+		if (bundle.getBundleId() == _jasperBundleId) {
+			return true;
+		}
+		if (bundle.getState() == Bundle.UNINSTALLED) {
+			return false;
+		}
+		Object header = bundle.getHeaders().get(HEADER_TLD_BUNDLE);
+		return header != null && !"false".equalsIgnoreCase(header.toString().trim());
+	}
+
+}
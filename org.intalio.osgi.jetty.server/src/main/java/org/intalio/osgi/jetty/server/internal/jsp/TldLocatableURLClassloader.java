@@ -10,10 +10,17 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.internal.jsp;
 
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jasper.compiler.TldLocationsCache;
+import org.intalio.osgi.jetty.server.management.ClassLoaderLookupStatistics;
 
 /**
  * Tricky hacky url classloader.
@@ -22,13 +29,49 @@ import org.apache.jasper.compiler.TldLocationsCache;
  * But to let {@link TldLocationsCache} find the core tlds inside the jars
  * we must be a URLClassLoader that returns an array of jars where tlds are stored
  * when the method getURLs is called.
+ * <p>
+ * The results of the lookups through the delegation chain are cached:
+ * classes and resources that are found and also the ones that are not found.
+ * The cache must be invalidated when one of the classloaders in the chain is
+ * refreshed. It can be disabled with the system property
+ * <code>jetty.classloader.lookupcache=false</code>
+ * </p>
  * 
  * @author hmalphettes
  */
-public class TldLocatableURLClassloader extends URLClassLoader {
+public class TldLocatableURLClassloader extends URLClassLoader
+		implements ClassLoaderLookupStatistics {
+	
+	/** System property: set to false to disable the caching of the lookups. */
+	public static final String SYS_PROP_LOOKUP_CACHE = "jetty.classloader.lookupcache";
+	
+	private static final boolean LOOKUP_CACHE_ENABLED =
+		!"false".equals(System.getProperty(SYS_PROP_LOOKUP_CACHE));
+	
+	/** bound on the number of names remembered as missing. */
+	private static final int MAX_MISSING_ENTRIES = 10000;
 
 	private URL[] _jarsWithTldsInside;
 	
+	private final ConcurrentHashMap<String,Class<?>> _classes =
+		new ConcurrentHashMap<String,Class<?>>();
+	private final ConcurrentHashMap<String,Boolean> _missingClasses =
+		new ConcurrentHashMap<String,Boolean>();
+	private final ConcurrentHashMap<String,URL> _resources =
+		new ConcurrentHashMap<String,URL>();
+	/** the names without any resource; for getResource and getResources. */
+	private final ConcurrentHashMap<String,Boolean> _missingResources =
+		new ConcurrentHashMap<String,Boolean>();
+	private final ConcurrentHashMap<String,List<URL>> _resourceLists =
+		new ConcurrentHashMap<String,List<URL>>();
+	
+	private final AtomicLong _classHits = new AtomicLong();
+	private final AtomicLong _classNegativeHits = new AtomicLong();
+	private final AtomicLong _classMisses = new AtomicLong();
+	private final AtomicLong _resourceHits = new AtomicLong();
+	private final AtomicLong _resourceNegativeHits = new AtomicLong();
+	private final AtomicLong _resourceMisses = new AtomicLong();
+	
 	public TldLocatableURLClassloader(ClassLoader osgiClassLoader,
 			URL[] jarsWithTldsInside) {
 		super(new URL[] {}, osgiClassLoader);
@@ -43,4 +86,139 @@ public class TldLocatableURLClassloader extends URLClassLoader {
 	public URL[] getURLs() {
 		return _jarsWithTldsInside;
 	}
+	
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve)
+	throws ClassNotFoundException {
+		if (!LOOKUP_CACHE_ENABLED) {
+			return super.loadClass(name, resolve);
+		}
+		Class<?> c = _classes.get(name);
+		if (c != null) {
+			_classHits.incrementAndGet();
+			return c;
+		}
+		if (_missingClasses.containsKey(name)) {
+			_classNegativeHits.incrementAndGet();
+			throw new CachedClassNotFoundException(name);
+		}
+		_classMisses.incrementAndGet();
+		try {
+			c = super.loadClass(name, resolve);
+		} catch (ClassNotFoundException cnfe) {
+			if (_missingClasses.size() >= MAX_MISSING_ENTRIES) {
+				_missingClasses.clear();
+			}
+			_missingClasses.put(name, Boolean.TRUE);
+			throw cnfe;
+		}
+		_classes.put(name, c);
+		return c;
+	}
+	
+	@Override
+	public URL getResource(String name) {
+		if (!LOOKUP_CACHE_ENABLED) {
+			return super.getResource(name);
+		}
+		URL url = _resources.get(name);
+		if (url != null) {
+			_resourceHits.incrementAndGet();
+			return url;
+		}
+		if (_missingResources.containsKey(name)) {
+			_resourceNegativeHits.incrementAndGet();
+			return null;
+		}
+		_resourceMisses.incrementAndGet();
+		url = super.getResource(name);
+		if (url != null) {
+			_resources.put(name, url);
+		} else {
+			if (_missingResources.size() >= MAX_MISSING_ENTRIES) {
+				_missingResources.clear();
+			}
+			_missingResources.put(name, Boolean.TRUE);
+		}
+		return url;
+	}
+	
+	@Override
+	public Enumeration<URL> getResources(String name) throws IOException {
+		if (!LOOKUP_CACHE_ENABLED) {
+			return super.getResources(name);
+		}
+		List<URL> urls = _resourceLists.get(name);
+		if (urls != null) {
+			_resourceHits.incrementAndGet();
+			return Collections.enumeration(urls);
+		}
+		if (_missingResources.containsKey(name)) {
+			_resourceNegativeHits.incrementAndGet();
+			return Collections.enumeration(Collections.<URL>emptyList());
+		}
+		_resourceMisses.incrementAndGet();
+		urls = Collections.list(super.getResources(name));
+		if (!urls.isEmpty()) {
+			_resourceLists.put(name, urls);
+		} else {
+			if (_missingResources.size() >= MAX_MISSING_ENTRIES) {
+				_missingResources.clear();
+			}
+			_missingResources.put(name, Boolean.TRUE);
+		}
+		return Collections.enumeration(urls);
+	}
+	
+	/**
+	 * Forgets the result of all the lookups.
+	 * Called when one of the classloaders in the delegation chain is refreshed.
+	 */
+	public void invalidateLookupCache() {
+		_classes.clear();
+		_missingClasses.clear();
+		_resources.clear();
+		_missingResources.clear();
+		_resourceLists.clear();
+	}
+	
+	public long getClassHits() {
+		return _classHits.get();
+	}
+	
+	public long getClassNegativeHits() {
+		return _classNegativeHits.get();
+	}
+	
+	public long getClassMisses() {
+		return _classMisses.get();
+	}
+	
+	public long getResourceHits() {
+		return _resourceHits.get();
+	}
+	
+	public long getResourceNegativeHits() {
+		return _resourceNegativeHits.get();
+	}
+	
+	public long getResourceMisses() {
+		return _resourceMisses.get();
+	}
+	
+	/**
+	 * Thrown when the class is known to be missing.
+	 * Filling the stack trace is what makes a ClassNotFoundException
+	 * expensive and it is of no use here.
+	 */
+	private static class CachedClassNotFoundException extends ClassNotFoundException {
+		private static final long serialVersionUID = 1L;
+		CachedClassNotFoundException(String name) {
+			super(name);
+		}
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
 }
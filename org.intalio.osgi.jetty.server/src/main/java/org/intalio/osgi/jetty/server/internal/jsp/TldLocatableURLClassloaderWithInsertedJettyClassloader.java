@@ -10,7 +10,10 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.internal.jsp;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
 
 /**
  * Add a classloader to the TldLocatableURLClassloader.
@@ -30,15 +33,39 @@ public class TldLocatableURLClassloaderWithInsertedJettyClassloader extends TldL
 		_internalClassLoader = internalClassLoader;
 	}
 	
+	/**
+	 * Called when the parent classloaders did not find the class.
+	 * There is no need to look in our own urls first: they are only exposed for
+	 * the tld scanners; so we go straight to the inserted classloader
+	 * instead of failing on super.findClass.
+	 */
+	@Override
 	protected Class<?> findClass(String name) throws ClassNotFoundException {
-		try {
-			return super.findClass(name);
-		} catch (ClassNotFoundException cne) {
-			if (_internalClassLoader != null) {
-				return _internalClassLoader.loadClass(name);
-			} else {
-				throw cne;
-			}
+		if (_internalClassLoader != null) {
+			return _internalClassLoader.loadClass(name);
 		}
+		throw new ClassNotFoundException(name);
+	}
+	
+	/**
+	 * Same for the resources.
+	 */
+	@Override
+	public URL findResource(String name) {
+		if (_internalClassLoader != null) {
+			return _internalClassLoader.getResource(name);
+		}
+		return null;
+	}
+	
+	/**
+	 * Same for the enumerations of resources.
+	 */
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		if (_internalClassLoader != null) {
+			return _internalClassLoader.getResources(name);
+		}
+		return Collections.enumeration(Collections.<URL>emptyList());
 	}
 }
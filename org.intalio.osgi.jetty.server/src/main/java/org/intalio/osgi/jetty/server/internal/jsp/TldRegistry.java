@@ -0,0 +1,436 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.jsp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.jasper.compiler.TldLocationsCache;
+import org.apache.jasper.xmlparser.ParserUtils;
+import org.apache.jasper.xmlparser.TreeNode;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * One registry of the parsed tag-library descriptors shared by all the webapps.
+ * <p>
+ * Jasper's {@link TldLocationsCache} scans and parses the same jars with tlds
+ * for every webapp. Instead, the registry parses each tld once and hands to
+ * jasper the complete map of taglib uri to location through the servlet-context
+ * attribute <code>com.sun.jsp.tldUriToLocationMap</code>.
+ * </p>
+ * <p>
+ * When that attribute is set jasper skips the web.xml taglib declarations,
+ * the tlds inside WEB-INF and the jars of the classloader of the webapp itself
+ * (WEB-INF/lib): the registry resolves those too.
+ * Jasper still scans the jars exposed by the parent classloaders; those are the
+ * jars shared by all webapps and they are already in the map.
+ * </p>
+ * <p>
+ * The parsed files are keyed by their path, size and last modification date.
+ * The registry is persisted so that after a restart the unchanged files are not parsed again.
+ * The files that were deleted are dropped from it when it is saved.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class TldRegistry {
+
+	/** Servlet-context attribute read by TldLocationsCache#init */
+	public static final String TLD_URI_TO_LOCATION_MAP = "com.sun.jsp.tldUriToLocationMap";
+
+	private static final int CACHE_FORMAT_VERSION = 1;
+	private static final String[][] NO_TLDS = new String[0][];
+
+	private final File _cacheFile;
+	/** absolute path -> parsed file. Guarded by itself. */
+	private final Map<String,ParsedFile> _parsed = new HashMap<String,ParsedFile>();
+	private boolean _dirty = false;
+
+	/**
+	 * @param cacheFile Where the registry is persisted. Null to not persist it.
+	 */
+	public TldRegistry(File cacheFile) {
+		_cacheFile = cacheFile;
+	}
+
+	/**
+	 * Configures jasper to consult this registry when the webapp is started.
+	 * Does nothing when the webapp is not a folder on the file-system.
+	 * @param context
+	 * @param jarsWithTlds The jars shared by all webapps.
+	 */
+	public void configure(WebAppContext context, URL[] jarsWithTlds) {
+		String war = context.getWar() != null ? context.getWar() : context.getResourceBase();
+		if (war == null) {
+			return;
+		}
+		if (war.startsWith("file:")) {
+			war = war.substring("file:".length());
+		}
+		File warFolder = new File(war);
+		if (!warFolder.isDirectory()) {
+			return;
+		}
+		try {
+			HashMap<String,String[]> mappings = getTldUriToLocationMap(warFolder, jarsWithTlds);
+			context.setAttribute(TLD_URI_TO_LOCATION_MAP, mappings);
+		} catch (Throwable t) {
+			System.err.println("Unable to resolve the tlds of " + warFolder
+					+ "; jasper will scan them.");
+			t.printStackTrace();
+		} finally {
+			save();
+		}
+	}
+
+	/**
+	 * Same as what TldLocationsCache#init does: web.xml declarations first,
+	 * then the jars of WEB-INF/lib, then the shared jars, then the tlds inside WEB-INF.
+	 * @param warFolder
+	 * @param jarsWithTlds
+	 * @return A new map of taglib uri to {location, entryName}
+	 */
+	public HashMap<String,String[]> getTldUriToLocationMap(File warFolder,
+			URL[] jarsWithTlds) throws Exception {
+		HashMap<String,String[]> mappings = new HashMap<String,String[]>();
+		processWebDotXml(warFolder, mappings);
+		File[] webInfLib = new File(warFolder, "WEB-INF/lib").listFiles();
+		if (webInfLib != null) {
+			Arrays.sort(webInfLib);
+			for (File jar : webInfLib) {
+				if (jar.isFile() && jar.getName().endsWith(".jar")) {
+					processJar(jar, mappings);
+				}
+			}
+		}
+		if (jarsWithTlds != null) {
+			for (URL jarUrl : jarsWithTlds) {
+				processJar(new File(jarUrl.toURI()), mappings);
+			}
+		}
+		File webInf = new File(warFolder, "WEB-INF");
+		if (webInf.isDirectory()) {
+			processTldsInFileSystem(webInf, "/WEB-INF/", mappings);
+		}
+		return mappings;
+	}
+
+	/**
+	 * Loads the persisted registry.
+	 */
+	public void load() {
+		if (_cacheFile == null || !_cacheFile.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(_cacheFile)));
+			if (in.readInt() != CACHE_FORMAT_VERSION) {
+				return;
+			}
+			int nbFiles = in.readInt();
+			synchronized (_parsed) {
+				for (int i = 0; i < nbFiles; i++) {
+					String path = in.readUTF();
+					long length = in.readLong();
+					long lastModified = in.readLong();
+					String[][] tlds = new String[in.readInt()][];
+					for (int j = 0; j < tlds.length; j++) {
+						String uri = in.readUTF();
+						String entry = in.readBoolean() ? in.readUTF() : null;
+						tlds[j] = new String[] {uri, entry};
+					}
+					_parsed.put(path, new ParsedFile(length, lastModified, tlds));
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Ignoring the corrupted tld cache " + _cacheFile);
+			synchronized (_parsed) {
+				_parsed.clear();
+			}
+		} finally {
+			if (in != null) try { in.close(); } catch (IOException ioe) {}
+		}
+	}
+
+	/**
+	 * Persists the registry if it was modified since it was last saved.
+	 * The files that no longer exist are forgotten first.
+	 */
+	public void save() {
+		if (_cacheFile == null) {
+			return;
+		}
+		synchronized (_parsed) {
+			if (!_dirty) {
+				return;
+			}
+			Iterator<String> paths = _parsed.keySet().iterator();
+			while (paths.hasNext()) {
+				if (!new File(paths.next()).exists()) {
+					//for example the jar of an uninstalled or updated bundle.
+					paths.remove();
+				}
+			}
+			_cacheFile.getParentFile().mkdirs();
+			File tmp = new File(_cacheFile.getParentFile(), _cacheFile.getName() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				out.writeInt(CACHE_FORMAT_VERSION);
+				out.writeInt(_parsed.size());
+				for (Map.Entry<String,ParsedFile> e : _parsed.entrySet()) {
+					ParsedFile f = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(f._length);
+					out.writeLong(f._lastModified);
+					out.writeInt(f._tlds.length);
+					for (String[] tld : f._tlds) {
+						out.writeUTF(tld[0]);
+						out.writeBoolean(tld[1] != null);
+						if (tld[1] != null) {
+							out.writeUTF(tld[1]);
+						}
+					}
+				}
+				out.close();
+				out = null;
+				_cacheFile.delete();
+				if (tmp.renameTo(_cacheFile)) {
+					_dirty = false;
+				}
+			} catch (IOException e) {
+				System.err.println("Unable to save the tld cache " + _cacheFile);
+				e.printStackTrace();
+			} finally {
+				if (out != null) try { out.close(); } catch (IOException ioe) {}
+			}
+		}
+	}
+
+	/**
+	 * The taglib declarations in WEB-INF/web.xml
+	 */
+	private void processWebDotXml(File warFolder, HashMap<String,String[]> mappings)
+	throws Exception {
+		File webXml = new File(warFolder, "WEB-INF/web.xml");
+		if (!webXml.exists()) {
+			return;
+		}
+		//not cached: web.xml is specific to each webapp and mostly parsed by jetty anyways.
+		InputStream in = new FileInputStream(webXml);
+		TreeNode root;
+		try {
+			root = new ParserUtils().parseXMLDocument("/WEB-INF/web.xml", in);
+		} finally {
+			try { in.close(); } catch (IOException ioe) {}
+		}
+		if (root == null) {
+			return;
+		}
+		TreeNode jspConfig = root.findChild("jsp-config");
+		if (jspConfig != null) {
+			root = jspConfig;
+		}
+		Iterator<?> taglibs = root.findChildren("taglib");
+		while (taglibs.hasNext()) {
+			TreeNode taglib = (TreeNode)taglibs.next();
+			TreeNode child = taglib.findChild("taglib-uri");
+			String uri = child != null ? child.getBody() : null;
+			if (uri == null || isSystemUri(uri)) {
+				continue;
+			}
+			child = taglib.findChild("taglib-location");
+			String location = child != null ? child.getBody() : null;
+			if (location == null) {
+				continue;
+			}
+			if (TldLocationsCache.uriType(location) == TldLocationsCache.NOROOT_REL_URI) {
+				location = "/WEB-INF/" + location;
+			}
+			String entryName = null;
+			if (location.endsWith(".jar")) {
+				location = new File(warFolder, location).toURI().toURL().toString();
+				entryName = "META-INF/taglib.tld";
+			}
+			mappings.put(uri, new String[] {location, entryName});
+		}
+	}
+
+	/**
+	 * The tlds inside META-INF of a jar; located the way TldLocationsCache#scanJar does.
+	 */
+	private void processJar(File jar, HashMap<String,String[]> mappings) throws Exception {
+		String location = jar.toURI().toURL().toString();
+		for (String[] tld : getParsed(jar)._tlds) {
+			putIfAbsentOrSystem(mappings, tld[0], new String[] {location, tld[1]});
+		}
+	}
+
+	/**
+	 * The tld files inside WEB-INF
+	 */
+	private void processTldsInFileSystem(File folder, String path,
+			HashMap<String,String[]> mappings) throws Exception {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			String resourcePath = path + f.getName();
+			if (f.isDirectory()) {
+				processTldsInFileSystem(f, resourcePath + "/", mappings);
+			} else if (f.getName().endsWith(".tld")) {
+				if (resourcePath.startsWith("/WEB-INF/tags/")
+						&& !resourcePath.endsWith("implicit.tld")) {
+					//jasper rejects those; let it report the error.
+					continue;
+				}
+				for (String[] tld : getParsed(f)._tlds) {
+					putIfAbsentOrSystem(mappings, tld[0], new String[] {resourcePath, null});
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param f A tld file or a jar
+	 * @return The parsed file; either from the registry, either parsed now.
+	 */
+	private ParsedFile getParsed(File f) throws Exception {
+		String path = f.getAbsolutePath();
+		long length = f.length();
+		long lastModified = f.lastModified();
+		synchronized (_parsed) {
+			ParsedFile parsed = _parsed.get(path);
+			if (parsed != null && parsed._length == length
+					&& parsed._lastModified == lastModified) {
+				return parsed;
+			}
+		}
+		ParsedFile parsed = new ParsedFile(length, lastModified,
+				f.getName().endsWith(".jar") ? parseJar(f) : parseTld(f));
+		synchronized (_parsed) {
+			_parsed.put(path, parsed);
+			_dirty = true;
+		}
+		return parsed;
+	}
+
+	private String[][] parseTld(File tld) throws Exception {
+		InputStream in = new FileInputStream(tld);
+		try {
+			String uri = getUriFromTld(tld.getPath(), in);
+			return uri == null ? NO_TLDS : new String[][] { {uri, null} };
+		} finally {
+			try { in.close(); } catch (IOException ioe) {}
+		}
+	}
+
+	private String[][] parseJar(File jar) throws Exception {
+		List<String[]> tlds = new ArrayList<String[]>();
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (!name.startsWith("META-INF/") || !name.endsWith(".tld")) {
+					continue;
+				}
+				InputStream in = jarFile.getInputStream(entry);
+				try {
+					String uri = getUriFromTld(name, in);
+					if (uri != null) {
+						tlds.add(new String[] {uri, name});
+					}
+				} finally {
+					try { in.close(); } catch (IOException ioe) {}
+				}
+			}
+		} finally {
+			try { jarFile.close(); } catch (IOException ioe) {}
+		}
+		return tlds.toArray(new String[tlds.size()][]);
+	}
+
+	/**
+	 * Same as TldLocationsCache#getUriFromTld
+	 */
+	private String getUriFromTld(String resourcePath, InputStream in) throws Exception {
+		TreeNode tld = new ParserUtils().parseXMLDocument(resourcePath, in, false);
+		TreeNode uri = tld != null ? tld.findChild("uri") : null;
+		if (uri != null) {
+			String body = uri.getBody();
+			if (body != null) {
+				return body;
+			}
+		}
+		return null;
+	}
+
+	private static void putIfAbsentOrSystem(HashMap<String,String[]> mappings,
+			String uri, String[] location) {
+		if (mappings.get(uri) == null || isSystemUri(uri)) {
+			mappings.put(uri, location);
+		}
+	}
+
+	//private static set in TldLocationsCache.
+	private static Field SYSTEM_URIS_FIELD = null;
+
+	@SuppressWarnings("unchecked")
+	private static boolean isSystemUri(String uri) {
+		try {
+			if (SYSTEM_URIS_FIELD == null) {
+				Field f = TldLocationsCache.class.getDeclaredField("systemUris");
+				f.setAccessible(true);
+				SYSTEM_URIS_FIELD = f;
+			}
+			HashSet<String> systemUris = (HashSet<String>)SYSTEM_URIS_FIELD.get(null);
+			return systemUris != null && systemUris.contains(uri);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	private static class ParsedFile {
+		private final long _length;
+		private final long _lastModified;
+		/** {uri, entryName} for each tld in the file. entryName is null for a tld file. */
+		private final String[][] _tlds;
+		ParsedFile(long length, long lastModified, String[][] tlds) {
+			_length = length;
+			_lastModified = lastModified;
+			_tlds = tlds;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+import org.eclipse.jetty.util.URIUtil;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * A jetty {@link Resource} inside a bundle packaged as a jar.
+ * <p>
+ * Backed by a {@link MappedJarFile}: the webapp is served straight from the
+ * jar without extracting it.
+ * The URL of the resource is the usual <code>jar:file:...!/path</code>
+ * so that the code that goes through the URL keeps working.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class BundleJarResource extends Resource {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient MappedJarFile _jar;
+	/** path inside the jar: no leading '/'; folders end with a '/'; "" for the root. */
+	private final String _path;
+	private final String _urlString;
+
+	/**
+	 * @param bundleJar The bundle's jar.
+	 * @param path The path inside the jar. Null or "" for the root of the jar.
+	 * @return The resource.
+	 * @throws IOException
+	 */
+	public static BundleJarResource newResource(File bundleJar, String path)
+	throws IOException {
+		BundleJarResource root = new BundleJarResource(MappedJarFile.open(bundleJar), "");
+		if (path == null || path.length() == 0 || path.equals("/")) {
+			return root;
+		}
+		return (BundleJarResource)root.addPath(path);
+	}
+
+	/**
+	 * @return The prefix of the urls of the entries in the jar;
+	 * for example <code>jar:file:/path/to/bundle.jar!</code>
+	 */
+	public static String getJarUrlPrefix(File bundleJar) throws MalformedURLException {
+		return "jar:" + bundleJar.toURI().toURL().toString() + "!";
+	}
+
+	private BundleJarResource(MappedJarFile jar, String path) throws MalformedURLException {
+		_jar = jar;
+		_path = path;
+		_urlString = getJarUrlPrefix(jar.getFile()) + "/" + path;
+	}
+
+	/**
+	 * @return The path inside the jar; "" for the root.
+	 */
+	public String getPathInJar() {
+		return _path;
+	}
+
+	@Override
+	public Resource addPath(String path) throws IOException, MalformedURLException {
+		if (path == null) {
+			throw new MalformedURLException();
+		}
+		path = URIUtil.canonicalPath(path);
+		if (path == null) {
+			throw new MalformedURLException();
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		if (path.length() == 0) {
+			return this;
+		}
+		String base = _path;
+		if (base.length() != 0 && !base.endsWith("/")) {
+			base = base + "/";
+		}
+		String newPath = base + path;
+		if (!newPath.endsWith("/") && _jar.isDirectory(newPath)) {
+			newPath = newPath + "/";
+		}
+		return new BundleJarResource(_jar, newPath);
+	}
+
+	@Override
+	public boolean exists() {
+		return _jar.exists(_path);
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return _path.length() == 0 || (_path.endsWith("/") && _jar.isDirectory(_path));
+	}
+
+	@Override
+	public long lastModified() {
+		return _jar.lastModified(_path);
+	}
+
+	@Override
+	public long length() {
+		return _jar.length(_path);
+	}
+
+	@Override
+	public URL getURL() {
+		try {
+			return new URL(_urlString);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return null: the resource is not on the file-system.
+	 */
+	@Override
+	public File getFile() throws IOException {
+		return null;
+	}
+
+	@Override
+	public String getName() {
+		return _urlString;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return _jar.getInputStream(_path);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException, SecurityException {
+		throw new IOException("Read-only resource " + _urlString);
+	}
+
+	@Override
+	public boolean delete() throws SecurityException {
+		throw new SecurityException("Read-only resource " + _urlString);
+	}
+
+	@Override
+	public boolean renameTo(Resource dest) throws SecurityException {
+		throw new SecurityException("Read-only resource " + _urlString);
+	}
+
+	@Override
+	public String[] list() {
+		List<String> children = _jar.list(isDirectory() ? _path : _path + "/");
+		if (children == null) {
+			return null;
+		}
+		return children.toArray(new String[children.size()]);
+	}
+
+	@Override
+	public boolean isContainedIn(Resource r) throws MalformedURLException {
+		return false;
+	}
+
+	@Override
+	public void release() {
+		//the mapped jar is shared.
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof BundleJarResource
+			&& ((BundleJarResource)o)._urlString.equals(_urlString);
+	}
+
+	@Override
+	public int hashCode() {
+		return _urlString.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return _urlString;
+	}
+
+}
@@ -0,0 +1,258 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * A jar file mapped in memory with its central directory indexed once.
+ * <p>
+ * The entries are streamed straight from the mapped buffer: nothing is extracted
+ * on the file-system. Only the stored and deflated entries are supported;
+ * zip64 archives are not: they are rejected with a ZipException as the corrupted ones.
+ * See {@link MappedZipReader}.
+ * </p>
+ * <p>
+ * The instances are shared: {@link #open(File)} returns the same instance
+ * for a given jar as long as it is not modified and still in use. The shared instances
+ * are weakly referenced: once the resources of an updated or uninstalled bundle are
+ * released, its jar is unmapped by the garbage collector.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class MappedJarFile {
+
+	/** absolute path -> mapped jar. Guarded by itself. */
+	private static final Map<String,WeakReference<MappedJarFile>> OPENED =
+		new HashMap<String,WeakReference<MappedJarFile>>();
+
+	/**
+	 * @param jar
+	 * @return The mapped jar; shared until the jar is modified.
+	 * @throws IOException
+	 */
+	public static MappedJarFile open(File jar) throws IOException {
+		String path = jar.getAbsolutePath();
+		synchronized (OPENED) {
+			WeakReference<MappedJarFile> ref = OPENED.get(path);
+			MappedJarFile mapped = ref != null ? ref.get() : null;
+			if (mapped != null && mapped._lastModified == jar.lastModified()
+					&& mapped._length == jar.length()) {
+				return mapped;
+			}
+			//forget the jars that are no longer used.
+			Iterator<WeakReference<MappedJarFile>> it = OPENED.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().get() == null) {
+					it.remove();
+				}
+			}
+			mapped = new MappedJarFile(jar);
+			OPENED.put(path, new WeakReference<MappedJarFile>(mapped));
+			return mapped;
+		}
+	}
+
+	/**
+	 * An entry of the central directory.
+	 */
+	static class Entry {
+		final String _name;
+		final int _method;
+		final long _time;
+		final long _compressedSize;
+		final long _size;
+		final int _localHeaderOffset;
+		/** resolved lazily from the local header. */
+		volatile int _dataOffset = -1;
+		Entry(String name, int method, long time, long compressedSize, long size,
+				int localHeaderOffset) {
+			_name = name;
+			_method = method;
+			_time = time;
+			_compressedSize = compressedSize;
+			_size = size;
+			_localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	private final File _file;
+	private final long _lastModified;
+	private final long _length;
+	private final ByteBuffer _buffer;
+	/** entry name -> entry. The names of the folders end with a '/' */
+	private final Map<String,Entry> _entries = new HashMap<String,Entry>();
+	/** folder name ("" for the root) -> the names of its children; folders end with a '/' */
+	private final Map<String,List<String>> _children = new HashMap<String,List<String>>();
+
+	private MappedJarFile(File jar) throws IOException {
+		_file = jar;
+		_lastModified = jar.lastModified();
+		_length = jar.length();
+		RandomAccessFile raf = new RandomAccessFile(jar, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			_buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			//the mapping remains valid once the channel is closed.
+			raf.close();
+		}
+		index();
+	}
+
+	public File getFile() {
+		return _file;
+	}
+
+	public long lastModified() {
+		return _lastModified;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the name is a file or a folder of the jar.
+	 * A folder can be named with or without the trailing '/'
+	 */
+	public boolean exists(String name) {
+		return name.length() == 0 || _entries.containsKey(name)
+			|| isDirectory(name);
+	}
+
+	/**
+	 * @param name
+	 * @return true if there is a folder with that name.
+	 */
+	public boolean isDirectory(String name) {
+		if (name.length() == 0) {
+			return true;
+		}
+		if (!name.endsWith("/")) {
+			name = name + "/";
+		}
+		return _children.containsKey(name);
+	}
+
+	/**
+	 * @param name A folder. Must end with a '/' unless it is the root.
+	 * @return The names of its children relative to the folder. Null if it is not a folder.
+	 */
+	public List<String> list(String name) {
+		return _children.get(name);
+	}
+
+	/**
+	 * @return The size of the entry or -1 if there is no such file.
+	 */
+	public long length(String name) {
+		Entry e = _entries.get(name);
+		return e != null && !name.endsWith("/") ? e._size : -1;
+	}
+
+	/**
+	 * @return The modification time of the entry or the one of the jar.
+	 */
+	public long lastModified(String name) {
+		Entry e = _entries.get(name);
+		return e != null ? e._time : _lastModified;
+	}
+
+	/**
+	 * @param name
+	 * @return A stream on the entry. Reads directly the mapped buffer.
+	 * @throws IOException
+	 */
+	public InputStream getInputStream(String name) throws IOException {
+		Entry e = _entries.get(name);
+		if (e == null || name.endsWith("/")) {
+			throw new IOException("No such entry " + name + " in " + _file);
+		}
+		return MappedZipReader.getInputStream(getData(e), e._method, name, _file);
+	}
+
+	/**
+	 * @return A read-only view on the compressed data of the entry.
+	 */
+	private ByteBuffer getData(Entry e) throws IOException {
+		int dataOffset = e._dataOffset;
+		if (dataOffset == -1) {
+			dataOffset = MappedZipReader.getDataOffset(_buffer, e._localHeaderOffset,
+					e._compressedSize, e._name, _file);
+			e._dataOffset = dataOffset;
+		}
+		return MappedZipReader.getData(_buffer, dataOffset, e._compressedSize);
+	}
+
+	/**
+	 * Reads the central directory once.
+	 * @throws ZipException when the jar is not a valid zip or is a zip64 archive.
+	 */
+	private void index() throws IOException {
+		_children.put("", new ArrayList<String>());
+		MappedZipReader.readCentralDirectory(_buffer, _file, new MappedZipReader.EntryHandler() {
+			public void entry(String name, int method, int dosDateTime, long compressedSize,
+					long size, int localHeaderOffset) {
+				_entries.put(name, new Entry(name, method, MappedZipReader.dosToJavaTime(dosDateTime),
+						compressedSize, size, localHeaderOffset));
+				addToParents(name);
+			}
+		});
+		for (List<String> children : _children.values()) {
+			Collections.sort(children);
+		}
+	}
+
+	/**
+	 * Jars don't always contain the entries for their folders:
+	 * deduce them from the names of the files.
+	 */
+	private void addToParents(String name) {
+		if (name.endsWith("/") && !_children.containsKey(name)) {
+			_children.put(name, new ArrayList<String>());
+		}
+		String child = name;
+		while (child.length() != 0) {
+			int slash = child.lastIndexOf('/', child.length() - 2);
+			String parent = slash == -1 ? "" : child.substring(0, slash + 1);
+			List<String> siblings = _children.get(parent);
+			boolean parentKnown = siblings != null;
+			if (!parentKnown) {
+				siblings = new ArrayList<String>();
+				_children.put(parent, siblings);
+			}
+			String childName = child.substring(parent.length());
+			if (!siblings.contains(childName)) {
+				siblings.add(childName);
+			}
+			if (parentKnown) {
+				return;
+			}
+			child = parent;
+		}
+	}
+
+}
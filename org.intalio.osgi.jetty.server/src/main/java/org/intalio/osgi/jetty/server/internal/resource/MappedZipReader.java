@@ -0,0 +1,261 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the zip archives mapped in memory: their central directory and the data of
+ * their entries, without extracting anything on the file-system.
+ * <p>
+ * Only the stored and deflated entries can be read; zip64 archives are not supported:
+ * they are rejected with a ZipException as the corrupted ones.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class MappedZipReader {
+
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_HEADER_SIG = 0x06054b50;
+	private static final int END_HEADER_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+
+	/**
+	 * Receives the entries of a central directory.
+	 */
+	public interface EntryHandler {
+		/**
+		 * @param name The name of the entry; the folders end with a '/'
+		 * @param method The compression method.
+		 * @param dosDateTime The modification date in the high 16 bits and the time
+		 * in the low ones: see {@link MappedZipReader#dosToJavaTime(int)}
+		 * @param compressedSize
+		 * @param size
+		 * @param localHeaderOffset
+		 */
+		void entry(String name, int method, int dosDateTime, long compressedSize, long size,
+				int localHeaderOffset) throws IOException;
+	}
+
+	/**
+	 * Reads the central directory.
+	 * @param buffer The zip mapped in memory.
+	 * @param zip The file mapped; for the error messages.
+	 * @param handler Receives the entries in their order in the central directory.
+	 * @throws ZipException when it is not a valid zip or it is a zip64 archive.
+	 */
+	public static void readCentralDirectory(ByteBuffer buffer, File zip, EntryHandler handler)
+	throws IOException {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int end = -1;
+		int min = Math.max(0, b.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+		for (int i = b.limit() - END_HEADER_SIZE; i >= min; i--) {
+			if (b.getInt(i) == END_HEADER_SIG) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new ZipException("Not a zip file: " + zip);
+		}
+		int nbEntries = b.getShort(end + 10) & 0xffff;
+		long start = b.getInt(end + 16) & 0xffffffffL;
+		if (nbEntries == 0xffff || start == 0xffffffffL) {
+			throw new ZipException("zip64 archives are not supported: " + zip);
+		}
+		if (start > end) {
+			throw new ZipException("Invalid central directory offset in " + zip);
+		}
+		int offset = (int)start;
+		byte[] nameBuf = new byte[256];
+		for (int i = 0; i < nbEntries; i++) {
+			if (offset > end - CENTRAL_HEADER_SIZE || b.getInt(offset) != CENTRAL_HEADER_SIG) {
+				throw new ZipException("Invalid central directory in " + zip);
+			}
+			int method = b.getShort(offset + 10) & 0xffff;
+			int dosDateTime = b.getInt(offset + 12);
+			long compressedSize = b.getInt(offset + 20) & 0xffffffffL;
+			long size = b.getInt(offset + 24) & 0xffffffffL;
+			int nameLength = b.getShort(offset + 28) & 0xffff;
+			int extraLength = b.getShort(offset + 30) & 0xffff;
+			int commentLength = b.getShort(offset + 32) & 0xffff;
+			long localHeaderOffset = b.getInt(offset + 42) & 0xffffffffL;
+			if (compressedSize == 0xffffffffL || size == 0xffffffffL
+					|| localHeaderOffset == 0xffffffffL) {
+				throw new ZipException("zip64 archives are not supported: " + zip);
+			}
+			if (localHeaderOffset >= start || offset + CENTRAL_HEADER_SIZE + nameLength > end) {
+				throw new ZipException("Invalid central directory in " + zip);
+			}
+			if (nameBuf.length < nameLength) {
+				nameBuf = new byte[nameLength];
+			}
+			b.position(offset + CENTRAL_HEADER_SIZE);
+			b.get(nameBuf, 0, nameLength);
+			String name = new String(nameBuf, 0, nameLength, "UTF-8");
+			handler.entry(name, method, dosDateTime, compressedSize, size, (int)localHeaderOffset);
+			offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * @param buffer The zip mapped in memory.
+	 * @param localHeaderOffset
+	 * @param compressedSize
+	 * @param name The name of the entry; for the error messages.
+	 * @param zip The file mapped; for the error messages.
+	 * @return The offset of the compressed data of the entry.
+	 * @throws ZipException when the local header or the data are not inside the zip.
+	 */
+	public static int getDataOffset(ByteBuffer buffer, int localHeaderOffset,
+			long compressedSize, String name, File zip) throws ZipException {
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (localHeaderOffset > b.limit() - LOCAL_HEADER_SIZE
+				|| b.getInt(localHeaderOffset) != LOCAL_HEADER_SIG) {
+			throw new ZipException("Invalid local header for " + name + " in " + zip);
+		}
+		int nameLength = b.getShort(localHeaderOffset + 26) & 0xffff;
+		int extraLength = b.getShort(localHeaderOffset + 28) & 0xffff;
+		int dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+		if (dataOffset + compressedSize > b.limit()) {
+			throw new ZipException("Truncated entry " + name + " in " + zip);
+		}
+		return dataOffset;
+	}
+
+	/**
+	 * @return A read-only view on the compressed data of an entry.
+	 */
+	public static ByteBuffer getData(ByteBuffer buffer, int dataOffset, long compressedSize) {
+		ByteBuffer data = buffer.duplicate();
+		data.position(dataOffset);
+		data.limit((int)(dataOffset + compressedSize));
+		return data.slice();
+	}
+
+	/**
+	 * @param data The compressed data of an entry.
+	 * @param method The compression method of the entry.
+	 * @param name The name of the entry; for the error messages.
+	 * @param zip The file mapped; for the error messages.
+	 * @return A stream on the uncompressed content. Reads directly the buffer.
+	 * @throws ZipException when the compression method is not supported.
+	 */
+	public static InputStream getInputStream(ByteBuffer data, int method, String name,
+			File zip) throws ZipException {
+		switch (method) {
+		case STORED:
+			return new ByteBufferInputStream(data, false);
+		case DEFLATED:
+			final Inflater inflater = new Inflater(true);
+			//the extra dummy byte is required by the 'nowrap' inflater.
+			return new InflaterInputStream(new ByteBufferInputStream(data, true), inflater) {
+				private boolean _closed = false;
+				@Override
+				public void close() throws IOException {
+					if (!_closed) {
+						_closed = true;
+						inflater.end();
+					}
+					super.close();
+				}
+			};
+		default:
+			throw new ZipException("Unsupported compression method " + method
+					+ " for " + name + " in " + zip);
+		}
+	}
+
+	/**
+	 * @param dosDateTime The date in the high 16 bits and the time in the low ones.
+	 * @return The time in milliseconds.
+	 */
+	public static long dosToJavaTime(int dosDateTime) {
+		int dosDate = dosDateTime >>> 16;
+		int dosTime = dosDateTime & 0xffff;
+		Calendar cal = new GregorianCalendar(
+				((dosDate >> 9) & 0x7f) + 1980,
+				((dosDate >> 5) & 0x0f) - 1,
+				dosDate & 0x1f,
+				(dosTime >> 11) & 0x1f,
+				(dosTime >> 5) & 0x3f,
+				(dosTime << 1) & 0x3e);
+		return cal.getTimeInMillis();
+	}
+
+	/**
+	 * Streams a buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer _data;
+		private boolean _dummyByte;
+		ByteBufferInputStream(ByteBuffer data, boolean dummyByte) {
+			_data = data;
+			_dummyByte = dummyByte;
+		}
+		@Override
+		public int read() throws IOException {
+			if (_data.hasRemaining()) {
+				return _data.get() & 0xff;
+			}
+			if (_dummyByte) {
+				_dummyByte = false;
+				return 0;
+			}
+			return -1;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int remaining = _data.remaining();
+			if (remaining == 0) {
+				if (_dummyByte) {
+					_dummyByte = false;
+					b[off] = 0;
+					return 1;
+				}
+				return -1;
+			}
+			int n = Math.min(len, remaining);
+			_data.get(b, off, n);
+			return n;
+		}
+		@Override
+		public int available() {
+			return _data.remaining();
+		}
+		@Override
+		public long skip(long n) {
+			int skipped = (int)Math.min(n, _data.remaining());
+			_data.position(_data.position() + skipped);
+			return skipped;
+		}
+	}
+
+}
@@ -0,0 +1,511 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.threadpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+
+/**
+ * A jetty ThreadPool that runs each job on its own virtual thread (java 21 and later).
+ * <p>
+ * Meant for webapps that block on JNDI DataSources, mail and other remote calls:
+ * a blocked request holds a virtual thread instead of one of the threads of a
+ * QueuedThreadPool.
+ * </p>
+ * <p>
+ * The number of jobs running at the same time is bounded by maxThreads;
+ * the other jobs are queued. {@link #isLowOnThreads()} keeps the meaning it has
+ * for a QueuedThreadPool: all the threads are busy and jobs are waiting.
+ * The connectors rely on it to switch to their low resources idle time.
+ * </p>
+ * <p>
+ * A virtual thread that blocks while it is pinned to its carrier thread
+ * (inside a synchronized block or a native frame) blocks the carrier too.
+ * When the JVM supports it, those events are followed with a JFR stream of
+ * <code>jdk.VirtualThreadPinned</code> events; they are counted per calling site.
+ * The JFR events are those of all the virtual threads of the JVM.
+ * </p>
+ * <p>
+ * Selected with the system property <code>jetty.threadpool=virtual</code>
+ * or directly in etc/jetty.xml. See {@link #configure(Server)}.
+ * Exposed as an MBean: see jmx/VirtualThreadPool-mbean.properties
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+	/** System property: "virtual" for a VirtualThreadPool. */
+	public static final String SYS_PROP_THREADPOOL = "jetty.threadpool";
+	/** System property: maximum number of jobs running at the same time. */
+	public static final String SYS_PROP_MAX_THREADS = "jetty.threadpool.virtual.maxThreads";
+	/** System property: the pinned events shorter than this number of milliseconds
+	 * are ignored. Negative to not follow them. */
+	public static final String SYS_PROP_PINNED_THRESHOLD = "jetty.threadpool.virtual.pinnedThreshold";
+
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+	/** maximum number of calling sites of pinned events counted. */
+	private static final int MAX_PINNED_SITES = 100;
+
+	private String _name = "jetty-vt";
+	private int _maxThreads = 10000;
+	private long _pinnedThreshold = 20;
+	private int _maxStopTime = 100;
+	private ThreadFactory _factory;
+
+	private final ConcurrentLinkedQueue<Runnable> _jobs = new ConcurrentLinkedQueue<Runnable>();
+	/** the size of the queue: ConcurrentLinkedQueue#size() is not constant time. */
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final AtomicInteger _active = new AtomicInteger();
+	private final AtomicInteger _activePeak = new AtomicInteger();
+	private final AtomicLong _dispatched = new AtomicLong();
+	private final AtomicLong _pinnedEvents = new AtomicLong();
+	private final AtomicLong _pinnedNanos = new AtomicLong();
+	private final AtomicLong _pinnedMaxNanos = new AtomicLong();
+	private final Map<String,AtomicLong> _pinnedSites = new ConcurrentHashMap<String,AtomicLong>();
+	/** the jdk.jfr.consumer.RecordingStream or null. */
+	private Object _pinnedStream;
+	private final Object _joinLock = new Object();
+
+	/** runs the queued jobs until there are none left. */
+	private final Runnable _worker = new Runnable() {
+		public void run() {
+			try {
+				Runnable job;
+				while ((job = poll()) != null) {
+					try {
+						job.run();
+					} catch (Throwable t) {
+						System.err.println("Warn: job failed on " + Thread.currentThread());
+						t.printStackTrace();
+					}
+				}
+			} finally {
+				_active.decrementAndGet();
+				//a job queued while this worker was exiting.
+				startWorker();
+			}
+		}
+	};
+
+	public VirtualThreadPool() {
+		setMaxThreads((int)SystemPropertiesHelper.getLongProperty(SYS_PROP_MAX_THREADS, _maxThreads));
+		_pinnedThreshold = SystemPropertiesHelper.getLongProperty(SYS_PROP_PINNED_THRESHOLD,
+				_pinnedThreshold);
+	}
+
+	/**
+	 * Replaces the thread pool of the server by a VirtualThreadPool when
+	 * the system property <code>jetty.threadpool</code> is "virtual".
+	 * <p>
+	 * When the JVM does not support virtual threads, a VirtualThreadPool
+	 * configured by etc/jetty.xml is replaced by a QueuedThreadPool.
+	 * </p>
+	 * Must be called before the server is started.
+	 * @param server
+	 */
+	public static void configure(Server server) {
+		boolean configured = server.getThreadPool() instanceof VirtualThreadPool;
+		if (!configured && !"virtual".equalsIgnoreCase(System.getProperty(SYS_PROP_THREADPOOL, "").trim())) {
+			return;
+		}
+		if (!isSupported()) {
+			System.err.println("Warn: virtual threads are not supported by this JVM;"
+					+ " using a QueuedThreadPool.");
+			if (configured) {
+				QueuedThreadPool pool = new QueuedThreadPool();
+				pool.setMinThreads(10);
+				pool.setMaxThreads(200);
+				server.setThreadPool(pool);
+			}
+			return;
+		}
+		if (!configured) {
+			server.setThreadPool(new VirtualThreadPool());
+		}
+	}
+
+	/**
+	 * @return true when this JVM can create virtual threads.
+	 */
+	public static boolean isSupported() {
+		return newVirtualThreadFactory("jetty-vt") != null;
+	}
+
+	public boolean dispatch(Runnable job) {
+		if (!isRunning()) {
+			return false;
+		}
+		_dispatched.incrementAndGet();
+		_jobs.offer(job);
+		_queued.incrementAndGet();
+		startWorker();
+		return true;
+	}
+
+	public void join() throws InterruptedException {
+		synchronized (_joinLock) {
+			while (isRunning()) {
+				_joinLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of jobs running.
+	 */
+	public int getThreads() {
+		return _active.get();
+	}
+
+	/**
+	 * @return 0: a virtual thread does not wait for jobs.
+	 */
+	public int getIdleThreads() {
+		return 0;
+	}
+
+	/**
+	 * @return true when maxThreads jobs are running and other jobs are waiting.
+	 */
+	public boolean isLowOnThreads() {
+		return _active.get() >= _maxThreads && _queued.get() > 0;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		_factory = newVirtualThreadFactory(_name);
+		if (_factory == null) {
+			throw new IllegalStateException("Virtual threads are not supported by this JVM");
+		}
+		if (_pinnedThreshold >= 0) {
+			_pinnedStream = startPinnedStream();
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		long deadline = System.currentTimeMillis() + _maxStopTime;
+		while (_active.get() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		if (_active.get() > 0) {
+			System.err.println("Warn: " + _name + " stopped with "
+					+ _active.get() + " jobs still running.");
+		}
+		_jobs.clear();
+		_queued.set(0);
+		if (_pinnedStream != null) {
+			try {
+				_pinnedStream.getClass().getMethod("close").invoke(_pinnedStream);
+			} catch (Throwable t) {
+				//ignore.
+			}
+			_pinnedStream = null;
+		}
+		synchronized (_joinLock) {
+			_joinLock.notifyAll();
+		}
+	}
+
+	private Runnable poll() {
+		Runnable job = _jobs.poll();
+		if (job != null) {
+			_queued.decrementAndGet();
+		}
+		return job;
+	}
+
+	/**
+	 * Starts a virtual thread for the queued jobs unless maxThreads are already running.
+	 */
+	private void startWorker() {
+		while (true) {
+			int active = _active.get();
+			if (active >= _maxThreads || _queued.get() <= 0 || _factory == null) {
+				return;
+			}
+			if (_active.compareAndSet(active, active + 1)) {
+				int peak;
+				while ((peak = _activePeak.get()) <= active
+						&& !_activePeak.compareAndSet(peak, active + 1)) {
+					//retry.
+				}
+				break;
+			}
+		}
+		try {
+			_factory.newThread(_worker).start();
+		} catch (Throwable t) {
+			_active.decrementAndGet();
+			System.err.println("Warn: unable to start a virtual thread");
+			t.printStackTrace();
+		}
+	}
+
+	/**
+	 * Thread.ofVirtual().name(name + "-", 0).factory()
+	 * @return null when virtual threads are not supported.
+	 */
+	private static ThreadFactory newVirtualThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+				.invoke(builder, name + "-", 0L);
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		} catch (Throwable t) {
+			//before java 21 or a preview feature that is not enabled.
+			return null;
+		}
+	}
+
+	/**
+	 * Follows the jdk.VirtualThreadPinned events with a jdk.jfr.consumer.RecordingStream.
+	 * @return The stream or null if JFR is not available.
+	 */
+	private Object startPinnedStream() {
+		try {
+			Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+			Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+			Class<?> durationClass = Class.forName("java.time.Duration");
+			Object duration = durationClass.getMethod("ofMillis", long.class).invoke(null, _pinnedThreshold);
+			Object stream = streamClass.getConstructor().newInstance();
+			Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+			Class.forName("jdk.jfr.EventSettings")
+				.getMethod("withThreshold", durationClass).invoke(settings, duration);
+			Object consumer = Proxy.newProxyInstance(consumerClass.getClassLoader(),
+					new Class<?>[] {consumerClass}, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if ("accept".equals(method.getName())) {
+						pinned(args[0]);
+						return null;
+					} else if ("hashCode".equals(method.getName())) {
+						return System.identityHashCode(proxy);
+					} else if ("equals".equals(method.getName())) {
+						return proxy == args[0];
+					}
+					return "pinned events of " + _name;
+				}
+			});
+			streamClass.getMethod("onEvent", String.class, consumerClass)
+				.invoke(stream, PINNED_EVENT, consumer);
+			streamClass.getMethod("startAsync").invoke(stream);
+			return stream;
+		} catch (Throwable t) {
+			System.err.println("Warn: the pinned virtual threads are not followed: " + t);
+			return null;
+		}
+	}
+
+	/**
+	 * Counts a jdk.jfr.consumer.RecordedEvent.
+	 */
+	private void pinned(Object event) {
+		long nanos = 0;
+		String site = null;
+		try {
+			Object duration = event.getClass().getMethod("getDuration").invoke(event);
+			nanos = ((Long)duration.getClass().getMethod("toNanos").invoke(duration)).longValue();
+			site = getPinnedSite(event);
+		} catch (Throwable t) {
+			//counted without its duration.
+		}
+		_pinnedEvents.incrementAndGet();
+		_pinnedNanos.addAndGet(nanos);
+		long max;
+		while ((max = _pinnedMaxNanos.get()) < nanos && !_pinnedMaxNanos.compareAndSet(max, nanos)) {
+			//retry.
+		}
+		if (site != null) {
+			AtomicLong count = _pinnedSites.get(site);
+			if (count == null && _pinnedSites.size() < MAX_PINNED_SITES) {
+				_pinnedSites.put(site, count = new AtomicLong());
+			}
+			if (count != null) {
+				count.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return The first frame of the stack of the event that is not in the JDK.
+	 */
+	private static String getPinnedSite(Object event) throws Exception {
+		Object stack = event.getClass().getMethod("getStackTrace").invoke(event);
+		if (stack == null) {
+			return null;
+		}
+		List<?> frames = (List<?>)stack.getClass().getMethod("getFrames").invoke(stack);
+		String first = null;
+		for (Object frame : frames) {
+			Object method = frame.getClass().getMethod("getMethod").invoke(frame);
+			Object type = method.getClass().getMethod("getType").invoke(method);
+			String typeName = (String)type.getClass().getMethod("getName").invoke(type);
+			String site = typeName + "." + method.getClass().getMethod("getName").invoke(method);
+			if (first == null) {
+				first = site;
+			}
+			if (!typeName.startsWith("java.") && !typeName.startsWith("jdk.")
+					&& !typeName.startsWith("sun.")) {
+				return site;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Forgets the peak of jobs running and the pinned events counted so far.
+	 */
+	public void reset() {
+		_activePeak.set(_active.get());
+		_dispatched.set(0);
+		_pinnedEvents.set(0);
+		_pinnedNanos.set(0);
+		_pinnedMaxNanos.set(0);
+		_pinnedSites.clear();
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * @param name The prefix of the names of the virtual threads.
+	 */
+	public void setName(String name) {
+		_name = name;
+	}
+
+	public int getMaxThreads() {
+		return _maxThreads;
+	}
+
+	/**
+	 * @param maxThreads Maximum number of jobs running at the same time.
+	 */
+	public void setMaxThreads(int maxThreads) {
+		_maxThreads = Math.max(maxThreads, 1);
+	}
+
+	public long getPinnedThreshold() {
+		return _pinnedThreshold;
+	}
+
+	/**
+	 * @param pinnedThreshold Milliseconds; negative to not follow the pinned events.
+	 * Taken into account when the pool is started.
+	 */
+	public void setPinnedThreshold(long pinnedThreshold) {
+		_pinnedThreshold = pinnedThreshold;
+	}
+
+	public int getMaxStopTime() {
+		return _maxStopTime;
+	}
+
+	/**
+	 * @param maxStopTime Milliseconds to wait for the running jobs when stopping.
+	 */
+	public void setMaxStopTime(int maxStopTime) {
+		_maxStopTime = maxStopTime;
+	}
+
+	/**
+	 * @return The number of jobs waiting for one of the maxThreads.
+	 */
+	public int getQueueSize() {
+		return Math.max(_queued.get(), 0);
+	}
+
+	/**
+	 * @return The largest number of jobs that ran at the same time.
+	 */
+	public int getThreadsPeak() {
+		return _activePeak.get();
+	}
+
+	public long getDispatched() {
+		return _dispatched.get();
+	}
+
+	/**
+	 * @return true when the pinned events are followed.
+	 */
+	public boolean isPinnedMonitored() {
+		return _pinnedStream != null;
+	}
+
+	public long getPinnedEvents() {
+		return _pinnedEvents.get();
+	}
+
+	/**
+	 * @return Milliseconds spent pinned, in total.
+	 */
+	public long getPinnedTime() {
+		return _pinnedNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return Milliseconds of the longest pinned event.
+	 */
+	public long getPinnedTimeMax() {
+		return _pinnedMaxNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return "site count" for each calling site of the pinned events; the most frequent first.
+	 */
+	public String[] getPinnedSites() {
+		List<Map.Entry<String,AtomicLong>> entries =
+			new ArrayList<Map.Entry<String,AtomicLong>>(_pinnedSites.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String,AtomicLong>>() {
+			public int compare(Map.Entry<String,AtomicLong> o1, Map.Entry<String,AtomicLong> o2) {
+				long c1 = o1.getValue().get();
+				long c2 = o2.getValue().get();
+				return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+			}
+		});
+		String[] res = new String[entries.size()];
+		int i = 0;
+		for (Map.Entry<String,AtomicLong> e : entries) {
+			res[i++] = e.getKey() + " " + e.getValue().get();
+		}
+		return res;
+	}
+
+	@Override
+	public String toString() {
+		return _name + "{" + getThreads() + "/" + _maxThreads + ",queued=" + getQueueSize()
+			+ ",pinned=" + getPinnedEvents() + "}";
+	}
+
+}
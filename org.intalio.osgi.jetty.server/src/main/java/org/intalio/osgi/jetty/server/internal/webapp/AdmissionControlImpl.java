@@ -0,0 +1,271 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.intalio.osgi.jetty.server.management.AdmissionControl;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+import org.osgi.framework.Bundle;
+
+/**
+ * Decides whether a request is admitted from the time it waited in the queue of the
+ * thread pool; CoDel style.
+ * <p>
+ * The shortest wait of each interval is tracked. When it is above the target, a standing
+ * queue has built up: the requests that waited longer than the target are shed until
+ * an interval goes by with a wait under the target. Otherwise a request is only shed when
+ * it waited longer than a whole interval. The limit is multiplied by the weight of the
+ * context of the request: read from the manifest header <code>Jetty-AdmissionWeight</code>;
+ * 1 by default; 0 for a context that is never shed.
+ * </p>
+ * <p>
+ * System properties, in milliseconds:
+ * <ul>
+ * <li><code>jetty.admission.target</code>: defaults to 5. 0 or less for no admission control.</li>
+ * <li><code>jetty.admission.interval</code>: defaults to 100.</li>
+ * </ul>
+ * The getters that return strings are the attributes of the MBean:
+ * see jmx/AdmissionControlImpl-mbean.properties
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class AdmissionControlImpl implements AdmissionControl {
+
+	/** Manifest header: the weight of the context. */
+	public static final String HEADER_WEIGHT = "Jetty-AdmissionWeight";
+	/** System property: the acceptable wait in milliseconds. */
+	public static final String SYS_PROP_TARGET = "jetty.admission.target";
+	/** System property: milliseconds between the checks of the shortest wait. */
+	public static final String SYS_PROP_INTERVAL = "jetty.admission.interval";
+
+	private final long _target;
+	private final long _interval;
+	private final long _targetNanos;
+	private final long _intervalNanos;
+
+	/** System.nanoTime() when the current interval started. */
+	private final AtomicLong _intervalStart = new AtomicLong(System.nanoTime());
+	/** the shortest wait of the current interval. */
+	private final AtomicLong _intervalMin = new AtomicLong(Long.MAX_VALUE);
+	private volatile long _lastIntervalMin;
+	private volatile boolean _overloaded = false;
+
+	private final StripedCounters _counters = new StripedCounters(2);
+	private static final int ADMITTED = 0;
+	private static final int SHED = 1;
+	private final ConcurrentHashMap<String,AtomicLong> _shedByContext =
+		new ConcurrentHashMap<String,AtomicLong>();
+	/** context path -> weight; only the contexts that are not 1. */
+	private final ConcurrentHashMap<String,Integer> _weights =
+		new ConcurrentHashMap<String,Integer>();
+
+	AdmissionControlImpl() {
+		this(SystemPropertiesHelper.getLongProperty(SYS_PROP_TARGET, 5),
+				SystemPropertiesHelper.getLongProperty(SYS_PROP_INTERVAL, 100));
+	}
+
+	/**
+	 * @param target Milliseconds.
+	 * @param interval Milliseconds.
+	 */
+	AdmissionControlImpl(long target, long interval) {
+		_target = target;
+		_interval = Math.max(interval, 1);
+		_targetNanos = target * 1000000;
+		_intervalNanos = _interval * 1000000;
+	}
+
+	/**
+	 * @return false when there is no admission control.
+	 */
+	boolean isEnabled() {
+		return _target > 0;
+	}
+
+	/**
+	 * @param sojourn Nanoseconds the request waited in the queue.
+	 * @param target The target of the request.
+	 * @return true if it is admitted; false if it must be shed.
+	 */
+	boolean admit(long sojourn, String target) {
+		long now = System.nanoTime();
+		long min;
+		while ((min = _intervalMin.get()) > sojourn && !_intervalMin.compareAndSet(min, sojourn)) {
+			//retry.
+		}
+		long start = _intervalStart.get();
+		if (now - start >= _intervalNanos && _intervalStart.compareAndSet(start, now)) {
+			min = _intervalMin.getAndSet(Long.MAX_VALUE);
+			_lastIntervalMin = min == Long.MAX_VALUE ? 0 : min;
+			_overloaded = min != Long.MAX_VALUE && min > _targetNanos;
+		}
+		long limit = _overloaded ? _targetNanos : _intervalNanos;
+		if (sojourn <= limit) {
+			_counters.increment(ADMITTED);
+			return true;
+		}
+		//only look for the context of the requests that might be shed.
+		String contextPath = findContextPath(target);
+		Integer weight = contextPath != null ? _weights.get(contextPath) : null;
+		if (weight != null && (weight == 0 || sojourn <= limit * weight)) {
+			_counters.increment(ADMITTED);
+			return true;
+		}
+		_counters.increment(SHED);
+		String key = contextPath != null ? contextPath : "/";
+		AtomicLong shed = _shedByContext.get(key);
+		if (shed == null) {
+			AtomicLong existing = _shedByContext.putIfAbsent(key, shed = new AtomicLong());
+			if (existing != null) {
+				shed = existing;
+			}
+		}
+		shed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return The longest context path with a weight that is a prefix of the target.
+	 */
+	private String findContextPath(String target) {
+		if (_weights.isEmpty() || target == null) {
+			return null;
+		}
+		String path = target;
+		while (true) {
+			if (_weights.containsKey(path)) {
+				return path;
+			}
+			int slash = path.lastIndexOf('/');
+			if (slash <= 0) {
+				return _weights.containsKey("/") ? "/" : null;
+			}
+			path = path.substring(0, slash);
+		}
+	}
+
+	/**
+	 * @param contextPath
+	 * @param weight
+	 */
+	void setWeight(String contextPath, int weight) {
+		if (weight == 1) {
+			_weights.remove(contextPath);
+		} else {
+			_weights.put(contextPath, weight);
+		}
+	}
+
+	/**
+	 * The context path is undeployed.
+	 * @param contextPath
+	 */
+	void remove(String contextPath) {
+		_weights.remove(contextPath);
+	}
+
+	/**
+	 * @param contributor
+	 * @return The weight declared by the bundle; 1 by default.
+	 */
+	static int getWeight(Bundle contributor) {
+		Object header = contributor.getHeaders().get(HEADER_WEIGHT);
+		if (header == null) {
+			return 1;
+		}
+		try {
+			return Math.max(Integer.parseInt(header.toString().trim()), 0);
+		} catch (NumberFormatException nfe) {
+			System.err.println("Warn: invalid " + HEADER_WEIGHT + " '" + header + "' for "
+					+ contributor.getSymbolicName());
+			return 1;
+		}
+	}
+
+	public long getTarget() {
+		return _target;
+	}
+
+	public long getInterval() {
+		return _interval;
+	}
+
+	public boolean isOverloaded() {
+		return _overloaded;
+	}
+
+	public long getAdmitted() {
+		return _counters.get(ADMITTED);
+	}
+
+	public long getShed() {
+		return _counters.get(SHED);
+	}
+
+	public Map<String,Long> getShedByContext() {
+		Map<String,Long> res = new TreeMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> e : _shedByContext.entrySet()) {
+			res.put(e.getKey(), e.getValue().get());
+		}
+		return res;
+	}
+
+	public Map<String,Integer> getWeights() {
+		return new TreeMap<String,Integer>(_weights);
+	}
+
+	public void reset() {
+		_counters.reset();
+		_shedByContext.clear();
+	}
+
+	/**
+	 * @return MBean attribute: milliseconds; the shortest wait of the last interval.
+	 */
+	public double getLastIntervalMinWait() {
+		return _lastIntervalMin / 1000000d;
+	}
+
+	/**
+	 * @return MBean attribute: "contextPath shed" for each context.
+	 */
+	public String[] getShedByContextSummary() {
+		return summary(getShedByContext());
+	}
+
+	/**
+	 * @return MBean attribute: "contextPath weight" for each context that does not weigh 1.
+	 */
+	public String[] getWeightsSummary() {
+		return summary(getWeights());
+	}
+
+	private static String[] summary(Map<String,?> map) {
+		String[] res = new String[map.size()];
+		int i = 0;
+		for (Map.Entry<String,?> e : map.entrySet()) {
+			res[i++] = e.getKey() + " " + e.getValue();
+		}
+		return res;
+	}
+
+	@Override
+	public String toString() {
+		return "admitted=" + getAdmitted() + " shed=" + getShed()
+			+ (_overloaded ? " overloaded" : "");
+	}
+
+}
@@ -0,0 +1,80 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Inserted in front of the ContextRouter: sheds with a 503 the requests
+ * that waited too long in the queue of the thread pool.
+ * <p>
+ * The wait is measured by the {@link SojournThreadPool} that wraps the thread pool
+ * of the server; the decision is made by the {@link AdmissionControlImpl}.
+ * Only the first dispatch of a request is checked: a resumed request is never shed.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class AdmissionHandler extends HandlerWrapper {
+
+	private final AdmissionControlImpl _control;
+
+	AdmissionHandler(AdmissionControlImpl control) {
+		_control = control;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		if (baseRequest.getAsyncContinuation().isInitial()
+				&& !_control.admit(SojournThreadPool.takeSojourn(), target)) {
+			response.setHeader("Retry-After", String.valueOf(
+					Math.max(_control.getInterval() / 1000, 1)));
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			baseRequest.setHandled(true);
+			return;
+		}
+		super.handle(target, baseRequest, request, response);
+	}
+
+	/**
+	 * Wraps the thread pool of the server and inserts the admission control in front of
+	 * the handler. Must be called before the server is started.
+	 * @param server
+	 * @param handler The handler in front of the contexts.
+	 * @param control
+	 * @return The AdmissionHandler or null if the handler was not found in the
+	 * handlers of the server.
+	 */
+	static AdmissionHandler insert(Server server, Handler handler, AdmissionControlImpl control) {
+		AdmissionHandler admission = new AdmissionHandler(control);
+		if (!HandlerTreeHelper.insertInFront(server, handler, admission)) {
+			return null;
+		}
+		if (!(server.getThreadPool() instanceof SojournThreadPool)) {
+			SojournThreadPool pool = new SojournThreadPool(server.getThreadPool());
+			server.setThreadPool(pool);
+			//the wrapped pool stays visible as an MBean.
+			server.getContainer().addBean(pool.getDelegate());
+		}
+		return admission;
+	}
+
+}
@@ -0,0 +1,275 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.osgi.framework.Bundle;
+
+/**
+ * Bounds the number of threads of the server a context can use at the same time.
+ * <p>
+ * A permit is held while a request is dispatched to the context; until it completes
+ * if the context suspends it. A request that finds all the permits taken is suspended
+ * with a jetty continuation: it does not hold a thread while it waits; it is resumed
+ * when a permit is released. When the queue is full or when the request waited longer
+ * than the queue timeout, it is rejected with a 503.
+ * </p>
+ * <p>
+ * Declared in the manifest of the bundle:
+ * <ul>
+ * <li><code>Jetty-MaxConcurrency</code>: the number of permits.</li>
+ * <li><code>Jetty-MaxQueued</code>: the number of requests waiting for a permit.
+ * Defaults to 0: rejected right away.</li>
+ * <li><code>Jetty-MaxQueuedTimeout</code>: milliseconds a request waits for a permit.
+ * Defaults to 30000.</li>
+ * </ul>
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class Bulkhead {
+
+	/** Manifest header: the number of requests of the context handled at the same time. */
+	public static final String HEADER_MAX_CONCURRENCY = "Jetty-MaxConcurrency";
+	/** Manifest header: the number of requests waiting for a permit. */
+	public static final String HEADER_MAX_QUEUED = "Jetty-MaxQueued";
+	/** Manifest header: milliseconds a request waits for a permit. */
+	public static final String HEADER_QUEUED_TIMEOUT = "Jetty-MaxQueuedTimeout";
+
+	private final int _maxConcurrency;
+	private final int _maxQueued;
+	private final long _queuedTimeout;
+	private final Semaphore _permits;
+	private final ConcurrentLinkedQueue<Waiter> _waiting = new ConcurrentLinkedQueue<Waiter>();
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final AtomicLong _rejected = new AtomicLong();
+	private final AtomicLong _expired = new AtomicLong();
+
+	/**
+	 * A suspended request waiting for a permit.
+	 * <p>
+	 * Once resumed it is dispatched directly to the context by the ContextRouter:
+	 * the permit it was handed over is released when it completes.
+	 * </p>
+	 */
+	private class Waiter implements ContinuationListener {
+		private final AsyncContinuation _continuation;
+		private volatile boolean _permit = false;
+		Waiter(AsyncContinuation continuation) {
+			_continuation = continuation;
+		}
+		public void onComplete(Continuation continuation) {
+			if (_permit) {
+				_permit = false;
+				release();
+			}
+		}
+		public void onTimeout(Continuation continuation) {
+			if (!_waiting.remove(this)) {
+				//resumed in the mean time.
+				return;
+			}
+			_queued.decrementAndGet();
+			_expired.incrementAndGet();
+			try {
+				((HttpServletResponse)_continuation.getResponse())
+					.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} catch (IOException e) {
+				//the client is gone.
+			}
+			_continuation.complete();
+		}
+		/**
+		 * @return false if it could not be resumed.
+		 */
+		private boolean resume(boolean withPermit) {
+			_permit = withPermit;
+			try {
+				_continuation.resume();
+				return true;
+			} catch (IllegalStateException ise) {
+				//expired in the mean time.
+				_permit = false;
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param maxConcurrency
+	 * @param maxQueued
+	 * @param queuedTimeout Milliseconds.
+	 */
+	Bulkhead(int maxConcurrency, int maxQueued, long queuedTimeout) {
+		_maxConcurrency = maxConcurrency;
+		_maxQueued = maxQueued;
+		_queuedTimeout = queuedTimeout;
+		_permits = new Semaphore(maxConcurrency);
+	}
+
+	/**
+	 * @param contributor
+	 * @return The bulkhead declared by the bundle or null if it does not declare one.
+	 */
+	static Bulkhead create(Bundle contributor) {
+		int maxConcurrency = getHeader(contributor, HEADER_MAX_CONCURRENCY, 0);
+		if (maxConcurrency <= 0) {
+			return null;
+		}
+		return new Bulkhead(maxConcurrency,
+				Math.max(getHeader(contributor, HEADER_MAX_QUEUED, 0), 0),
+				Math.max(getHeader(contributor, HEADER_QUEUED_TIMEOUT, 30000), 1));
+	}
+
+	/**
+	 * Takes a permit for the first dispatch of a request.
+	 * @param context The context the request is for: a suspended request is resumed in it.
+	 * @param baseRequest
+	 * @param response
+	 * @return true when a permit was taken: it must be returned by {@link #exit(Request)}.
+	 * false when the request was suspended or rejected; it is handled.
+	 */
+	boolean acquire(ContextHandler context, Request baseRequest, HttpServletResponse response)
+	throws IOException {
+		if (_permits.tryAcquire()) {
+			return true;
+		}
+		if (_queued.incrementAndGet() > _maxQueued) {
+			_queued.decrementAndGet();
+			_rejected.incrementAndGet();
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			baseRequest.setHandled(true);
+			return false;
+		}
+		AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+		Waiter waiter = new Waiter(continuation);
+		continuation.setTimeout(_queuedTimeout);
+		continuation.addContinuationListener(waiter);
+		//suspended in the scope of the context: that is where it is resumed.
+		ContextHandler.Context scope = baseRequest.getContext();
+		baseRequest.setContext(context.getServletContext());
+		try {
+			continuation.suspend();
+		} finally {
+			baseRequest.setContext(scope);
+		}
+		_waiting.offer(waiter);
+		//the other handlers of the collection must not have a go.
+		baseRequest.setHandled(true);
+		//a permit released before the request was queued.
+		if (_permits.tryAcquire()) {
+			release();
+		}
+		return false;
+	}
+
+	/**
+	 * The dispatch that took a permit returns: the permit is released
+	 * now or when the request completes if the context suspended it.
+	 * @param baseRequest
+	 */
+	void exit(Request baseRequest) {
+		AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+		if (!continuation.isSuspended()) {
+			release();
+			return;
+		}
+		continuation.addContinuationListener(new ContinuationListener() {
+			public void onComplete(Continuation c) {
+				release();
+			}
+			public void onTimeout(Continuation c) {
+			}
+		});
+	}
+
+	/**
+	 * Hands the permit over to the next request waiting or returns it.
+	 */
+	private void release() {
+		while (true) {
+			Waiter next = _waiting.poll();
+			if (next == null) {
+				_permits.release();
+				//a request queued in the mean time.
+				if (!_waiting.isEmpty() && _permits.tryAcquire()) {
+					continue;
+				}
+				return;
+			}
+			_queued.decrementAndGet();
+			if (next.resume(true)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Resumes the requests waiting without a permit:
+	 * the bulkhead was replaced or the context undeployed.
+	 */
+	void close() {
+		Waiter next;
+		while ((next = _waiting.poll()) != null) {
+			_queued.decrementAndGet();
+			next.resume(false);
+		}
+	}
+
+	int getActive() {
+		return _maxConcurrency - _permits.availablePermits();
+	}
+
+	int getQueued() {
+		return Math.max(_queued.get(), 0);
+	}
+
+	long getRejected() {
+		return _rejected.get();
+	}
+
+	long getExpired() {
+		return _expired.get();
+	}
+
+	@Override
+	public String toString() {
+		return "bulkhead{" + getActive() + "/" + _maxConcurrency + ",queued=" + getQueued()
+			+ "/" + _maxQueued + ",rejected=" + getRejected() + ",expired=" + getExpired() + "}";
+	}
+
+	private static int getHeader(Bundle contributor, String name, int defaultValue) {
+		Object header = contributor.getHeaders().get(name);
+		if (header == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(header.toString().trim());
+		} catch (NumberFormatException nfe) {
+			System.err.println("Warn: invalid " + name + " '" + header + "' for "
+					+ contributor.getSymbolicName());
+			return defaultValue;
+		}
+	}
+
+}
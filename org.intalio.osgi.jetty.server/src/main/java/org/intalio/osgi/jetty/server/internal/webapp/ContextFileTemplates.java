@@ -0,0 +1,149 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.xml.XmlConfiguration;
+import org.eclipse.jetty.xml.XmlParser;
+import org.xml.sax.SAXException;
+
+/**
+ * Cache of the parsed context files.
+ * <p>
+ * Parsing a context file is validating it against the configure DTD and
+ * all the parses are serialized on the static parser of {@link XmlConfiguration}.
+ * The parsed tree of each context file is kept, keyed by the location of the file
+ * and the checksum of its content. A deployment replays the cached tree
+ * with its own properties and ids: the tree is read-only once parsed.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class ContextFileTemplates {
+
+	/** Parsed once; its tree is replaced by the cached one. */
+	private static final String EMPTY_CONFIGURATION = "<Configure/>";
+
+	private static Field XML_CONFIGURATION_CONFIG_FIELD;
+	static {
+		try {
+			XML_CONFIGURATION_CONFIG_FIELD = XmlConfiguration.class.getDeclaredField("_config");
+			XML_CONFIGURATION_CONFIG_FIELD.setAccessible(true);
+		} catch (Throwable t) {
+			System.err.println("Unable to access XmlConfiguration._config:"
+					+ " the context files will be parsed for every deployment.");
+			XML_CONFIGURATION_CONFIG_FIELD = null;
+		}
+	}
+
+	/** location of the context file -> its parsed tree. Guarded by itself. */
+	private final Map<String,Template> _templates = new HashMap<String,Template>();
+
+	/**
+	 * @param contextFile
+	 * @return A new XmlConfiguration for the context file. The caller sets its properties.
+	 * @throws IOException
+	 * @throws SAXException
+	 */
+	XmlConfiguration newXmlConfiguration(Resource contextFile) throws IOException, SAXException {
+		byte[] content = readFully(contextFile.getInputStream());
+		if (XML_CONFIGURATION_CONFIG_FIELD == null) {
+			return new XmlConfiguration(new ByteArrayInputStream(content));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		long checksum = crc.getValue();
+		String key = contextFile.toString();
+		Template template;
+		synchronized (_templates) {
+			template = _templates.get(key);
+		}
+		if (template == null || template._checksum != checksum || template._length != content.length) {
+			template = new Template(checksum, content.length, parse(content));
+			synchronized (_templates) {
+				_templates.put(key, template);
+			}
+		}
+		return template.newXmlConfiguration();
+	}
+
+	/**
+	 * Forgets the cached tree of a context file.
+	 * @param contextFile
+	 */
+	void remove(Resource contextFile) {
+		synchronized (_templates) {
+			_templates.remove(contextFile.toString());
+		}
+	}
+
+	void clear() {
+		synchronized (_templates) {
+			_templates.clear();
+		}
+	}
+
+	private static XmlParser.Node parse(byte[] content) throws IOException, SAXException {
+		XmlConfiguration parsed = new XmlConfiguration(new ByteArrayInputStream(content));
+		try {
+			return (XmlParser.Node)XML_CONFIGURATION_CONFIG_FIELD.get(parsed);
+		} catch (IllegalAccessException e) {
+			throw new IOException("Unable to read the parsed context file: " + e.getMessage());
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			try { in.close(); } catch (IOException ioe) {}
+		}
+	}
+
+	/**
+	 * The parsed tree of a context file.
+	 */
+	private static class Template {
+		private final long _checksum;
+		private final int _length;
+		private final XmlParser.Node _config;
+		Template(long checksum, int length, XmlParser.Node config) {
+			_checksum = checksum;
+			_length = length;
+			_config = config;
+		}
+		XmlConfiguration newXmlConfiguration() throws IOException, SAXException {
+			XmlConfiguration xmlConfiguration = new XmlConfiguration(EMPTY_CONFIGURATION);
+			try {
+				XML_CONFIGURATION_CONFIG_FIELD.set(xmlConfiguration, _config);
+			} catch (IllegalAccessException e) {
+				throw new IOException("Unable to replay the parsed context file: " + e.getMessage());
+			}
+			return xmlConfiguration;
+		}
+	}
+
+}
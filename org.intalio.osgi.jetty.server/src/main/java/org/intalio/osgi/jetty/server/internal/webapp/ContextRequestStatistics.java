@@ -0,0 +1,188 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.intalio.osgi.jetty.server.management.RequestStatistics;
+
+/**
+ * The counters of the requests served on a context path.
+ * <p>
+ * Updated by {@link SwappableContextHandler} around each request; everything is
+ * striped or lock-free so that the threads serving the same context do not contend.
+ * The number of active requests is the difference between the requests entered
+ * and the requests completed.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class ContextRequestStatistics implements RequestStatistics.ContextStatistics {
+
+	private static final int ENTERED = 0;
+	private static final int COMPLETED = 1;
+	private static final int BYTES_IN = 2;
+	private static final int BYTES_OUT = 3;
+	private static final int LATENCY_TOTAL = 4;
+	/** 1xx to 5xx at STATUS_CLASS + 1 to STATUS_CLASS + 5; the others at STATUS_CLASS. */
+	private static final int STATUS_CLASS = 5;
+
+	private final String _contextPath;
+	private final StripedCounters _counters = new StripedCounters(STATUS_CLASS + 6);
+	private final LatencyHistogram _latencies = new LatencyHistogram();
+	private volatile long _statsSince = System.currentTimeMillis();
+
+	ContextRequestStatistics(String contextPath) {
+		_contextPath = contextPath;
+	}
+
+	/**
+	 * A request enters the context.
+	 * @param baseRequest
+	 * @return true if it is the first dispatch of the request: it must be followed by
+	 * {@link #exit(Request, long, boolean)}. false for the dispatches of a resumed request.
+	 */
+	boolean enter(Request baseRequest) {
+		if (!baseRequest.getAsyncContinuation().isInitial()) {
+			//counted on its first dispatch.
+			return false;
+		}
+		_counters.increment(ENTERED);
+		return true;
+	}
+
+	/**
+	 * The first dispatch of a request returns.
+	 * @param baseRequest
+	 * @param start System.nanoTime() when it entered.
+	 * @param handled false when the context did not handle the request:
+	 * it is not counted.
+	 */
+	void exit(final Request baseRequest, final long start, boolean handled) {
+		if (!handled) {
+			_counters.add(ENTERED, -1);
+			return;
+		}
+		AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+		if (continuation.isSuspended()) {
+			//complete once the suspended request is over.
+			continuation.addContinuationListener(new ContinuationListener() {
+				public void onComplete(Continuation c) {
+					completed(baseRequest, start);
+				}
+				public void onTimeout(Continuation c) {
+				}
+			});
+			return;
+		}
+		completed(baseRequest, start);
+	}
+
+	private void completed(Request baseRequest, long start) {
+		long micros = (System.nanoTime() - start) / 1000;
+		int status = baseRequest.getResponse().getStatus();
+		int statusClass = status / 100;
+		_counters.increment(COMPLETED);
+		_counters.increment(statusClass >= 1 && statusClass <= 5
+				? STATUS_CLASS + statusClass : STATUS_CLASS);
+		_counters.add(BYTES_IN, Math.max(baseRequest.getContentRead(), 0));
+		_counters.add(BYTES_OUT, baseRequest.getResponse().getContentCount());
+		_counters.add(LATENCY_TOTAL, micros);
+		_latencies.record(micros);
+	}
+
+	public String getContextPath() {
+		return _contextPath;
+	}
+
+	public long getStatsSince() {
+		return _statsSince;
+	}
+
+	public long getRequests() {
+		return _counters.get(COMPLETED);
+	}
+
+	public long getRequestsActive() {
+		return Math.max(_counters.get(ENTERED) - _counters.get(COMPLETED), 0);
+	}
+
+	public long getBytesIn() {
+		return _counters.get(BYTES_IN);
+	}
+
+	public long getBytesOut() {
+		return _counters.get(BYTES_OUT);
+	}
+
+	public long getResponses(int statusClass) {
+		if (statusClass < 1 || statusClass > 5) {
+			throw new IllegalArgumentException("Not a status class: " + statusClass);
+		}
+		return _counters.get(STATUS_CLASS + statusClass);
+	}
+
+	public long getLatency(double percentile) {
+		return _latencies.getPercentile(percentile);
+	}
+
+	public long getLatencyMax() {
+		return _latencies.getMax();
+	}
+
+	public long getLatencyAverage() {
+		long requests = getRequests();
+		return requests == 0 ? 0 : _counters.get(LATENCY_TOTAL) / requests;
+	}
+
+	/**
+	 * Resets the counters; the active requests are still counted until they complete.
+	 */
+	void reset() {
+		long active = getRequestsActive();
+		_counters.reset();
+		_counters.add(ENTERED, active);
+		_latencies.reset();
+		_statsSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return One line: the path, the requests, the latency percentiles in milliseconds,
+	 * the status classes and the bytes.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(_contextPath);
+		sb.append(" requests=").append(getRequests());
+		sb.append(" active=").append(getRequestsActive());
+		long seconds = (System.currentTimeMillis() - _statsSince) / 1000;
+		if (seconds > 0) {
+			sb.append(" rps=").append(getRequests() / seconds);
+		}
+		sb.append(" p50=").append(millis(getLatency(0.5)));
+		sb.append("ms p99=").append(millis(getLatency(0.99)));
+		sb.append("ms p999=").append(millis(getLatency(0.999)));
+		sb.append("ms max=").append(millis(getLatencyMax())).append("ms");
+		for (int i = 1; i <= 5; i++) {
+			sb.append(' ').append(i).append("xx=").append(getResponses(i));
+		}
+		sb.append(" in=").append(getBytesIn()).append("B out=").append(getBytesOut()).append('B');
+		return sb.toString();
+	}
+
+	private static String millis(long micros) {
+		return String.valueOf(micros / 1000) + '.' + (micros % 1000) / 100;
+	}
+
+}
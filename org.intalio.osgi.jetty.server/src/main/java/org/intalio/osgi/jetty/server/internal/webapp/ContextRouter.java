@@ -0,0 +1,362 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Inserted in front of the ContextHandlerCollection: routes the requests to the
+ * {@link SwappableContextHandler}s deployed by {@link DeployedContexts}.
+ * <p>
+ * The routes are an immutable trie: one node per segment of the context paths;
+ * on each node the slots are indexed by virtual host. A request descends the trie
+ * along the segments of its target and tries the deepest context path first:
+ * the lookup takes no lock and its cost grows with the depth of the target, not with
+ * the number of contexts. The context itself still checks the request as usual.
+ * </p>
+ * <p>
+ * The slots are added and removed without touching the routes; {@link #commit()}
+ * rebuilds the trie and publishes it with a single volatile write. When deployments
+ * commit concurrently, the one that holds the commit lock publishes the changes of
+ * all the others: they are batched.
+ * </p>
+ * <p>
+ * The requests that do not match any slot are passed to the ContextHandlerCollection:
+ * it serves the contexts of the deployers configured by etc/jetty.xml.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class ContextRouter extends HandlerWrapper {
+
+	/** the slots of the contexts that do not declare virtual hosts. */
+	private static final String ANY_HOST = "*";
+	private static final SwappableContextHandler[] NO_SLOTS = new SwappableContextHandler[0];
+
+	/**
+	 * A segment of the context paths. Never modified once published.
+	 */
+	private static class Node {
+		private final Map<String,Node> _children = new HashMap<String,Node>();
+		/** virtual host -> the slots whose context path ends on this node. */
+		private final Map<String,SwappableContextHandler[]> _byHost =
+			new HashMap<String,SwappableContextHandler[]>();
+	}
+
+	/**
+	 * A published version of the routes.
+	 */
+	private static class Routes {
+		private final Node _root;
+		private final SwappableContextHandler[] _slots;
+		/** false when no context declares virtual hosts: the host is not looked up. */
+		private final boolean _virtualHosts;
+		Routes(Node root, SwappableContextHandler[] slots, boolean virtualHosts) {
+			_root = root;
+			_slots = slots;
+			_virtualHosts = virtualHosts;
+		}
+	}
+
+	private volatile Routes _routes = new Routes(new Node(), NO_SLOTS, false);
+
+	/** the slots to route to. Guarded by itself. */
+	private final Set<SwappableContextHandler> _slots = new LinkedHashSet<SwappableContextHandler>();
+	/** incremented by each change. Guarded by the slots. */
+	private long _version;
+	/** serializes the commits. */
+	private final Object _commitLock = new Object();
+	/** the version of the published routes. Guarded by the commit lock. */
+	private long _committed;
+
+	/**
+	 * Inserts the router in front of the handler. Must be called before the server is started.
+	 * @param server
+	 * @param handler The ContextHandlerCollection.
+	 * @return The router; null when the handler was not found in the handlers of the server.
+	 */
+	static ContextRouter insert(Server server, Handler handler) {
+		ContextRouter router = new ContextRouter();
+		return HandlerTreeHelper.insertInFront(server, handler, router) ? router : null;
+	}
+
+	/**
+	 * Routed once committed.
+	 * @param slot Started.
+	 */
+	void add(SwappableContextHandler slot) {
+		synchronized (_slots) {
+			if (_slots.add(slot)) {
+				_version++;
+			}
+		}
+	}
+
+	/**
+	 * No longer routed once committed.
+	 * @param slot
+	 */
+	void remove(SwappableContextHandler slot) {
+		synchronized (_slots) {
+			if (_slots.remove(slot)) {
+				_version++;
+			}
+		}
+	}
+
+	/**
+	 * The context of a slot was swapped: its virtual hosts might have changed.
+	 */
+	void changed() {
+		synchronized (_slots) {
+			_version++;
+		}
+	}
+
+	/**
+	 * Publishes the changes made so far; unless a concurrent commit already did.
+	 */
+	void commit() {
+		long target;
+		synchronized (_slots) {
+			target = _version;
+		}
+		synchronized (_commitLock) {
+			if (_committed >= target) {
+				return;
+			}
+			SwappableContextHandler[] slots;
+			long version;
+			synchronized (_slots) {
+				slots = _slots.toArray(new SwappableContextHandler[_slots.size()]);
+				version = _version;
+			}
+			Routes old = _routes;
+			_routes = build(slots);
+			_committed = version;
+			Server server = getServer();
+			if (server != null) {
+				//registers and unregisters the mbeans of the slots.
+				server.getContainer().update(this, old._slots, slots, "handler");
+			}
+		}
+	}
+
+	private static Routes build(SwappableContextHandler[] slots) {
+		Node root = new Node();
+		Map<Node,Map<String,List<SwappableContextHandler>>> routes =
+			new HashMap<Node,Map<String,List<SwappableContextHandler>>>();
+		boolean virtualHosts = false;
+		for (SwappableContextHandler slot : slots) {
+			ContextHandler context = slot.getContext();
+			if (context == null) {
+				continue;
+			}
+			Node node = root;
+			for (String segment : context.getContextPath().split("/")) {
+				if (segment.length() == 0) {
+					continue;
+				}
+				Node child = node._children.get(segment);
+				if (child == null) {
+					child = new Node();
+					node._children.put(segment, child);
+				}
+				node = child;
+			}
+			Map<String,List<SwappableContextHandler>> byHost = routes.get(node);
+			if (byHost == null) {
+				byHost = new HashMap<String,List<SwappableContextHandler>>();
+				routes.put(node, byHost);
+			}
+			String[] hosts = context.getVirtualHosts();
+			if (hosts == null || hosts.length == 0) {
+				add(byHost, ANY_HOST, slot);
+				continue;
+			}
+			virtualHosts = true;
+			for (String host : hosts) {
+				add(byHost, normalizeHost(host), slot);
+			}
+		}
+		for (Map.Entry<Node,Map<String,List<SwappableContextHandler>>> e : routes.entrySet()) {
+			for (Map.Entry<String,List<SwappableContextHandler>> h : e.getValue().entrySet()) {
+				e.getKey()._byHost.put(h.getKey(),
+						h.getValue().toArray(new SwappableContextHandler[h.getValue().size()]));
+			}
+		}
+		return new Routes(root, slots, virtualHosts);
+	}
+
+	private static void add(Map<String,List<SwappableContextHandler>> byHost,
+			String host, SwappableContextHandler slot) {
+		List<SwappableContextHandler> list = byHost.get(host);
+		if (list == null) {
+			list = new ArrayList<SwappableContextHandler>(1);
+			byHost.put(host, list);
+		}
+		if (!list.contains(slot)) {
+			list.add(slot);
+		}
+	}
+
+	private static String normalizeHost(String host) {
+		if (host == null) {
+			return null;
+		}
+		host = host.trim().toLowerCase();
+		return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		AsyncContinuation async = baseRequest.getAsyncContinuation();
+		if (async.isAsync()) {
+			ContextHandler context = async.getContextHandler();
+			if (context != null) {
+				//resumed: back to the context it was suspended in.
+				context.handle(target, baseRequest, request, response);
+				return;
+			}
+		}
+		Routes routes = _routes;
+		if (routes._slots.length != 0) {
+			if (target.startsWith("/")) {
+				String host = routes._virtualHosts ? normalizeHost(request.getServerName()) : null;
+				if (route(routes._root, 1, host, target, baseRequest, request, response)) {
+					return;
+				}
+			} else {
+				//not a path: each context has a go.
+				for (SwappableContextHandler slot : routes._slots) {
+					slot.handle(target, baseRequest, request, response);
+					if (baseRequest.isHandled()) {
+						return;
+					}
+				}
+			}
+		}
+		super.handle(target, baseRequest, request, response);
+	}
+
+	/**
+	 * Descends the trie; the deepest context path has a go first.
+	 * @param from The index of the segment of the target to descend into.
+	 * @return true when the request was handled.
+	 */
+	private static boolean route(Node node, int from, String host, String target,
+			Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+	throws IOException, ServletException {
+		if (from < target.length()) {
+			int end = target.indexOf('/', from);
+			if (end < 0) {
+				end = target.length();
+			}
+			Node child = node._children.get(target.substring(from, end));
+			if (child != null && route(child, end + 1, host, target,
+					baseRequest, request, response)) {
+				return true;
+			}
+		}
+		if (node._byHost.isEmpty()) {
+			return false;
+		}
+		if (host != null) {
+			if (handle(node._byHost.get(host), target, baseRequest, request, response)) {
+				return true;
+			}
+			int dot = host.indexOf('.');
+			if (dot >= 0 && handle(node._byHost.get("*" + host.substring(dot)),
+					target, baseRequest, request, response)) {
+				return true;
+			}
+		}
+		return handle(node._byHost.get(ANY_HOST), target, baseRequest, request, response);
+	}
+
+	private static boolean handle(SwappableContextHandler[] slots, String target,
+			Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+	throws IOException, ServletException {
+		if (slots == null) {
+			return false;
+		}
+		for (SwappableContextHandler slot : slots) {
+			slot.handle(target, baseRequest, request, response);
+			if (baseRequest.isHandled()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Handler[] getHandlers() {
+		SwappableContextHandler[] slots = _routes._slots;
+		Handler handler = getHandler();
+		if (handler == null) {
+			return slots.clone();
+		}
+		Handler[] handlers = new Handler[slots.length + 1];
+		handlers[0] = handler;
+		System.arraycopy(slots, 0, handlers, 1, slots.length);
+		return handlers;
+	}
+
+	/**
+	 * HandlerWrapper declares the raw type: an override cannot use Class&lt;?&gt;
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Object expandChildren(Object list, Class byClass) {
+		list = super.expandChildren(list, byClass);
+		for (SwappableContextHandler slot : _routes._slots) {
+			list = expandHandler(slot, list, byClass(byClass));
+		}
+		return list;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<Handler> byClass(Class<?> byClass) {
+		return (Class<Handler>)byClass;
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		for (SwappableContextHandler slot : _routes._slots) {
+			try {
+				slot.stop();
+			} catch (Throwable t) {
+				System.err.println("Unable to stop " + slot);
+				t.printStackTrace();
+			}
+		}
+		super.doStop();
+	}
+
+}
@@ -0,0 +1,524 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.webapp.WebAppClassLoader;
+import org.intalio.osgi.jetty.server.internal.jsp.JspScratchDirectories;
+import org.intalio.osgi.jetty.server.internal.jsp.TldLocatableURLClassloader;
+import org.intalio.osgi.jetty.server.management.DeploymentTimings;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+
+/**
+ * The contexts deployed in the {@link ContextRouter}; one
+ * {@link SwappableContextHandler} per context path.
+ * <p>
+ * A context deployed on a context path that is already served replaces the
+ * previous version atomically: the new version is started first, then swapped in;
+ * the previous version is drained of its in-flight requests then stopped and its
+ * classloader released.
+ * </p>
+ * <p>
+ * The changes to the slots are committed to the router outside of the lock:
+ * concurrent deployments publish their routes together.
+ * </p>
+ * <p>
+ * A context reloaded with a new classloader stands for the context it replaced:
+ * undeploying the original context undeploys the reloaded one.
+ * </p>
+ * <p>
+ * System properties:
+ * <ul>
+ * <li><code>jetty.undeploy.drain.timeout</code>: maximum number of milliseconds
+ * to wait for the in-flight requests of a context before it is stopped. Defaults to 30000.</li>
+ * <li><code>jetty.redeploy.grace</code>: number of milliseconds an undeployed context keeps
+ * serving while waiting for its new version. For example when a bundle is updated.
+ * Defaults to 0: the context is removed right away.</li>
+ * </ul>
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class DeployedContexts {
+
+	/** System property: how long to wait for the in-flight requests. */
+	public static final String SYS_PROP_DRAIN_TIMEOUT = "jetty.undeploy.drain.timeout";
+	/** System property: how long an undeployed context waits for its new version. */
+	public static final String SYS_PROP_REDEPLOY_GRACE = "jetty.redeploy.grace";
+
+	/** how often the in-flight requests are checked while draining. */
+	private static final long DRAIN_POLL_INTERVAL = 50;
+	/** how often a retired classloader is checked before it is closed. */
+	private static final long CLOSE_POLL_INTERVAL = 1000;
+
+	private final Server _server;
+	private final ContextRouter _router;
+	private final long _drainTimeout;
+	private final long _redeployGrace;
+	private final ScheduledThreadPoolExecutor _undeployer;
+	private final RequestStatisticsImpl _statistics;
+	private final AdmissionControlImpl _admissionControl;
+	private final JspScratchDirectories _jspScratchDirectories;
+
+	/** context path -> its handler. Guarded by itself. */
+	private final Map<String,SwappableContextHandler> _slots =
+		new HashMap<String,SwappableContextHandler>();
+	/** context path -> the removal waiting for the new version. Guarded by the slots. */
+	private final Map<String,ScheduledFuture<?>> _pendingRemovals =
+		new HashMap<String,ScheduledFuture<?>>();
+	/** the contexts replaced and not stopped yet. Guarded by the slots. */
+	private final Set<ContextHandler> _retiring = new HashSet<ContextHandler>();
+	/** original context -> the context that reloaded it. Guarded by the slots. */
+	private final Map<ContextHandler,ContextHandler> _reloadedBy =
+		new HashMap<ContextHandler,ContextHandler>();
+
+	/**
+	 * @param server
+	 * @param router Where the contexts are published.
+	 * @param statistics Where the requests of each context path are counted.
+	 * @param admissionControl Where the weight of each context path is kept.
+	 * @param jspScratchDirectories Deletes the compiled jsps of the versions replaced.
+	 */
+	DeployedContexts(Server server, ContextRouter router,
+			RequestStatisticsImpl statistics, AdmissionControlImpl admissionControl,
+			JspScratchDirectories jspScratchDirectories) {
+		_server = server;
+		_router = router;
+		_statistics = statistics;
+		_admissionControl = admissionControl;
+		_jspScratchDirectories = jspScratchDirectories;
+		_drainTimeout = SystemPropertiesHelper.getLongProperty(SYS_PROP_DRAIN_TIMEOUT, 30000);
+		_redeployGrace = SystemPropertiesHelper.getLongProperty(SYS_PROP_REDEPLOY_GRACE, 0);
+		_undeployer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jetty-undeployer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts the context then publishes it on its context path.
+	 * The version it replaces is drained and stopped in the background.
+	 * @param context Configured; not started.
+	 * @param bulkhead Bounds the requests the context handles at the same time; null for none.
+	 * @param timer Times the start and the publication.
+	 */
+	void deploy(ContextHandler context, Bulkhead bulkhead, PhaseTimer timer) throws Exception {
+		deploy(context, bulkhead, timer, null);
+	}
+
+	/**
+	 * Starts the context then swaps it in place of a context that is still deployed.
+	 * @param context Configured with a new classloader; not started.
+	 * @param bulkhead
+	 * @param timer
+	 * @param predecessor The context it replaces.
+	 * @throws IllegalStateException when the predecessor was undeployed or replaced
+	 * in the mean time: the context is stopped again.
+	 */
+	void reload(ContextHandler context, Bulkhead bulkhead, PhaseTimer timer,
+			ContextHandler predecessor) throws Exception {
+		deploy(context, bulkhead, timer, predecessor);
+	}
+
+	private void deploy(ContextHandler context, Bulkhead bulkhead, PhaseTimer timer,
+			ContextHandler predecessor) throws Exception {
+		timer.phase(DeploymentTimings.PHASE_START);
+		start(context, _server);
+		timer.phase(DeploymentTimings.PHASE_ADD_HANDLER);
+		String contextPath = context.getContextPath();
+		SwappableContextHandler.Generation replaced = null;
+		Bulkhead replacedBulkhead = null;
+		boolean stale = false;
+		synchronized (_slots) {
+			SwappableContextHandler slot = _slots.get(contextPath);
+			if (predecessor != null && (slot == null || slot.getContext() != predecessor
+					|| _pendingRemovals.containsKey(contextPath))) {
+				//undeployed or replaced in the mean time: nothing to reload.
+				slot = null;
+			} else {
+				ScheduledFuture<?> pending = _pendingRemovals.remove(contextPath);
+				if (pending != null) {
+					pending.cancel(false);
+				}
+				if (slot != null) {
+					linkReloaded(slot.getContext(), predecessor != null ? context : null);
+					replacedBulkhead = slot.setBulkhead(bulkhead);
+					replaced = slot.swap(context);
+					//in case the virtual hosts have changed.
+					_router.changed();
+				} else {
+					slot = new SwappableContextHandler(context,
+							_statistics.forContextPath(contextPath));
+					slot.setBulkhead(bulkhead);
+					slot.setServer(_server);
+					slot.start();
+					_router.add(slot);
+					_slots.put(contextPath, slot);
+				}
+			}
+			if (slot == null) {
+				stale = true;
+			} else if (replaced != null) {
+				_retiring.add(replaced.getContext());
+			}
+		}
+		if (stale) {
+			stopAndRelease(context);
+			throw new IllegalStateException(contextPath + " was undeployed during its reload");
+		}
+		_router.commit();
+		timer.end();
+		if (replacedBulkhead != null) {
+			replacedBulkhead.close();
+		}
+		if (replaced != null) {
+			drain(replaced);
+		}
+	}
+
+	/**
+	 * Removes the context unless it was already replaced by a new version.
+	 * @param original The deployed context or the context it reloaded.
+	 */
+	void undeploy(ContextHandler original) {
+		final String contextPath = original.getContextPath();
+		final ContextHandler context;
+		synchronized (_slots) {
+			ContextHandler reloaded = _reloadedBy.get(original);
+			context = reloaded != null ? reloaded : original;
+			SwappableContextHandler slot = _slots.get(contextPath);
+			if (slot == null || slot.getContext() != context) {
+				return;
+			}
+			if (_redeployGrace > 0 && !_undeployer.isShutdown()) {
+				if (!_pendingRemovals.containsKey(contextPath)) {
+					_pendingRemovals.put(contextPath, _undeployer.schedule(new Runnable() {
+						public void run() {
+							remove(context);
+						}
+					}, _redeployGrace, TimeUnit.MILLISECONDS));
+				}
+				return;
+			}
+		}
+		remove(context);
+	}
+
+	/**
+	 * @param contextPath
+	 */
+	void undeploy(String contextPath) {
+		ContextHandler context;
+		synchronized (_slots) {
+			SwappableContextHandler slot = _slots.get(contextPath);
+			context = slot != null ? slot.getContext() : null;
+		}
+		if (context != null) {
+			undeploy(context);
+		}
+	}
+
+	/**
+	 * Undeploys the context once its deployment is over.
+	 * @param deployment
+	 */
+	void undeployWhenDone(final Future<ContextHandler> deployment) {
+		if (deployment.isDone()) {
+			undeployDone(deployment);
+			return;
+		}
+		if (_undeployer.isShutdown()) {
+			return;
+		}
+		_undeployer.schedule(new Runnable() {
+			public void run() {
+				undeployWhenDone(deployment);
+			}
+		}, DRAIN_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private void undeployDone(Future<ContextHandler> deployment) {
+		ContextHandler context;
+		try {
+			context = deployment.get();
+		} catch (ExecutionException e) {
+			//failed: nothing was deployed.
+			return;
+		} catch (Throwable t) {
+			//cancelled.
+			return;
+		}
+		if (context != null) {
+			undeploy(context);
+		}
+	}
+
+	/**
+	 * @param contextPath
+	 * @return The context deployed on the context path; null when there is none.
+	 */
+	ContextHandler getContext(String contextPath) {
+		synchronized (_slots) {
+			SwappableContextHandler slot = _slots.get(contextPath);
+			return slot != null ? slot.getContext() : null;
+		}
+	}
+
+	/**
+	 * @param loader
+	 * @return true when a deployed context or a context not stopped yet chains through
+	 * the classloader.
+	 */
+	boolean isInUse(ClassLoader loader) {
+		synchronized (_slots) {
+			for (SwappableContextHandler slot : _slots.values()) {
+				ContextHandler context = slot.getContext();
+				if (context != null && chainsThrough(context, loader)) {
+					return true;
+				}
+			}
+			for (ContextHandler context : _retiring) {
+				if (chainsThrough(context, loader)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Closes a classloader once the contexts that chain through it are stopped.
+	 * @param loader
+	 * @param redeployments The deployments that replace those contexts.
+	 */
+	void closeWhenUnused(final ClassLoader loader,
+			final List<Future<ContextHandler>> redeployments) {
+		Runnable check = new Runnable() {
+			public void run() {
+				if (_undeployer.isShutdown()) {
+					//the server stops: leave it to the garbage collector.
+					return;
+				}
+				for (Future<ContextHandler> redeployment : redeployments) {
+					if (!redeployment.isDone()) {
+						_undeployer.schedule(this, CLOSE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+						return;
+					}
+				}
+				if (isInUse(loader)) {
+					_undeployer.schedule(this, CLOSE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					return;
+				}
+				try {
+					((Closeable)loader).close();
+				} catch (IOException e) {
+					System.err.println("Warn: unable to close " + loader + ": " + e.getMessage());
+				}
+			}
+		};
+		if (loader instanceof Closeable && !_undeployer.isShutdown()) {
+			_undeployer.execute(check);
+		}
+	}
+
+	/**
+	 * @return The thread that runs the undeployments; shared with the idle checks.
+	 */
+	ScheduledExecutorService getScheduler() {
+		return _undeployer;
+	}
+
+	/**
+	 * Stops the undeployments in progress. The server stops the deployed contexts.
+	 */
+	void stop() {
+		_undeployer.shutdownNow();
+	}
+
+	private void remove(ContextHandler context) {
+		String contextPath = context.getContextPath();
+		SwappableContextHandler.Generation removed;
+		Bulkhead removedBulkhead;
+		SwappableContextHandler slot;
+		synchronized (_slots) {
+			_pendingRemovals.remove(contextPath);
+			slot = _slots.get(contextPath);
+			if (slot == null || slot.getContext() != context) {
+				//replaced in the mean time.
+				return;
+			}
+			removed = slot.swap(null);
+			removedBulkhead = slot.setBulkhead(null);
+			linkReloaded(context, null);
+			if (removed != null) {
+				_retiring.add(removed.getContext());
+			}
+			_slots.remove(contextPath);
+			_statistics.remove(contextPath);
+			_admissionControl.remove(contextPath);
+			_router.remove(slot);
+		}
+		_router.commit();
+		try {
+			//the slot is empty: stopping it does not stop the context.
+			slot.stop();
+		} catch (Throwable t) {
+			System.err.println("Unable to stop the slot of " + contextPath);
+			t.printStackTrace();
+		}
+		if (removedBulkhead != null) {
+			removedBulkhead.close();
+		}
+		if (removed != null) {
+			drain(removed);
+		}
+	}
+
+	/**
+	 * Waits for the in-flight requests without blocking the undeployer thread;
+	 * then stops the context.
+	 */
+	private void drain(final SwappableContextHandler.Generation retired) {
+		final long deadline = System.currentTimeMillis() + _drainTimeout;
+		Runnable check = new Runnable() {
+			public void run() {
+				if (retired.getInFlight() > 0 && System.currentTimeMillis() < deadline
+						&& !_undeployer.isShutdown()) {
+					_undeployer.schedule(this, DRAIN_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+					return;
+				}
+				if (retired.getInFlight() > 0) {
+					System.err.println("Warn: stopping " + retired.getContext().getContextPath()
+							+ " with " + retired.getInFlight() + " requests still in flight.");
+				}
+				stopAndRelease(retired.getContext());
+				_jspScratchDirectories.release(retired.getContext());
+				synchronized (_slots) {
+					_retiring.remove(retired.getContext());
+				}
+			}
+		};
+		if (_undeployer.isShutdown()) {
+			check.run();
+		} else {
+			_undeployer.execute(check);
+		}
+	}
+
+	/**
+	 * Forgets the reloads of a context that is swapped out. Guarded by the slots.
+	 * @param replaced
+	 * @param reloaded The context that reloads it; null when it is replaced by a new
+	 * deployment or removed.
+	 */
+	private void linkReloaded(ContextHandler replaced, ContextHandler reloaded) {
+		ContextHandler original = replaced;
+		Iterator<Map.Entry<ContextHandler,ContextHandler>> it = _reloadedBy.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<ContextHandler,ContextHandler> e = it.next();
+			if (e.getValue() == replaced) {
+				original = e.getKey();
+				it.remove();
+			}
+		}
+		if (reloaded != null) {
+			_reloadedBy.put(original, reloaded);
+		}
+	}
+
+	/**
+	 * @param context
+	 * @param loader
+	 * @return true when the classloader is one of the ancestors of the classloader of the
+	 * context. For a lazy context: of the context it started or prepared.
+	 */
+	static boolean chainsThrough(ContextHandler context, ClassLoader loader) {
+		if (context instanceof LazyContextHandler) {
+			context = ((LazyContextHandler)context).getStartedOrPreparedContext();
+			if (context == null) {
+				return false;
+			}
+		}
+		ClassLoader cl = context.getClassLoader();
+		while (cl != null) {
+			if (cl == loader) {
+				return true;
+			}
+			cl = cl.getParent();
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a context with its own classloader as the context classloader.
+	 */
+	static void start(ContextHandler context, Server server) throws Exception {
+		context.setServer(server);
+		ClassLoader contextCl = Thread.currentThread().getContextClassLoader();
+		try {
+			if (context.getClassLoader() != null) {
+				Thread.currentThread().setContextClassLoader(context.getClassLoader());
+			}
+			context.start();
+		} finally {
+			Thread.currentThread().setContextClassLoader(contextCl);
+		}
+	}
+
+	/**
+	 * Stops the context then releases its classloader.
+	 */
+	static void stopAndRelease(ContextHandler context) {
+		try {
+			context.stop();
+		} catch (Throwable t) {
+			System.err.println("Unable to stop the context " + context.getContextPath());
+			t.printStackTrace();
+		}
+		ClassLoader cl = context.getClassLoader();
+		try {
+			context.setClassLoader(null);
+		} catch (Throwable t) {
+			//still referenced by the stopped context.
+		}
+		if (cl instanceof SharedLibWebAppClassLoader) {
+			((SharedLibWebAppClassLoader)cl).release();
+		}
+		if (cl instanceof WebAppClassLoader) {
+			cl = cl.getParent();
+		}
+		if (cl instanceof TldLocatableURLClassloader) {
+			//drop the classes it has cached.
+			((TldLocatableURLClassloader)cl).invalidateLookupCache();
+		}
+	}
+
+}
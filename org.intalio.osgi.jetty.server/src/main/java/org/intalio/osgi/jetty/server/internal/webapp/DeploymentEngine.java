@@ -0,0 +1,351 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+import org.osgi.framework.Bundle;
+
+/**
+ * Runs the deployments of the webapps and contexts on a bounded pool of
+ * worker threads.
+ * <p>
+ * Independent deployments are started in parallel. A bundle can declare
+ * the context paths it depends on with the manifest header
+ * <code>Jetty-DependsOn</code> (comma separated list of context paths).
+ * Such a deployment is not handed to a worker until every context it depends
+ * on has been successfully started. If one of them fails, the deployment fails too.
+ * A dependency on a context path that is never deployed keeps the deployment pending.
+ * The deployments that depend on each other in a cycle fail.
+ * </p>
+ * <p>
+ * The size of the pool is read from the system property
+ * <code>jetty.deployer.threads</code>; it defaults on the number of processors.
+ * </p>
+ * @author hmalphettes
+ */
+class DeploymentEngine {
+
+	/** Manifest header: comma separated list of the context paths a bundle depends on. */
+	public static final String HEADER_DEPENDS_ON = "Jetty-DependsOn";
+
+	/** System property: number of threads dedicated to the deployments. */
+	public static final String SYS_PROP_DEPLOYER_THREADS = "jetty.deployer.threads";
+
+	private final ThreadPoolExecutor _executor;
+
+	/** guards the maps below. */
+	private final Object _lock = new Object();
+	/** context path -> the deployment that successfully started it. */
+	private final Map<String,Deployment> _started = new HashMap<String,Deployment>();
+	/** context path -> the deployments waiting for it to be started. */
+	private final Map<String,List<Deployment>> _waiting = new HashMap<String,List<Deployment>>();
+
+	public DeploymentEngine() {
+		int nbThreads = (int)SystemPropertiesHelper.getLongProperty(SYS_PROP_DEPLOYER_THREADS,
+				Runtime.getRuntime().availableProcessors());
+		if (nbThreads < 1) {
+			nbThreads = 1;
+		}
+		_executor = new ThreadPoolExecutor(nbThreads, nbThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DeployerThreadFactory());
+	}
+
+	/**
+	 * @param contextPath The context path when it is known before the deployment;
+	 * null otherwise. For example a context file defines its own context path.
+	 * @param dependsOn The context paths that must be started first. Can be null.
+	 * @param deployment The actual work. Returns the started context.
+	 * @param status Notified of the progress of the deployment. Can be null.
+	 * @return The future on the started context.
+	 */
+	public Future<ContextHandler> deploy(String contextPath, String[] dependsOn,
+			Callable<ContextHandler> deployment, DeploymentStatusImpl status) {
+		Deployment d = new Deployment(contextPath, deployment, status);
+		List<Deployment> cycle = null;
+		synchronized (_lock) {
+			if (dependsOn != null) {
+				for (String dep : dependsOn) {
+					if (!dep.equals(contextPath) && !_started.containsKey(dep)) {
+						d._unresolved.add(dep);
+					}
+				}
+			}
+			if (contextPath != null) {
+				for (String dep : d._unresolved) {
+					cycle = findWaitingChain(dep, contextPath, new HashSet<String>());
+					if (cycle != null) {
+						break;
+					}
+				}
+			}
+			if (cycle != null) {
+				for (Deployment w : cycle) {
+					removeWaiter(w);
+				}
+			} else {
+				for (String dep : d._unresolved) {
+					List<Deployment> waiters = _waiting.get(dep);
+					if (waiters == null) {
+						waiters = new ArrayList<Deployment>();
+						_waiting.put(dep, waiters);
+					}
+					waiters.add(d);
+				}
+				if (!d._unresolved.isEmpty()) {
+					return d;
+				}
+			}
+		}
+		if (cycle != null) {
+			//outside of the lock: failing a deployment completes it.
+			StringBuilder paths = new StringBuilder(contextPath);
+			for (Deployment w : cycle) {
+				paths.append(" -> ").append(w._contextPath);
+			}
+			paths.append(" -> ").append(contextPath);
+			IllegalStateException e = new IllegalStateException(
+					"Circular " + HEADER_DEPENDS_ON + ": " + paths);
+			System.err.println("Unable to deploy " + contextPath + ": " + e.getMessage());
+			d.failed(e);
+			for (Deployment w : cycle) {
+				w.failed(e);
+			}
+			return d;
+		}
+		if (!_executor.isShutdown()) {
+			_executor.execute(d);
+		} else {
+			d.cancel(false);
+		}
+		return d;
+	}
+
+	/**
+	 * Guarded by the lock.
+	 * @param from A context path.
+	 * @param to A context path.
+	 * @param visited The context paths already explored.
+	 * @return The waiting deployments of <code>from</code> up to the one that waits for
+	 * <code>to</code>; null when the deployment of <code>from</code> does not wait for
+	 * <code>to</code>.
+	 */
+	private List<Deployment> findWaitingChain(String from, String to, Set<String> visited) {
+		if (!visited.add(from)) {
+			return null;
+		}
+		for (List<Deployment> waiters : _waiting.values()) {
+			for (Deployment w : waiters) {
+				if (!from.equals(w._contextPath)) {
+					continue;
+				}
+				for (String dep : w._unresolved) {
+					List<Deployment> chain = dep.equals(to)
+						? new ArrayList<Deployment>() : findWaitingChain(dep, to, visited);
+					if (chain != null) {
+						chain.add(0, w);
+						return chain;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Guarded by the lock.
+	 */
+	private void removeWaiter(Deployment d) {
+		Iterator<List<Deployment>> it = _waiting.values().iterator();
+		while (it.hasNext()) {
+			List<Deployment> waiters = it.next();
+			waiters.remove(d);
+			if (waiters.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget about a context that was stopped: the deployments
+	 * that depend on it will wait for it to be started again.
+	 * @param contextPath
+	 */
+	public void undeployed(String contextPath) {
+		synchronized (_lock) {
+			_started.remove(contextPath);
+		}
+	}
+
+	/**
+	 * Stops accepting new deployments.
+	 * The deployments already running are not interrupted.
+	 */
+	public void stop() {
+		_executor.shutdown();
+		List<Deployment> waiters = new ArrayList<Deployment>();
+		synchronized (_lock) {
+			for (List<Deployment> w : _waiting.values()) {
+				waiters.addAll(w);
+			}
+			_waiting.clear();
+		}
+		//outside of the lock: cancelling a deployment completes it.
+		for (Deployment d : waiters) {
+			d.cancel(false);
+		}
+	}
+
+	/**
+	 * @param contributor
+	 * @return The context paths declared in the header {@link #HEADER_DEPENDS_ON}
+	 * or null.
+	 */
+	public static String[] getDependencies(Bundle contributor) {
+		Dictionary<?,?> headers = contributor.getHeaders();
+		String dependsOn = (String)headers.get(HEADER_DEPENDS_ON);
+		if (dependsOn == null) {
+			return null;
+		}
+		ArrayList<String> paths = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(dependsOn, ", \t");
+		while (tokenizer.hasMoreTokens()) {
+			paths.add(tokenizer.nextToken());
+		}
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	/**
+	 * Called once a deployment is over.
+	 * Schedules the deployments that were waiting for it.
+	 */
+	private void completed(Deployment d) {
+		ContextHandler context = null;
+		Throwable failure = null;
+		try {
+			context = d.get();
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} catch (Throwable t) {
+			//cancelled or interrupted.
+			failure = t;
+		}
+		if (d._status != null) {
+			if (failure == null) {
+				d._status.started(context);
+			} else {
+				d._status.failed(failure);
+			}
+		}
+		String contextPath = context != null ? context.getContextPath() : d._contextPath;
+		if (contextPath == null) {
+			return;
+		}
+		List<Deployment> ready = new ArrayList<Deployment>();
+		List<Deployment> waiters;
+		synchronized (_lock) {
+			if (failure == null) {
+				_started.put(contextPath, d);
+			}
+			waiters = _waiting.remove(contextPath);
+			if (waiters == null) {
+				return;
+			}
+			for (Deployment w : waiters) {
+				if (failure != null) {
+					continue;
+				}
+				w._unresolved.remove(contextPath);
+				if (w._unresolved.isEmpty()) {
+					ready.add(w);
+				}
+			}
+		}
+		for (Deployment w : waiters) {
+			if (failure != null) {
+				w.failed(new IllegalStateException("The context " + contextPath
+						+ " this deployment depends on failed to start", failure));
+			}
+		}
+		for (Deployment w : ready) {
+			if (!_executor.isShutdown()) {
+				_executor.execute(w);
+			} else {
+				w.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * A deployment and the contexts it is still waiting for.
+	 */
+	private class Deployment extends FutureTask<ContextHandler> {
+
+		private final String _contextPath;
+		private final DeploymentStatusImpl _status;
+		/** guarded by the engine's lock. */
+		private final Set<String> _unresolved = new LinkedHashSet<String>();
+
+		Deployment(String contextPath, Callable<ContextHandler> deployment,
+				DeploymentStatusImpl status) {
+			super(deployment);
+			_contextPath = contextPath;
+			_status = status;
+		}
+
+		@Override
+		public void run() {
+			if (_status != null && !isDone()) {
+				_status.deploying();
+			}
+			super.run();
+		}
+
+		void failed(Throwable t) {
+			setException(t);
+		}
+
+		@Override
+		protected void done() {
+			completed(this);
+		}
+	}
+
+	private static class DeployerThreadFactory implements ThreadFactory {
+		private final AtomicInteger _count = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "jetty-deployer-" + _count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Decouples the OSGi service event delivery from the deployments.
+ * <p>
+ * The framework thread only records the event: a dedicated thread drains
+ * the queue in order and hands the work to the {@link DeploymentEngine}.
+ * Events are coalesced per service: a duplicate event is dropped and an
+ * UNREGISTERING event cancels a REGISTERED event that was not processed yet.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class DeploymentQueue implements Runnable {
+
+	/**
+	 * Processes the events once they are dequeued.
+	 */
+	interface Processor {
+		/** The service was registered. */
+		public void deploy(ServiceReference sr, DeploymentStatusImpl status);
+		/** The service is unregistering. */
+		public void undeploy(ServiceReference sr);
+		/** A registered event was cancelled before it was deployed. */
+		public void cancelled(ServiceReference sr, DeploymentStatusImpl status);
+	}
+
+	private final Processor _processor;
+	/** service id -> pending event. Guarded by itself. */
+	private final LinkedHashMap<Long,QueuedEvent> _pending = new LinkedHashMap<Long,QueuedEvent>();
+	private final Thread _thread;
+	private volatile boolean _stopped = false;
+
+	DeploymentQueue(Processor processor) {
+		_processor = processor;
+		_thread = new Thread(this, "jetty-deployment-queue");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Called on the framework's event dispatch thread: must return quickly.
+	 * @param type {@link ServiceEvent#REGISTERED} or {@link ServiceEvent#UNREGISTERING}
+	 * @param sr
+	 * @param status The status for a REGISTERED event; null otherwise.
+	 * @return true when the event was queued; false when it was coalesced with
+	 * an event already queued.
+	 */
+	boolean enqueue(int type, ServiceReference sr, DeploymentStatusImpl status) {
+		Long serviceId = (Long)sr.getProperty(org.osgi.framework.Constants.SERVICE_ID);
+		QueuedEvent cancelled = null;
+		synchronized (_pending) {
+			QueuedEvent existing = _pending.get(serviceId);
+			if (existing != null) {
+				if (existing._type == type) {
+					return false;
+				}
+				if (existing._type == ServiceEvent.REGISTERED
+						&& type == ServiceEvent.UNREGISTERING) {
+					//never deployed: nothing to undeploy.
+					_pending.remove(serviceId);
+					cancelled = existing;
+				}
+			}
+			if (cancelled == null) {
+				_pending.put(serviceId, new QueuedEvent(type, sr, status));
+				_pending.notifyAll();
+			}
+		}
+		if (cancelled != null) {
+			_processor.cancelled(cancelled._sr, cancelled._status);
+			return false;
+		}
+		return true;
+	}
+
+	public void run() {
+		while (!_stopped) {
+			QueuedEvent ev;
+			synchronized (_pending) {
+				while (_pending.isEmpty() && !_stopped) {
+					try {
+						_pending.wait();
+					} catch (InterruptedException e) {
+						//check if we are stopped.
+					}
+				}
+				if (_stopped) {
+					return;
+				}
+				Iterator<Map.Entry<Long,QueuedEvent>> it = _pending.entrySet().iterator();
+				ev = it.next().getValue();
+				it.remove();
+			}
+			try {
+				if (ev._type == ServiceEvent.REGISTERED) {
+					_processor.deploy(ev._sr, ev._status);
+				} else {
+					_processor.undeploy(ev._sr);
+				}
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the dispatch thread. The events that are still queued are dropped.
+	 */
+	void stop() {
+		_stopped = true;
+		synchronized (_pending) {
+			_pending.clear();
+			_pending.notifyAll();
+		}
+		_thread.interrupt();
+	}
+
+	private static class QueuedEvent {
+		private final int _type;
+		private final ServiceReference _sr;
+		private final DeploymentStatusImpl _status;
+		QueuedEvent(int type, ServiceReference sr, DeploymentStatusImpl status) {
+			_type = type;
+			_sr = sr;
+			_status = status;
+		}
+	}
+
+}
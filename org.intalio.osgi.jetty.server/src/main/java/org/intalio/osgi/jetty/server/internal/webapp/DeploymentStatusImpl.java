@@ -0,0 +1,172 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.intalio.osgi.jetty.server.management.DeploymentStatus;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Status of a deployment published as an OSGi service.
+ * The service properties are refreshed at each transition.
+ *
+ * @author hmalphettes
+ */
+class DeploymentStatusImpl implements DeploymentStatus {
+
+	private final String _bundleSymbolicName;
+	private final long _bundleId;
+	private final long _queuedAt = System.currentTimeMillis();
+	private final CountDownLatch _completed = new CountDownLatch(1);
+
+	private volatile String _contextPath;
+	private volatile State _state = State.PENDING;
+	private volatile Throwable _failure;
+	private volatile long _deployingAt;
+	private volatile long _completedAt;
+
+	private ServiceRegistration _registration;
+
+	DeploymentStatusImpl(Bundle contributor, String contextPath) {
+		_bundleSymbolicName = contributor.getSymbolicName();
+		_bundleId = contributor.getBundleId();
+		_contextPath = contextPath;
+	}
+
+	/**
+	 * Publishes this status as a service.
+	 * @param context The context of the jetty bootstrap bundle.
+	 */
+	synchronized void register(BundleContext context) {
+		_registration = context.registerService(DeploymentStatus.class.getName(),
+				this, getServiceProperties());
+	}
+
+	/**
+	 * Withdraws the service.
+	 */
+	synchronized void unregister() {
+		if (_registration != null) {
+			try {
+				_registration.unregister();
+			} catch (IllegalStateException ise) {
+				//already unregistered; for example the bundle is stopping.
+			}
+			_registration = null;
+		}
+	}
+
+	void deploying() {
+		_deployingAt = System.currentTimeMillis();
+		_state = State.DEPLOYING;
+		updateServiceProperties();
+	}
+
+	void started(ContextHandler context) {
+		_completedAt = System.currentTimeMillis();
+		if (context != null) {
+			_contextPath = context.getContextPath();
+		}
+		_state = State.STARTED;
+		updateServiceProperties();
+		_completed.countDown();
+	}
+
+	void failed(Throwable t) {
+		_completedAt = System.currentTimeMillis();
+		_failure = t;
+		_state = State.FAILED;
+		updateServiceProperties();
+		_completed.countDown();
+	}
+
+	private synchronized void updateServiceProperties() {
+		if (_registration != null) {
+			try {
+				_registration.setProperties(getServiceProperties());
+			} catch (IllegalStateException ise) {
+				//unregistered in the mean time.
+			}
+		}
+	}
+
+	private Hashtable<String,Object> getServiceProperties() {
+		Hashtable<String,Object> props = new Hashtable<String,Object>();
+		if (_contextPath != null) {
+			props.put(PROP_CONTEXT_PATH, _contextPath);
+		}
+		props.put(PROP_STATE, _state.name());
+		if (_bundleSymbolicName != null) {
+			props.put(PROP_BUNDLE_SYMBOLIC_NAME, _bundleSymbolicName);
+		}
+		props.put(PROP_BUNDLE_ID, Long.valueOf(_bundleId));
+		return props;
+	}
+
+	public String getContextPath() {
+		return _contextPath;
+	}
+
+	public String getBundleSymbolicName() {
+		return _bundleSymbolicName;
+	}
+
+	public State getState() {
+		return _state;
+	}
+
+	public Throwable getFailure() {
+		return _failure;
+	}
+
+	public long getQueuedAt() {
+		return _queuedAt;
+	}
+
+	public long getDeployingAt() {
+		return _deployingAt;
+	}
+
+	public long getCompletedAt() {
+		return _completedAt;
+	}
+
+	public long getQueuedDuration() {
+		long deployingAt = _deployingAt;
+		return deployingAt == 0 ? -1 : deployingAt - _queuedAt;
+	}
+
+	public long getDeploymentDuration() {
+		long completedAt = _completedAt;
+		long deployingAt = _deployingAt;
+		if (completedAt == 0) {
+			return -1;
+		}
+		return completedAt - (deployingAt != 0 ? deployingAt : _queuedAt);
+	}
+
+	public State waitForCompletion(long timeout) throws InterruptedException {
+		_completed.await(timeout, TimeUnit.MILLISECONDS);
+		return _state;
+	}
+
+	@Override
+	public String toString() {
+		return "DeploymentStatus[" + _bundleSymbolicName + " " + _contextPath + " " + _state + "]";
+	}
+
+}
@@ -0,0 +1,166 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.intalio.osgi.jetty.server.management.DeploymentTimings;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+
+/**
+ * Keeps the timings of the setup of the server and of the last deployments.
+ * <p>
+ * The number of deployments kept is read from the system property
+ * <code>jetty.deployment.timings.history</code>; it defaults on 50.
+ * The getters that return strings are the attributes of the MBean:
+ * see jmx/DeploymentTimingsImpl-mbean.properties
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class DeploymentTimingsImpl implements DeploymentTimings {
+
+	/** System property: number of deployments kept. */
+	public static final String SYS_PROP_HISTORY = "jetty.deployment.timings.history";
+
+	private final int _historySize;
+	private volatile PhaseTimer _serverSetup;
+	/** the most recent first. Guarded by itself. */
+	private final LinkedList<PhaseTimer> _history = new LinkedList<PhaseTimer>();
+	/** bundle -> phase -> max duration. Guarded by the history. */
+	private final Map<String,Map<String,Long>> _slowest = new HashMap<String,Map<String,Long>>();
+
+	DeploymentTimingsImpl() {
+		_historySize = Math.max((int)SystemPropertiesHelper.getLongProperty(SYS_PROP_HISTORY, 50), 1);
+	}
+
+	/**
+	 * @return A new timer for the setup of the server.
+	 */
+	PhaseTimer newServerSetupTimer() {
+		PhaseTimer timer = new PhaseTimer("server", null);
+		_serverSetup = timer;
+		return timer;
+	}
+
+	/**
+	 * Records a deployment that is over.
+	 * @param timer
+	 */
+	void record(PhaseTimer timer) {
+		timer.end();
+		Map<String,Long> phases = timer.getPhases();
+		synchronized (_history) {
+			_history.addFirst(timer);
+			while (_history.size() > _historySize) {
+				_history.removeLast();
+			}
+			Map<String,Long> slowest = _slowest.get(timer.getName());
+			if (slowest == null) {
+				slowest = new HashMap<String,Long>();
+				_slowest.put(timer.getName(), slowest);
+			}
+			for (Map.Entry<String,Long> phase : phases.entrySet()) {
+				Long max = slowest.get(phase.getKey());
+				if (max == null || max < phase.getValue()) {
+					slowest.put(phase.getKey(), phase.getValue());
+				}
+			}
+		}
+	}
+
+	public Timing getServerSetup() {
+		return _serverSetup;
+	}
+
+	public List<Timing> getLastDeployments() {
+		synchronized (_history) {
+			return new ArrayList<Timing>(_history);
+		}
+	}
+
+	public Map<String,Map<String,Long>> getSlowestPhases() {
+		Map<String,Map<String,Long>> result = new LinkedHashMap<String,Map<String,Long>>();
+		synchronized (_history) {
+			for (Map.Entry<String,Map<String,Long>> bundle : _slowest.entrySet()) {
+				result.put(bundle.getKey(), sortByDuration(bundle.getValue()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets the deployments recorded so far.
+	 */
+	public void reset() {
+		synchronized (_history) {
+			_history.clear();
+			_slowest.clear();
+		}
+	}
+
+	/**
+	 * @return MBean attribute.
+	 */
+	public String getServerSetupSummary() {
+		PhaseTimer setup = _serverSetup;
+		return setup != null ? setup.toString() : null;
+	}
+
+	/**
+	 * @return MBean attribute.
+	 */
+	public String[] getLastDeploymentsSummary() {
+		synchronized (_history) {
+			String[] res = new String[_history.size()];
+			int i = 0;
+			for (PhaseTimer timer : _history) {
+				res[i++] = timer.toString();
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * @return MBean attribute.
+	 */
+	public String[] getSlowestPhasesSummary() {
+		Map<String,Map<String,Long>> slowest = getSlowestPhases();
+		String[] res = new String[slowest.size()];
+		int i = 0;
+		for (Map.Entry<String,Map<String,Long>> bundle : slowest.entrySet()) {
+			res[i++] = bundle.getKey() + " " + bundle.getValue();
+		}
+		return res;
+	}
+
+	private static Map<String,Long> sortByDuration(Map<String,Long> phases) {
+		List<Map.Entry<String,Long>> entries = new ArrayList<Map.Entry<String,Long>>(phases.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String,Long>>() {
+			public int compare(Map.Entry<String,Long> o1, Map.Entry<String,Long> o2) {
+				return o2.getValue().compareTo(o1.getValue());
+			}
+		});
+		Map<String,Long> sorted = new LinkedHashMap<String,Long>();
+		for (Map.Entry<String,Long> e : entries) {
+			sorted.put(e.getKey(), e.getValue());
+		}
+		return sorted;
+	}
+
+}
@@ -0,0 +1,273 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches folders for the files that are created, modified or deleted.
+ * <p>
+ * A single WatchService and a single thread for all the folders: nothing runs
+ * while nothing changes. The changes are debounced: a listener is notified once no
+ * change happened for the quiet period of its folder. A file written in several
+ * steps is notified once.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class DirectoryWatcher implements Runnable {
+
+	/**
+	 * Notified of the changes in a watched folder.
+	 */
+	interface Listener {
+		/**
+		 * @param file The file created, modified or deleted;
+		 * the watched folder when its changes are coalesced.
+		 */
+		void changed(File file);
+	}
+
+	/**
+	 * A watched folder.
+	 */
+	private static class Watch {
+		private final File _root;
+		private final boolean _recursive;
+		private final String _suffix;
+		private final long _quietPeriod;
+		private final boolean _coalesce;
+		private final Listener _listener;
+		Watch(File root, boolean recursive, String suffix, long quietPeriod,
+				boolean coalesce, Listener listener) {
+			_root = root;
+			_recursive = recursive;
+			_suffix = suffix;
+			_quietPeriod = quietPeriod;
+			_coalesce = coalesce;
+			_listener = listener;
+		}
+	}
+
+	private final WatchService _watchService;
+	private final ScheduledExecutorService _scheduler;
+	private final Thread _thread;
+	/** the folders watched. */
+	private final Map<WatchKey,Watch> _watches = new ConcurrentHashMap<WatchKey,Watch>();
+	/** file or folder -> its notification that has not run yet; cancelled at the next change.
+	 * Guarded by itself. */
+	private final Map<File,Notification> _pending = new HashMap<File,Notification>();
+
+	/**
+	 * Notifies the listener of a watch; removed from the pending ones when it runs.
+	 */
+	private class Notification implements Runnable {
+		private final File _notified;
+		private final Watch _watch;
+		/** Guarded by _pending. */
+		private ScheduledFuture<?> _future;
+		Notification(File notified, Watch watch) {
+			_notified = notified;
+			_watch = watch;
+		}
+		public void run() {
+			synchronized (_pending) {
+				if (_pending.get(_notified) == this) {
+					_pending.remove(_notified);
+				}
+			}
+			try {
+				_watch._listener.changed(_notified);
+			} catch (Throwable t) {
+				System.err.println("Warn: unable to process the change of " + _notified);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private DirectoryWatcher(ScheduledExecutorService scheduler) throws IOException {
+		_watchService = FileSystems.getDefault().newWatchService();
+		_scheduler = scheduler;
+		_thread = new Thread(this, "jetty-directory-watcher");
+		_thread.setDaemon(true);
+	}
+
+	/**
+	 * @param scheduler Runs the notifications.
+	 * @return The started watcher; null when the file system cannot be watched.
+	 */
+	static DirectoryWatcher start(ScheduledExecutorService scheduler) {
+		try {
+			DirectoryWatcher watcher = new DirectoryWatcher(scheduler);
+			watcher._thread.start();
+			return watcher;
+		} catch (IOException e) {
+			System.err.println("Warn: unable to watch the file system: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param dir The folder to watch.
+	 * @param recursive true to watch its sub-folders too; including the ones created later.
+	 * @param suffix Only the files whose name ends with it are notified.
+	 * @param quietPeriod in milliseconds.
+	 * @param coalesce true to notify the folder once for all the files that changed.
+	 * @param listener
+	 * @return false when the folder cannot be watched.
+	 */
+	boolean watch(File dir, boolean recursive, String suffix, long quietPeriod,
+			boolean coalesce, Listener listener) {
+		dir = normalize(dir);
+		try {
+			register(dir, new Watch(dir, recursive, suffix, quietPeriod, coalesce, listener));
+			return true;
+		} catch (IOException e) {
+			System.err.println("Warn: unable to watch " + dir + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void register(File dir, Watch watch) throws IOException {
+		WatchKey key = dir.toPath().register(_watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		_watches.put(key, watch);
+		if (watch._recursive) {
+			File[] children = dir.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					if (child.isDirectory()) {
+						register(child, watch);
+					}
+				}
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = _watchService.take();
+				Watch watch = _watches.get(key);
+				Path dir = (Path)key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (watch == null) {
+						continue;
+					}
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						//some events were lost: notify what is there.
+						changedTree(dir.toFile(), watch);
+						continue;
+					}
+					File file = dir.resolve((Path)event.context()).toFile();
+					if (watch._recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+							&& file.isDirectory()) {
+						try {
+							register(file, watch);
+						} catch (IOException e) {
+							System.err.println("Warn: unable to watch " + file + ": "
+									+ e.getMessage());
+						}
+						//its files were created before it was watched.
+						changedTree(file, watch);
+					} else if (file.getName().endsWith(watch._suffix)) {
+						changed(file, watch);
+					}
+				}
+				if (!key.reset()) {
+					//the folder was deleted.
+					_watches.remove(key);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			//stopped.
+		} catch (InterruptedException e) {
+			//stopped.
+		}
+	}
+
+	private void changedTree(File dir, Watch watch) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				if (watch._recursive) {
+					changedTree(child, watch);
+				}
+			} else if (child.getName().endsWith(watch._suffix)) {
+				changed(child, watch);
+			}
+		}
+	}
+
+	/**
+	 * Postpones the notification until the end of the quiet period.
+	 */
+	private void changed(File file, Watch watch) {
+		File notified = watch._coalesce ? watch._root : file;
+		synchronized (_pending) {
+			Notification pending = _pending.remove(notified);
+			if (pending != null) {
+				pending._future.cancel(false);
+			}
+			Notification notification = new Notification(notified, watch);
+			try {
+				notification._future = _scheduler.schedule(notification,
+						watch._quietPeriod, TimeUnit.MILLISECONDS);
+				_pending.put(notified, notification);
+			} catch (RejectedExecutionException e) {
+				//the server stops.
+			}
+		}
+	}
+
+	/**
+	 * Stops watching; a notification already running is not interrupted.
+	 */
+	void stop() {
+		try {
+			_watchService.close();
+		} catch (IOException e) {
+			//closed anyways.
+		}
+		synchronized (_pending) {
+			for (Notification pending : _pending.values()) {
+				pending._future.cancel(false);
+			}
+			_pending.clear();
+		}
+	}
+
+	/**
+	 * @return The absolute path without . and .. segments: as the files are notified.
+	 */
+	static File normalize(File file) {
+		return file.toPath().toAbsolutePath().normalize().toFile();
+	}
+
+}
@@ -0,0 +1,86 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Inserts handlers in the tree of handlers configured by etc/jetty.xml
+ *
+ * @author hmalphettes
+ */
+class HandlerTreeHelper {
+
+	/**
+	 * Inserts the wrapper in front of the handler: it takes the place of the handler
+	 * in its parent and wraps it. Must be called before the server is started.
+	 * @param server
+	 * @param handler
+	 * @param wrapper
+	 * @return false if the handler was not found in the handlers of the server.
+	 */
+	static boolean insertInFront(Server server, Handler handler, HandlerWrapper wrapper) {
+		wrapper.setServer(server);
+		wrapper.setHandler(handler);
+		if (!replace(server, handler, wrapper)) {
+			System.err.println("Warn: unable to find the parent of " + handler
+					+ "; " + wrapper + " is not inserted.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the handler by its replacement in its parent.
+	 * @return false if the parent was not found.
+	 */
+	private static boolean replace(HandlerWrapper parent, Handler handler, Handler replacement) {
+		Handler child = parent.getHandler();
+		if (child == handler) {
+			parent.setHandler(replacement);
+			return true;
+		}
+		return child != null && replaceInChild(child, handler, replacement);
+	}
+
+	private static boolean replaceInChild(Handler child, Handler handler, Handler replacement) {
+		if (child instanceof HandlerCollection) {
+			HandlerCollection collection = (HandlerCollection)child;
+			Handler[] handlers = collection.getHandlers();
+			if (handlers == null) {
+				return false;
+			}
+			for (int i = 0; i < handlers.length; i++) {
+				if (handlers[i] == handler) {
+					Handler[] replaced = handlers.clone();
+					replaced[i] = replacement;
+					collection.setHandlers(replaced);
+					return true;
+				}
+			}
+			for (Handler h : handlers) {
+				if (replaceInChild(h, handler, replacement)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (child instanceof HandlerWrapper) {
+			return replace((HandlerWrapper)child, handler, replacement);
+		}
+		//other containers are not supported.
+		return false;
+	}
+
+}
@@ -0,0 +1,482 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import org.intalio.osgi.jetty.server.internal.resource.MappedZipReader;
+
+/**
+ * Classloader for the jars of ${jetty.home}/lib/etc.
+ * <p>
+ * Each jar is mapped in memory and its central directory is read once: all the entries of
+ * all the jars are in a single index. A class or a resource is looked up with a single
+ * hash probe instead of a probe in each jar; a class is defined from the mapped buffer.
+ * The index is saved in ${jetty.home}/work/lib-etc.index: when the jars have not changed
+ * it is read back instead of being rebuilt.
+ * </p>
+ * <p>
+ * The jars that cannot be mapped or indexed (folders, zip64, more than 2GB) are looked up by a plain
+ * URLClassLoader after the index. The URLs of all the jars are still returned by
+ * {@link #getURLs()}: jasper looks there for the tag-libraries.
+ * The signatures of signed jars are not verified.
+ * </p>
+ * <p>
+ * A mapped jar must be replaced by a new file rather than rewritten in place while the
+ * classloader is in use: see {@link LibEtcClassLoaderHelper}.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class IndexedJarClassLoader extends URLClassLoader {
+
+	private static final int INDEX_VERSION = 1;
+
+	/**
+	 * An entry of a jar.
+	 */
+	private static class Entry {
+		private final int _jar;
+		private final int _offset;
+		private final int _method;
+		private final int _compressedSize;
+		private final int _size;
+		/** the entry with the same name in a following jar. */
+		private Entry _next;
+		Entry(int jar, int offset, int method, int compressedSize, int size) {
+			_jar = jar;
+			_offset = offset;
+			_method = method;
+			_compressedSize = compressedSize;
+			_size = size;
+		}
+	}
+
+	/**
+	 * A jar mapped in memory.
+	 */
+	private class MappedJar {
+		private final File _file;
+		private final ByteBuffer _buffer;
+		private final String _baseUrl;
+		private final ProtectionDomain _domain;
+		private Manifest _manifest;
+		private boolean _manifestRead = false;
+		/** false when its central directory could not be read. */
+		private boolean _indexed = false;
+		MappedJar(File file, ByteBuffer buffer) throws MalformedURLException {
+			_file = file;
+			_buffer = buffer;
+			URL url = file.toURI().toURL();
+			_baseUrl = "jar:" + url + "!/";
+			CodeSource source = new CodeSource(url, (Certificate[])null);
+			_domain = new ProtectionDomain(source, getPermissions(source),
+					IndexedJarClassLoader.this, null);
+		}
+		/**
+		 * @return The content of the entry: a slice of the mapped buffer when it is stored.
+		 */
+		ByteBuffer read(Entry entry, String name) throws IOException {
+			int data = MappedZipReader.getDataOffset(_buffer, entry._offset,
+					entry._compressedSize, name, _file);
+			ByteBuffer compressed = MappedZipReader.getData(_buffer, data, entry._compressedSize);
+			if (entry._method == MappedZipReader.STORED) {
+				return compressed;
+			}
+			byte[] output = new byte[entry._size];
+			InputStream in = MappedZipReader.getInputStream(compressed, entry._method, name, _file);
+			try {
+				new DataInputStream(in).readFully(output);
+			} finally {
+				in.close();
+			}
+			return ByteBuffer.wrap(output);
+		}
+		synchronized Manifest getManifest() {
+			if (!_manifestRead) {
+				_manifestRead = true;
+				Entry entry = _index.get("META-INF/MANIFEST.MF");
+				while (entry != null && _jars[entry._jar] != this) {
+					entry = entry._next;
+				}
+				if (entry != null) {
+					try {
+						ByteBuffer content = read(entry, "META-INF/MANIFEST.MF");
+						byte[] bytes = new byte[content.remaining()];
+						content.get(bytes);
+						_manifest = new Manifest(new ByteArrayInputStream(bytes));
+					} catch (IOException e) {
+						System.err.println("Warn: unable to read the manifest of " + _file);
+					}
+				}
+			}
+			return _manifest;
+		}
+	}
+
+	private final MappedJar[] _jars;
+	/** entry name -> the entry of the first jar that has it. Not modified once built. */
+	private final Map<String,Entry> _index;
+	/** the jars that are not mapped; null when there is none. */
+	private final URLClassLoader _others;
+
+	/**
+	 * @param jars The jars and folders in their order in the classpath.
+	 * @param urls The URLs returned by {@link #getURLs()}.
+	 * @param indexFile Where the index is saved; null to not save it.
+	 * @param parent
+	 */
+	IndexedJarClassLoader(File[] jars, URL[] urls, File indexFile, ClassLoader parent)
+	throws IOException {
+		super(urls, parent);
+		List<MappedJar> mapped = new ArrayList<MappedJar>();
+		List<URL> others = new ArrayList<URL>();
+		for (File jar : jars) {
+			ByteBuffer buffer = jar.isFile() ? map(jar) : null;
+			if (buffer != null) {
+				mapped.add(new MappedJar(jar, buffer));
+			} else {
+				others.add(jar.isFile() ? new URL("jar:" + jar.toURI().toURL() + "!/")
+						: jar.toURI().toURL());
+			}
+		}
+		_jars = mapped.toArray(new MappedJar[mapped.size()]);
+		Map<String,Entry> index = indexFile != null ? loadIndex(indexFile) : null;
+		if (index == null) {
+			index = buildIndex();
+			if (indexFile != null) {
+				saveIndex(indexFile, index);
+			}
+		}
+		_index = index;
+		for (MappedJar jar : _jars) {
+			if (!jar._indexed) {
+				others.add(new URL(jar._baseUrl));
+			}
+		}
+		_others = others.isEmpty() ? null
+				: new URLClassLoader(others.toArray(new URL[others.size()]), null);
+	}
+
+	/**
+	 * @return The jar mapped in memory; null when it cannot be.
+	 */
+	private static ByteBuffer map(File jar) {
+		if (jar.length() > Integer.MAX_VALUE) {
+			return null;
+		}
+		try {
+			RandomAccessFile file = new RandomAccessFile(jar, "r");
+			try {
+				MappedByteBuffer buffer = file.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, jar.length());
+				buffer.order(ByteOrder.LITTLE_ENDIAN);
+				return buffer;
+			} finally {
+				//the mapping stays valid.
+				file.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warn: unable to map " + jar + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the central directory of each jar.
+	 */
+	private Map<String,Entry> buildIndex() {
+		Map<String,Entry> index = new HashMap<String,Entry>();
+		for (int j = 0; j < _jars.length; j++) {
+			_jars[j]._indexed = false;
+			try {
+				readCentralDirectory(j, index);
+				_jars[j]._indexed = true;
+			} catch (Exception e) {
+				System.err.println("Warn: unable to index " + _jars[j]._file + ": " + e);
+			}
+		}
+		return index;
+	}
+
+	private void readCentralDirectory(final int j, Map<String,Entry> index) throws IOException {
+		final List<Entry> entries = new ArrayList<Entry>();
+		final List<String> names = new ArrayList<String>();
+		MappedZipReader.readCentralDirectory(_jars[j]._buffer, _jars[j]._file,
+				new MappedZipReader.EntryHandler() {
+			public void entry(String name, int method, int dosDateTime, long compressedSize,
+					long size, int localHeaderOffset) throws IOException {
+				if (method != MappedZipReader.STORED && method != MappedZipReader.DEFLATED) {
+					throw new ZipException("unsupported compression method " + method);
+				}
+				if (size > Integer.MAX_VALUE) {
+					throw new ZipException("entry too large " + name);
+				}
+				if (!name.endsWith("/")) {
+					entries.add(new Entry(j, localHeaderOffset, method, (int)compressedSize,
+							(int)size));
+					names.add(name);
+				}
+			}
+		});
+		//only once the whole directory is valid.
+		for (int i = 0; i < entries.size(); i++) {
+			add(index, names.get(i), entries.get(i));
+		}
+	}
+
+	private static void add(Map<String,Entry> index, String name, Entry entry) {
+		Entry first = index.get(name);
+		if (first == null) {
+			index.put(name, entry);
+			return;
+		}
+		while (first._next != null) {
+			first = first._next;
+		}
+		first._next = entry;
+	}
+
+	/**
+	 * @return The index saved for the same jars; null when there is none or the jars changed.
+	 */
+	private Map<String,Entry> loadIndex(File indexFile) {
+		if (!indexFile.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != INDEX_VERSION || in.readInt() != _jars.length) {
+					return null;
+				}
+				for (MappedJar jar : _jars) {
+					if (!in.readUTF().equals(jar._file.getAbsolutePath())
+							|| in.readLong() != jar._file.length()
+							|| in.readLong() != jar._file.lastModified()) {
+						return null;
+					}
+					jar._indexed = in.readBoolean();
+				}
+				int count = in.readInt();
+				Map<String,Entry> index = new HashMap<String,Entry>(count * 4 / 3 + 1);
+				for (int i = 0; i < count; i++) {
+					String name = in.readUTF();
+					add(index, name, new Entry(in.readShort(), in.readInt(),
+							in.readByte(), in.readInt(), in.readInt()));
+				}
+				return index;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Warn: unable to read " + indexFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void saveIndex(File indexFile, Map<String,Entry> index) {
+		File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+		try {
+			indexFile.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			try {
+				out.writeInt(INDEX_VERSION);
+				out.writeInt(_jars.length);
+				for (MappedJar jar : _jars) {
+					out.writeUTF(jar._file.getAbsolutePath());
+					out.writeLong(jar._file.length());
+					out.writeLong(jar._file.lastModified());
+					out.writeBoolean(jar._indexed);
+				}
+				int count = 0;
+				for (Entry entry : index.values()) {
+					for (; entry != null; entry = entry._next) {
+						count++;
+					}
+				}
+				out.writeInt(count);
+				for (Map.Entry<String,Entry> e : index.entrySet()) {
+					for (Entry entry = e.getValue(); entry != null; entry = entry._next) {
+						out.writeUTF(e.getKey());
+						out.writeShort(entry._jar);
+						out.writeInt(entry._offset);
+						out.writeByte(entry._method);
+						out.writeInt(entry._compressedSize);
+						out.writeInt(entry._size);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile)) {
+				System.err.println("Warn: unable to save " + indexFile);
+			}
+		} catch (IOException e) {
+			System.err.println("Warn: unable to save " + indexFile + ": " + e.getMessage());
+			tmp.delete();
+		}
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		String entryName = name.replace('.', '/').concat(".class");
+		Entry entry = _index.get(entryName);
+		if (entry == null) {
+			if (_others != null) {
+				URL url = _others.findResource(entryName);
+				if (url != null) {
+					return defineClass(name, url);
+				}
+			}
+			throw new ClassNotFoundException(name);
+		}
+		MappedJar jar = _jars[entry._jar];
+		try {
+			definePackage(name, jar);
+			return defineClass(name, jar.read(entry, entryName), jar._domain);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+	}
+
+	/**
+	 * Defines a class of a jar that is not mapped.
+	 */
+	private Class<?> defineClass(String name, URL url) throws ClassNotFoundException {
+		try {
+			InputStream in = url.openStream();
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					bytes.write(buf, 0, n);
+				}
+				return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+	}
+
+	private void definePackage(String className, MappedJar jar) {
+		int dot = className.lastIndexOf('.');
+		if (dot == -1) {
+			return;
+		}
+		String pkg = className.substring(0, dot);
+		if (getPackage(pkg) != null) {
+			return;
+		}
+		Manifest manifest = jar.getManifest();
+		Attributes attrs = manifest != null ? manifest.getMainAttributes() : null;
+		try {
+			if (attrs == null) {
+				definePackage(pkg, null, null, null, null, null, null, null);
+			} else {
+				definePackage(pkg, attrs.getValue(Attributes.Name.SPECIFICATION_TITLE),
+						attrs.getValue(Attributes.Name.SPECIFICATION_VERSION),
+						attrs.getValue(Attributes.Name.SPECIFICATION_VENDOR),
+						attrs.getValue(Attributes.Name.IMPLEMENTATION_TITLE),
+						attrs.getValue(Attributes.Name.IMPLEMENTATION_VERSION),
+						attrs.getValue(Attributes.Name.IMPLEMENTATION_VENDOR), null);
+			}
+		} catch (IllegalArgumentException iae) {
+			//defined concurrently.
+		}
+	}
+
+	@Override
+	public URL findResource(String name) {
+		Entry entry = _index.get(name);
+		if (entry != null) {
+			return toUrl(name, entry);
+		}
+		return _others != null ? _others.findResource(name) : null;
+	}
+
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		List<URL> urls = new ArrayList<URL>(1);
+		for (Entry entry = _index.get(name); entry != null; entry = entry._next) {
+			URL url = toUrl(name, entry);
+			if (url != null) {
+				urls.add(url);
+			}
+		}
+		if (_others != null) {
+			urls.addAll(Collections.list(_others.findResources(name)));
+		}
+		return Collections.enumeration(urls);
+	}
+
+	private URL toUrl(String name, Entry entry) {
+		try {
+			return new URL(_jars[entry._jar]._baseUrl + name);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Also closes the loader of the jars that are not mapped.
+	 * The mapped buffers are unmapped when this classloader is collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (_others != null) {
+			_others.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "lib/etc[" + _jars.length + " jars, " + _index.size() + " entries]";
+	}
+
+}
@@ -11,12 +11,15 @@
 package org.intalio.osgi.jetty.server.internal.webapp;
 
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.intalio.osgi.jetty.server.JettyBootstrapActivator;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceRegistration;
 
 /**
  * Support bundles that declare the webapp directly through headers in their manifest.
@@ -33,6 +36,22 @@ import org.osgi.framework.BundleListener;
  *     <li>Jetty-ClassInBundle (optional if not found will default on
  *     						the Bundle-Activator if there is one.)</li></ul>
  * </p>
+ * <p>
+ * Optional header for both:
+ * <ul><li>Jetty-DependsOn: the context paths that must be started first.</li>
+ *     <li>Jetty-LazyStart: true to start the context on its first request.</li>
+ *     <li>Jetty-LazyStartIdleTimeout: seconds without request before a lazily
+ *     						started context is stopped again.</li>
+ *     <li>Jetty-AdmissionWeight: how much longer than the others the requests of
+ *     						the context may wait for a thread before they are shed;
+ *     						0 to never shed them.</li>
+ *     <li>Jetty-MaxConcurrency: the number of requests of the context handled at
+ *     						the same time; Jetty-MaxQueued: the number of requests
+ *     						suspended while they wait for their turn;
+ *     						Jetty-MaxQueuedTimeout: how long they wait in milliseconds.</li>
+ *     <li>Jetty-SharedLibs: the patterns of the names of the jars of WEB-INF/lib
+ *     						that are loaded once for all the webapps that embed them.</li></ul>
+ * </p>
  * And generate a jetty WebAppContext or another ContextHandler then registers it
  * as service. Kind of simpler than declarative services and their xml files.
  * Also avoid having the contributing bundle depend on jetty's package for WebApp.
@@ -41,6 +60,10 @@ import org.osgi.framework.BundleListener;
  */
 public class JettyContextHandlerExtender implements BundleListener {
 
+	/** bundle id -> the ContextHandler service registered for it. Guarded by itself. */
+	private final Map<Long,ServiceRegistration> _registrations =
+		new HashMap<Long,ServiceRegistration>();
+
 	/**
 	 * Receives notification that a bundle has had a lifecycle change.
 	 * 
@@ -81,9 +104,9 @@ public class JettyContextHandlerExtender implements BundleListener {
 			//create the corresponding service and publish it in the context of
 			//the contributor bundle.
 			try {
-				JettyBootstrapActivator.registerWebapplication(
+				registered(bundle, JettyBootstrapActivator.registerWebapplication(
 						bundle, warFolderRelativePath, contextPath,
-						nameOfClassInBundle);
+						nameOfClassInBundle));
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -96,9 +119,9 @@ public class JettyContextHandlerExtender implements BundleListener {
 			}
 			String nameOfClassInBundle = (String)dic.get("Jetty-ClassInBundle");
 			try {
-				JettyBootstrapActivator.registerContext(
+				registered(bundle, JettyBootstrapActivator.registerContext(
 						bundle, contextFileRelativePath,
-						nameOfClassInBundle);
+						nameOfClassInBundle));
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -106,8 +129,34 @@ public class JettyContextHandlerExtender implements BundleListener {
 		}
 	}
 	
+	private void registered(Bundle bundle, ServiceRegistration registration) {
+		ServiceRegistration previous;
+		synchronized (_registrations) {
+			previous = _registrations.put(bundle.getBundleId(), registration);
+		}
+		unregister(previous);
+	}
+	
+	/**
+	 * Unregisters the ContextHandler service of the bundle:
+	 * the tracker undeploys the context.
+	 */
 	private void unregister(Bundle bundle) {
-		//todo.
+		ServiceRegistration registration;
+		synchronized (_registrations) {
+			registration = _registrations.remove(bundle.getBundleId());
+		}
+		unregister(registration);
+	}
+	
+	private void unregister(ServiceRegistration registration) {
+		if (registration != null) {
+			try {
+				registration.unregister();
+			} catch (IllegalStateException ise) {
+				//already unregistered.
+			}
+		}
 	}
 	
 }
@@ -10,13 +10,16 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.internal.webapp;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.webapp.WebAppContext;
-import org.intalio.osgi.jetty.server.JettyBootstrapActivator;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -28,12 +31,24 @@ import org.osgi.framework.ServiceReference;
  * The idea is to always go through this class when we deploy a new webapp
  * on jetty.
  * </p>
+ * <p>
+ * The service events are only queued on the framework's dispatch thread:
+ * the deployments happen asynchronously. The progress of each deployment is
+ * published as a {@link org.intalio.osgi.jetty.server.management.DeploymentStatus}
+ * service.
+ * </p>
  * 
  * @author hmalphettes
  */
-public class JettyContextHandlerServiceTracker implements ServiceListener {
+public class JettyContextHandlerServiceTracker implements ServiceListener,
+		DeploymentQueue.Processor {
 	
 	private final WebappRegistrationHelper _helper;
+	private final BundleContext _bundleContext;
+	private final DeploymentQueue _queue;
+	
+	/** service id -> the deployment of that ContextHandler service. */
+	private final Map<Long,Deployed> _deployed = new ConcurrentHashMap<Long,Deployed>();
 	
 	/**
 	 * @param context
@@ -41,13 +56,27 @@ public class JettyContextHandlerServiceTracker implements ServiceListener {
 	 */
 	public JettyContextHandlerServiceTracker(BundleContext context, Server server)
 	throws Exception {
+		_bundleContext = context;
 		_helper = new WebappRegistrationHelper(server);
 		_helper.setup(context);
+		_queue = new DeploymentQueue(this);
 	}
 	
+	/**
+	 * Stops the deployments that are still pending.
+	 */
+	public void stop() {
+		_queue.stop();
+		_helper.stop();
+		for (Deployed d : _deployed.values()) {
+			d._status.unregister();
+		}
+		_deployed.clear();
+	}
 	
 	/**
 	 * Receives notification that a service has had a lifecycle change.
+	 * Only queues the work: this is called by the framework's event dispatch thread.
 	 * 
 	 * @param ev The <code>ServiceEvent</code> object.
 	 */
@@ -55,65 +84,139 @@ public class JettyContextHandlerServiceTracker implements ServiceListener {
 		ServiceReference sr = ev.getServiceReference();
 		switch(ev.getType()) {
 			case ServiceEvent.REGISTERED: {
-				Bundle contributor = sr.getBundle();
-				BundleContext context = FrameworkUtil
-					.getBundle(JettyBootstrapActivator.class).getBundleContext();
-				ContextHandler contextHandler = (ContextHandler) context.getService(sr);
-				if (contextHandler.getServer() != null) {
-					//is configured elsewhere.
-					return;
-				}
-				if (contextHandler instanceof WebAppContext) {
-					WebAppContext webapp = (WebAppContext)contextHandler;
-					String contextPath = (String)sr.getProperty("contextPath");
-					if (contextPath == null) {
-						contextPath = webapp.getContextPath();
-					}
-					String war = (String)sr.getProperty("war");
-					String nameOfClassInBundle = (String)sr.getProperty("classInBundle");
-					if (nameOfClassInBundle == null) {
-						nameOfClassInBundle = (String)contributor.getHeaders().get("Bundle-Activator");
-						if (nameOfClassInBundle == null) {
-//							BundleClassLoaderHelper.
-						}
-					}
-					try {
-						_helper.registerWebapplication(contributor, war, contextPath,
-								contributor.loadClass(nameOfClassInBundle));
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-				} else {
-					//consider this just an empty skeleton:
-					String contextFilePath = (String)sr.getProperty("contextFilePath");
-					if (contextFilePath == null) {
-						throw new IllegalArgumentException("the property contextFilePath is required");
-					}
-					String nameOfClassInBundle = (String)sr.getProperty("classInBundle");
-					if (nameOfClassInBundle == null) {
-						nameOfClassInBundle = (String)contributor.getHeaders().get("Bundle-Activator");
-						if (nameOfClassInBundle == null) {
-//							BundleClassLoaderHelper.
-						}
-					}
-					try {
-						_helper.registerContext(
-								contributor, contextFilePath,
-								contributor.loadClass(nameOfClassInBundle));
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+				DeploymentStatusImpl status = new DeploymentStatusImpl(sr.getBundle(),
+						(String)sr.getProperty("contextPath"));
+				status.register(_bundleContext);
+				if (!_queue.enqueue(ServiceEvent.REGISTERED, sr, status)) {
+					//duplicate.
+					status.unregister();
 				}
 			}
 			break;
 			case ServiceEvent.UNREGISTERING: {
-				//JettyBootstrapActivator.getInstance().unregisterContext(contributor, contextFile, classInBundle);
-				//TODO
+				_queue.enqueue(ServiceEvent.UNREGISTERING, sr, null);
 			}
 			break;
 		}
 	}
 	
+	/**
+	 * Called by the deployment queue: resolves the properties of the
+	 * ContextHandler service and hands it to the deployment engine.
+	 */
+	public void deploy(ServiceReference sr, DeploymentStatusImpl status) {
+		Bundle contributor = sr.getBundle();
+		ContextHandler contextHandler = contributor == null
+			? null : (ContextHandler) _bundleContext.getService(sr);
+		if (contextHandler == null) {
+			//unregistered in the mean time.
+			status.unregister();
+			return;
+		}
+		if (contextHandler.getServer() != null) {
+			//is configured elsewhere.
+			_bundleContext.ungetService(sr);
+			status.unregister();
+			return;
+		}
+		try {
+			Future<ContextHandler> future;
+			if (contextHandler instanceof WebAppContext) {
+				WebAppContext webapp = (WebAppContext)contextHandler;
+				String contextPath = (String)sr.getProperty("contextPath");
+				if (contextPath == null) {
+					contextPath = webapp.getContextPath();
+				}
+				String war = (String)sr.getProperty("war");
+				future = _helper.registerWebapplication(contributor, war, contextPath,
+						loadClassInBundle(sr, contributor), status);
+			} else {
+				//consider this just an empty skeleton:
+				String contextFilePath = (String)sr.getProperty("contextFilePath");
+				if (contextFilePath == null) {
+					throw new IllegalArgumentException("the property contextFilePath is required");
+				}
+				future = _helper.registerContext(
+						contributor, contextFilePath,
+						loadClassInBundle(sr, contributor), status);
+			}
+			_deployed.put(getServiceId(sr), new Deployed(sr, status, future));
+		} catch (Throwable t) {
+			status.failed(t);
+			_bundleContext.ungetService(sr);
+			t.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Called by the deployment queue.
+	 */
+	public void undeploy(ServiceReference sr) {
+		Deployed d = _deployed.remove(getServiceId(sr));
+		if (d == null) {
+			return;
+		}
+		d._status.unregister();
+		_helper.unregister(d._future, d._status.getContextPath());
+		_bundleContext.ungetService(sr);
+	}
+	
+	/**
+	 * Undeploys the context deployed on a context path.
+	 * The ContextHandler service itself remains registered.
+	 * @param contextPath
+	 * @return true if such a context was deployed.
+	 */
+	public boolean unregister(String contextPath) {
+		for (Map.Entry<Long,Deployed> e : _deployed.entrySet()) {
+			Deployed d = e.getValue();
+			if (contextPath.equals(d._status.getContextPath())
+					&& _deployed.remove(e.getKey()) == d) {
+				d._status.unregister();
+				_helper.unregister(d._future, contextPath);
+				_bundleContext.ungetService(d._sr);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Called by the deployment queue.
+	 */
+	public void cancelled(ServiceReference sr, DeploymentStatusImpl status) {
+		status.unregister();
+	}
+	
+	private static Long getServiceId(ServiceReference sr) {
+		return (Long)sr.getProperty(Constants.SERVICE_ID);
+	}
+	
+	/**
+	 * @return The class named by the property classInBundle or the Bundle-Activator;
+	 * null when there is none: the classloader of the bundle is resolved directly.
+	 */
+	private static Class<?> loadClassInBundle(ServiceReference sr, Bundle contributor)
+	throws ClassNotFoundException {
+		String nameOfClassInBundle = (String)sr.getProperty("classInBundle");
+		if (nameOfClassInBundle == null) {
+			nameOfClassInBundle = (String)contributor.getHeaders().get("Bundle-Activator");
+		}
+		return nameOfClassInBundle != null ? contributor.loadClass(nameOfClassInBundle) : null;
+	}
+	
+	/**
+	 * What was deployed for a ContextHandler service.
+	 */
+	private static class Deployed {
+		private final ServiceReference _sr;
+		private final DeploymentStatusImpl _status;
+		private final Future<ContextHandler> _future;
+		Deployed(ServiceReference sr, DeploymentStatusImpl status, Future<ContextHandler> future) {
+			_sr = sr;
+			_status = status;
+			_future = future;
+		}
+	}
+	
 }
@@ -0,0 +1,104 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed memory histogram of latencies in microseconds.
+ * <p>
+ * The buckets are log-linear: each power of 2 is split in 16 buckets,
+ * so a percentile is accurate within 1/16th whatever the latency.
+ * Latencies longer than 2^40 microseconds (12 days) go into the last bucket.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class LatencyHistogram {
+
+	/** 2^SUB_BITS buckets per power of 2. */
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	private static final int BUCKETS = (MAX_BITS - SUB_BITS + 2) * SUB_BUCKETS;
+	/** the buckets are not as hot as the request counters. */
+	private static final int STRIPES = Math.min(StripedCounters.STRIPES, 4);
+
+	private final StripedCounters _buckets = new StripedCounters(BUCKETS, STRIPES);
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * @param micros
+	 */
+	void record(long micros) {
+		_buckets.increment(bucket(micros));
+		long max = _max.get();
+		while (micros > max && !_max.compareAndSet(max, micros)) {
+			max = _max.get();
+		}
+	}
+
+	/**
+	 * @param percentile between 0 and 1.
+	 * @return The upper bound of the bucket where the percentile falls; 0 when empty.
+	 */
+	long getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = _buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(Math.min(Math.max(percentile, 0), 1) * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(upperBound(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	long getMax() {
+		return _max.get();
+	}
+
+	void reset() {
+		_buckets.reset();
+		_max.set(0);
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return micros < 0 ? 0 : (int)micros;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(micros);
+		if (msb > MAX_BITS) {
+			return BUCKETS - 1;
+		}
+		int sub = (int)(micros >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int msb = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << (msb - SUB_BITS)) - 1;
+	}
+
+}
@@ -0,0 +1,305 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
+import org.osgi.framework.Bundle;
+
+/**
+ * Placeholder deployed on the context path of a webapp that is started on its first request.
+ * <p>
+ * Nothing is created until then: the first request builds the classloader,
+ * configures the context and starts it; the concurrent requests wait for it to be ready.
+ * When an idle timeout is set, the context is stopped once it has not served any request
+ * for that long: its classloader is released and the next request starts it again.
+ * </p>
+ * <p>
+ * Opt-in with the manifest header <code>Jetty-LazyStart: true</code>.
+ * The idle timeout in seconds is read from the header <code>Jetty-LazyStartIdleTimeout</code>;
+ * it defaults on the system property <code>jetty.lazystart.idle.timeout</code>
+ * and on 0: never stopped.
+ * </p>
+ * <p>
+ * When the context fails to start, the requests are answered 503 until a retry delay has
+ * elapsed or the webapp is redeployed; then the next request tries again.
+ * The delay in seconds is read from the system property <code>jetty.lazystart.retry.delay</code>;
+ * it defaults on 30.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class LazyContextHandler extends ContextHandler {
+
+	/** Manifest header: the context is started on its first request. */
+	public static final String HEADER_LAZY_START = "Jetty-LazyStart";
+	/** Manifest header: seconds without request before the context is stopped again. */
+	public static final String HEADER_IDLE_TIMEOUT = "Jetty-LazyStartIdleTimeout";
+	/** System property: default idle timeout in seconds. */
+	public static final String SYS_PROP_IDLE_TIMEOUT = "jetty.lazystart.idle.timeout";
+	/** System property: seconds before a context that failed to start is tried again. */
+	public static final String SYS_PROP_RETRY_DELAY = "jetty.lazystart.retry.delay";
+
+	private final Callable<ContextHandler> _factory;
+	private final long _idleTimeout;
+	private final ScheduledExecutorService _scheduler;
+	/** guards the activation and the deactivation. */
+	private final Object _lock = new Object();
+	private final AtomicInteger _inFlight = new AtomicInteger();
+
+	/** the context created for the path but not started yet. */
+	private volatile ContextHandler _prepared;
+	private volatile ContextHandler _active;
+	private volatile long _lastAccess;
+	/** until when the requests are refused after a failed activation. */
+	private volatile long _failedUntil;
+
+	/**
+	 * @param contextPath
+	 * @param prepared The context already created and configured but not started; used for
+	 * the first activation. Can be null.
+	 * @param factory Creates and configures a new context. Not started.
+	 * @param idleTimeout in milliseconds. 0 to never stop the context.
+	 * @param scheduler Runs the idle checks.
+	 */
+	LazyContextHandler(String contextPath, ContextHandler prepared,
+			Callable<ContextHandler> factory, long idleTimeout, ScheduledExecutorService scheduler) {
+		super(contextPath);
+		_prepared = prepared;
+		if (prepared != null) {
+			setVirtualHosts(prepared.getVirtualHosts());
+		}
+		_factory = factory;
+		_idleTimeout = idleTimeout;
+		_scheduler = scheduler;
+	}
+
+	/**
+	 * @return The started context or null if it is not active.
+	 */
+	ContextHandler getActiveContext() {
+		return _active;
+	}
+
+	/**
+	 * @return The started context; else the context prepared for the first activation;
+	 * null when there is none: the first activation creates it.
+	 */
+	ContextHandler getStartedOrPreparedContext() {
+		ContextHandler context = _active;
+		return context != null ? context : _prepared;
+	}
+
+	@Override
+	public void doScope(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		ContextHandler context;
+		while (true) {
+			context = _active;
+			if (context == null) {
+				try {
+					context = activate();
+				} catch (Throwable t) {
+					System.err.println("Unable to start the context " + getContextPath());
+					t.printStackTrace();
+				}
+				if (context == null) {
+					//failed now or recently: don't queue on the lock until the retry delay.
+					response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					baseRequest.setHandled(true);
+					return;
+				}
+			}
+			_inFlight.incrementAndGet();
+			if (_active == context) {
+				break;
+			}
+			//deactivated in the mean time.
+			_inFlight.decrementAndGet();
+		}
+		try {
+			_lastAccess = System.currentTimeMillis();
+			context.handle(target, baseRequest, request, response);
+		} finally {
+			exit(baseRequest);
+		}
+	}
+
+	/**
+	 * A suspended request stays in flight until it completes: the idle check
+	 * must not stop the context under it.
+	 */
+	private void exit(Request baseRequest) {
+		AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+		if (!continuation.isSuspended()) {
+			_inFlight.decrementAndGet();
+			return;
+		}
+		continuation.addContinuationListener(new ContinuationListener() {
+			public void onComplete(Continuation c) {
+				_inFlight.decrementAndGet();
+			}
+			public void onTimeout(Continuation c) {
+			}
+		});
+	}
+
+	@Override
+	public void doHandle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		doScope(target, baseRequest, request, response);
+	}
+
+	/**
+	 * Nothing is started until the first request.
+	 */
+	@Override
+	protected void doStart() throws Exception {
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		ContextHandler context;
+		synchronized (_lock) {
+			context = _active;
+			_active = null;
+			_prepared = null;
+		}
+		if (context != null) {
+			DeployedContexts.stopAndRelease(context);
+		}
+	}
+
+	/**
+	 * The concurrent first requests wait on the lock.
+	 * @return The started context; null while the retry delay of a failed activation
+	 * has not elapsed.
+	 */
+	private ContextHandler activate() throws Exception {
+		if (System.currentTimeMillis() < _failedUntil) {
+			return null;
+		}
+		synchronized (_lock) {
+			if (_active != null) {
+				return _active;
+			}
+			if (System.currentTimeMillis() < _failedUntil) {
+				//the activation that held the lock failed.
+				return null;
+			}
+			if (!isStarted()) {
+				throw new IllegalStateException("The context " + getContextPath()
+						+ " was undeployed");
+			}
+			ContextHandler context = _prepared;
+			_prepared = null;
+			try {
+				if (context == null) {
+					context = _factory.call();
+				}
+				DeployedContexts.start(context, getServer());
+			} catch (Exception e) {
+				_failedUntil = System.currentTimeMillis()
+						+ SystemPropertiesHelper.getLongProperty(SYS_PROP_RETRY_DELAY, 30) * 1000;
+				if (context != null) {
+					//release what was started and the classloader.
+					DeployedContexts.stopAndRelease(context);
+				}
+				throw e;
+			}
+			_lastAccess = System.currentTimeMillis();
+			_active = context;
+			scheduleIdleCheck(_idleTimeout);
+			return context;
+		}
+	}
+
+	private void scheduleIdleCheck(long delay) {
+		if (_idleTimeout <= 0) {
+			return;
+		}
+		try {
+			_scheduler.schedule(new Runnable() {
+				public void run() {
+					checkIdle();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (Throwable t) {
+			//the scheduler is shutdown: the server is stopping.
+		}
+	}
+
+	private void checkIdle() {
+		ContextHandler context;
+		synchronized (_lock) {
+			context = _active;
+			if (context == null) {
+				return;
+			}
+			long idleFor = System.currentTimeMillis() - _lastAccess;
+			if (_inFlight.get() > 0 || idleFor < _idleTimeout) {
+				scheduleIdleCheck(Math.max(_idleTimeout - idleFor, 1000));
+				return;
+			}
+			_active = null;
+			if (_inFlight.get() > 0) {
+				//a request entered in the mean time.
+				_active = context;
+				scheduleIdleCheck(_idleTimeout);
+				return;
+			}
+		}
+		DeployedContexts.stopAndRelease(context);
+	}
+
+	/**
+	 * @param contributor
+	 * @return true if the bundle declares the header {@link #HEADER_LAZY_START}
+	 */
+	static boolean isLazyStart(Bundle contributor) {
+		Object header = contributor.getHeaders().get(HEADER_LAZY_START);
+		return header != null && "true".equalsIgnoreCase(header.toString().trim());
+	}
+
+	/**
+	 * @param contributor
+	 * @return The idle timeout in milliseconds; 0 to never stop the context.
+	 */
+	static long getIdleTimeout(Bundle contributor) {
+		Object header = contributor.getHeaders().get(HEADER_IDLE_TIMEOUT);
+		String value = header != null ? header.toString() : System.getProperty(SYS_PROP_IDLE_TIMEOUT);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim()) * 1000;
+		} catch (NumberFormatException nfe) {
+			System.err.println("Warn: invalid idle timeout '" + value + "' for "
+					+ contributor.getSymbolicName());
+			return 0;
+		}
+	}
+
+}
@@ -11,6 +11,7 @@
 package org.intalio.osgi.jetty.server.internal.webapp;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -56,14 +57,32 @@ import org.eclipse.jetty.server.Server;
  * (least favorite: it will work only on equinox)</li>
  * </ol>
  * </p>
+ * <p>
+ * lib/etc is watched: once its jars have not changed for a quiet period, a new
+ * classloader is created and the contexts that use the previous one are redeployed.
+ * The jars are mapped in memory by the {@link IndexedJarClassLoader}: to update a jar,
+ * copy the new version next to it then rename it over the old one;
+ * do not overwrite it in place while the previous classloader is still in use.
+ * <br/>System properties: <code>jetty.libetc.watch</code> false to not watch lib/etc;
+ * <code>jetty.libetc.watch.quiet</code> the quiet period in milliseconds, defaults to 2000.
+ * </p>
  * @author hmalphettes
  */
 public class LibEtcClassLoaderHelper {
 
+	/** System property: false to load lib/etc with a plain URLClassLoader. */
+	public static final String SYS_PROP_INDEXED = "jetty.libetc.indexed";
+	/** System property: false to not reload lib/etc when its jars change. */
+	public static final String SYS_PROP_WATCH = "jetty.libetc.watch";
+	/** System property: how long without change before lib/etc is reloaded. */
+	public static final String SYS_PROP_WATCH_QUIET = "jetty.libetc.watch.quiet";
+
 	/**
 	 * @param server
 	 * @return a url classloader with the jars of lib/etc. The parent classloader
-	 * usuall is the JettyBootStrapper.
+	 * usuall is the JettyBootStrapper. Unless the system property
+	 * <code>jetty.libetc.indexed</code> is false, it is an {@link IndexedJarClassLoader}
+	 * whose index is saved in ${jetty.home}/work/lib-etc.index
 	 * @throws MalformedURLException 
 	 */
 	public static ClassLoader createLibEtcClassLoaderHelper(File jettyHome, Server server,
@@ -71,6 +90,7 @@ public class LibEtcClassLoaderHelper {
 	throws MalformedURLException {
 		File libEtc = new File(jettyHome, "lib/etc");
 		ArrayList<URL> urls = new ArrayList<URL>();
+		ArrayList<File> files = new ArrayList<File>();
 		for (File f : libEtc.listFiles()) {
 			if (f.getName().endsWith(".jar")) {
 				//cheap to tolerate folders so let's do it.
@@ -79,13 +99,22 @@ public class LibEtcClassLoaderHelper {
 					url = new URL("jar:" + url.toString() + "!/");
 				}
 				urls.add(url);
+				files.add(f);
 			}
 		}
 		if (urls.isEmpty()) {
 			return parentClassLoader;
 		}
-		return new URLClassLoader(urls.toArray(new URL[urls.size()]),
-				parentClassLoader);
+		URL[] urlsArray = urls.toArray(new URL[urls.size()]);
+		if (!"false".equals(System.getProperty(SYS_PROP_INDEXED))) {
+			try {
+				return new IndexedJarClassLoader(files.toArray(new File[files.size()]),
+						urlsArray, new File(jettyHome, "work/lib-etc.index"), parentClassLoader);
+			} catch (IOException e) {
+				System.err.println("Warn: unable to index lib/etc: " + e.getMessage());
+			}
+		}
+		return new URLClassLoader(urlsArray, parentClassLoader);
 	}
 	
 	
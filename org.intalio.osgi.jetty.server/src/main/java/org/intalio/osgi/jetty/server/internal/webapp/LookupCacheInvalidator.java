@@ -0,0 +1,87 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.intalio.osgi.jetty.server.internal.jsp.TldLocatableURLClassloader;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+/**
+ * Invalidates the lookup cache of the webapps' classloaders when the bundle
+ * that contributed the webapp is refreshed.
+ * The classloaders are only weakly referenced: an undeployed webapp does not
+ * need to be removed explicitly.
+ *
+ * @author hmalphettes
+ */
+class LookupCacheInvalidator implements BundleListener {
+
+	/** bundle id -> the classloaders that delegate to that bundle. Guarded by itself. */
+	private final Map<Long,List<WeakReference<TldLocatableURLClassloader>>> _classloaders =
+		new HashMap<Long,List<WeakReference<TldLocatableURLClassloader>>>();
+
+	/**
+	 * @param contributor The bundle whose classloader is in the delegation chain.
+	 * @param cl
+	 */
+	void track(Bundle contributor, TldLocatableURLClassloader cl) {
+		synchronized (_classloaders) {
+			Long id = Long.valueOf(contributor.getBundleId());
+			List<WeakReference<TldLocatableURLClassloader>> cls = _classloaders.get(id);
+			if (cls == null) {
+				cls = new ArrayList<WeakReference<TldLocatableURLClassloader>>();
+				_classloaders.put(id, cls);
+			}
+			cls.add(new WeakReference<TldLocatableURLClassloader>(cl));
+		}
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.RESOLVED:
+		case BundleEvent.UNINSTALLED:
+			synchronized (_classloaders) {
+				Long id = Long.valueOf(event.getBundle().getBundleId());
+				List<WeakReference<TldLocatableURLClassloader>> cls = _classloaders.get(id);
+				if (cls != null) {
+					invalidate(cls);
+					if (cls.isEmpty() || event.getType() == BundleEvent.UNINSTALLED) {
+						_classloaders.remove(id);
+					}
+				}
+			}
+			break;
+		}
+	}
+
+	private static void invalidate(List<WeakReference<TldLocatableURLClassloader>> cls) {
+		Iterator<WeakReference<TldLocatableURLClassloader>> it = cls.iterator();
+		while (it.hasNext()) {
+			TldLocatableURLClassloader cl = it.next().get();
+			if (cl == null) {
+				it.remove();
+			} else {
+				cl.invalidateLookupCache();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.intalio.osgi.jetty.server.management.DeploymentTimings;
+
+/**
+ * Times the phases of one deployment or of the setup of the server.
+ * <p>
+ * Each call to {@link #phase(String)} ends the current phase and starts the next one.
+ * A phase executed more than once is accumulated.
+ * Used by one thread at a time: the deployment hands it from the queue thread
+ * to a deployer thread.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class PhaseTimer implements DeploymentTimings.Timing {
+
+	private final String _name;
+	private final long _startedAt = System.currentTimeMillis();
+	private final LinkedHashMap<String,Long> _phases = new LinkedHashMap<String,Long>();
+	private volatile String _contextPath;
+	private volatile boolean _failed = false;
+	private String _current;
+	private long _currentStart;
+
+	/**
+	 * @param name The symbolic name of the bundle deployed.
+	 * @param contextPath The context path when it is known; null otherwise.
+	 */
+	PhaseTimer(String name, String contextPath) {
+		_name = name;
+		_contextPath = contextPath;
+	}
+
+	/**
+	 * Ends the current phase and starts a new one.
+	 * @param phase
+	 */
+	synchronized void phase(String phase) {
+		end();
+		_current = phase;
+		_currentStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the current phase.
+	 */
+	synchronized void end() {
+		if (_current != null) {
+			long duration = (System.nanoTime() - _currentStart) / 1000000;
+			Long previous = _phases.get(_current);
+			_phases.put(_current, previous != null ? previous + duration : duration);
+			_current = null;
+		}
+	}
+
+	void setContextPath(String contextPath) {
+		_contextPath = contextPath;
+	}
+
+	void failed() {
+		_failed = true;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public String getContextPath() {
+		return _contextPath;
+	}
+
+	public long getStartedAt() {
+		return _startedAt;
+	}
+
+	public synchronized long getTotalDuration() {
+		long total = 0;
+		for (Long duration : _phases.values()) {
+			total += duration;
+		}
+		return total;
+	}
+
+	public synchronized Map<String,Long> getPhases() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String,Long>(_phases));
+	}
+
+	public boolean isFailed() {
+		return _failed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(_name);
+		if (_contextPath != null) {
+			sb.append(' ').append(_contextPath);
+		}
+		sb.append(' ').append(getTotalDuration()).append("ms");
+		if (_failed) {
+			sb.append(" FAILED");
+		}
+		sb.append(' ').append(_phases);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,106 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.intalio.osgi.jetty.server.management.RequestStatistics;
+
+/**
+ * The counters of the contexts deployed; one {@link ContextRequestStatistics} per
+ * context path.
+ * <p>
+ * The getters that return strings are the attributes of the MBean:
+ * see jmx/RequestStatisticsImpl-mbean.properties
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class RequestStatisticsImpl implements RequestStatistics {
+
+	private final ConcurrentHashMap<String,ContextRequestStatistics> _contexts =
+		new ConcurrentHashMap<String,ContextRequestStatistics>();
+
+	/**
+	 * @param contextPath
+	 * @return The counters of the context path; created when it is deployed the first time.
+	 */
+	ContextRequestStatistics forContextPath(String contextPath) {
+		ContextRequestStatistics stats = _contexts.get(contextPath);
+		if (stats == null) {
+			stats = new ContextRequestStatistics(contextPath);
+			ContextRequestStatistics existing = _contexts.putIfAbsent(contextPath, stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * The context path is undeployed.
+	 * @param contextPath
+	 */
+	void remove(String contextPath) {
+		_contexts.remove(contextPath);
+	}
+
+	public String[] getContextPaths() {
+		List<String> paths = new ArrayList<String>(_contexts.keySet());
+		Collections.sort(paths);
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	public ContextStatistics getStatistics(String contextPath) {
+		return _contexts.get(contextPath);
+	}
+
+	public void reset() {
+		for (ContextRequestStatistics stats : _contexts.values()) {
+			stats.reset();
+		}
+	}
+
+	/**
+	 * @return MBean attribute: one line per context; the busiest first.
+	 */
+	public String[] getContextsSummary() {
+		List<ContextRequestStatistics> contexts =
+			new ArrayList<ContextRequestStatistics>(_contexts.values());
+		Collections.sort(contexts, new Comparator<ContextRequestStatistics>() {
+			public int compare(ContextRequestStatistics o1, ContextRequestStatistics o2) {
+				long r1 = o1.getRequests();
+				long r2 = o2.getRequests();
+				return r1 < r2 ? 1 : (r1 == r2 ? 0 : -1);
+			}
+		});
+		String[] res = new String[contexts.size()];
+		int i = 0;
+		for (ContextRequestStatistics stats : contexts) {
+			res[i++] = stats.toString();
+		}
+		return res;
+	}
+
+	/**
+	 * @param contextPath
+	 * @return MBean operation: the summary of one context.
+	 */
+	public String summaryOf(String contextPath) {
+		ContextRequestStatistics stats = _contexts.get(contextPath);
+		return stats != null ? stats.toString() : null;
+	}
+
+}
@@ -0,0 +1,112 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.eclipse.jetty.webapp.WebAppClassLoader;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+/**
+ * The classloader of a webapp whose jars are partly loaded by the shared classloader.
+ * <p>
+ * The shared jars of WEB-INF/lib are not added to its classpath; the classes and resources
+ * it does not find in its own classpath are looked up in its shared jars before its parent:
+ * they are found in the same order as when the jars were in its classpath.
+ * The shared jars are still listed by {@link #getURLs()}: jasper and jetty build the
+ * classpath of the jsp compiler from it.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class SharedLibWebAppClassLoader extends WebAppClassLoader {
+
+	private final SharedLibrariesImpl.Lease _lease;
+
+	/**
+	 * @param parent
+	 * @param context
+	 * @param lease The shared jars of the webapp.
+	 */
+	SharedLibWebAppClassLoader(ClassLoader parent, WebAppContext context,
+			SharedLibrariesImpl.Lease lease) throws IOException {
+		super(parent, context);
+		_lease = lease;
+	}
+
+	@Override
+	public void addClassPath(String classPath) throws IOException {
+		if (classPath != null && _lease.isShared(classPath)) {
+			return;
+		}
+		super.addClassPath(classPath);
+	}
+
+	/**
+	 * @return The classpath of the webapp followed by its shared jars.
+	 */
+	@Override
+	public URL[] getURLs() {
+		List<URL> shared = _lease.getURLs();
+		URL[] own = super.getURLs();
+		if (shared.isEmpty()) {
+			return own;
+		}
+		List<URL> urls = new ArrayList<URL>(own.length + shared.size());
+		urls.addAll(Arrays.asList(own));
+		urls.addAll(shared);
+		return urls.toArray(new URL[urls.size()]);
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		try {
+			return super.findClass(name);
+		} catch (ClassNotFoundException cnfe) {
+			Class<?> c = _lease.loadClass(name);
+			if (c != null) {
+				return c;
+			}
+			throw cnfe;
+		}
+	}
+
+	@Override
+	public URL findResource(String name) {
+		URL url = super.findResource(name);
+		return url != null ? url : _lease.findResource(name);
+	}
+
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		List<URL> shared = _lease.findResources(name);
+		if (shared.isEmpty()) {
+			return super.findResources(name);
+		}
+		List<URL> urls = Collections.list(super.findResources(name));
+		urls.addAll(shared);
+		return Collections.enumeration(urls);
+	}
+
+	/**
+	 * The webapp is undeployed: it no longer uses its shared jars.
+	 */
+	void release() {
+		_lease.release();
+	}
+
+}
@@ -0,0 +1,564 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.intalio.osgi.jetty.server.management.SharedLibraries;
+import org.osgi.framework.Bundle;
+
+/**
+ * Loads once the jars that several webapps embed in their WEB-INF/lib folder.
+ * <p>
+ * Opt-in: only the jars whose file name matches one of the patterns of the system property
+ * <code>jetty.webinf.lib.shared</code> or of the manifest header <code>Jetty-SharedLibs</code>
+ * of the webapp's bundle are shared. Comma separated; <code>*</code> is a wildcard.
+ * For example <code>commons-*.jar,jackson-*.jar</code>.
+ * </p>
+ * <p>
+ * A jar is identified by the hash of its content; the first time it is seen it is copied
+ * into ${jetty.home}/work/shared-lib and added to the shared classloader. The parent of the
+ * shared classloader is the lib/etc classloader: a shared jar must not depend on the
+ * classes of a webapp. The {@link SharedLibWebAppClassLoader} of a webapp looks up its
+ * shared jars where it looked up its own jars. A jar is kept in its webapp when it
+ * contains tag-libraries or when another shared jar already defines one of its classes.
+ * The shared jars stay loaded until the server stops or until the lib/etc classloader
+ * is reloaded: the webapps deployed after that share the jars in a new shared classloader.
+ * </p>
+ * <p>
+ * The getters that return strings are the attributes of the MBean:
+ * see jmx/SharedLibrariesImpl-mbean.properties
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class SharedLibrariesImpl implements SharedLibraries {
+
+	/** System property: the patterns of the jar names shared by all the webapps. */
+	public static final String SYS_PROP_SHARED = "jetty.webinf.lib.shared";
+	/** Manifest header: the patterns of the jar names the webapp shares. */
+	public static final String HEADER_SHARED = "Jetty-SharedLibs";
+
+	/**
+	 * A jar loaded by the shared classloader.
+	 */
+	static class SharedJar {
+		private final String _name;
+		private final String _hash;
+		private final URL _url;
+		private final Set<String> _entries;
+		private final AtomicInteger _webapps = new AtomicInteger();
+		private final AtomicLong _loadedClasses = new AtomicLong();
+		private final AtomicLong _loadedBytes = new AtomicLong();
+		SharedJar(String name, String hash, URL url, Set<String> entries) {
+			_name = name;
+			_hash = hash;
+			_url = url;
+			_entries = entries;
+		}
+		String getKey() {
+			return _name + "@" + _hash.substring(0, 8);
+		}
+		private URL getEntryUrl(String entry) {
+			try {
+				return new URL("jar:" + _url + "!/" + entry);
+			} catch (MalformedURLException e) {
+				return null;
+			}
+		}
+		private long getSavedBytes() {
+			return _loadedBytes.get() * Math.max(_webapps.get() - 1, 0);
+		}
+	}
+
+	/**
+	 * The shared jars of a webapp; released when its classloader is released.
+	 */
+	class Lease {
+		private final List<SharedJar> _jars;
+		/** the names of the jars in WEB-INF/lib that are shared. */
+		private final Set<String> _fileNames;
+		/** the shared classloader when the lease was made. */
+		private final SharedClassLoader _sharedLoader;
+		private final AtomicBoolean _released = new AtomicBoolean();
+		private Lease(List<SharedJar> jars, Set<String> fileNames, SharedClassLoader loader) {
+			_jars = jars;
+			_fileNames = fileNames;
+			_sharedLoader = loader;
+		}
+		/**
+		 * @param classPath An entry of the classpath of the webapp.
+		 * @return true if it is a jar of WEB-INF/lib that is shared.
+		 */
+		boolean isShared(String classPath) {
+			if (classPath.indexOf("WEB-INF/lib/") == -1) {
+				return false;
+			}
+			String name = classPath.substring(classPath.lastIndexOf('/') + 1);
+			try {
+				name = URLDecoder.decode(name, "UTF-8");
+			} catch (Exception e) {
+				//keep it as it is.
+			}
+			return _fileNames.contains(name);
+		}
+		/**
+		 * @return The class if it is defined by one of the shared jars of the webapp;
+		 * null otherwise.
+		 */
+		Class<?> loadClass(String name) throws ClassNotFoundException {
+			SharedJar jar = _sharedLoader._definitions.get(name.replace('.', '/') + ".class");
+			return jar != null && _jars.contains(jar) ? _sharedLoader.loadClass(name) : null;
+		}
+		URL findResource(String name) {
+			for (SharedJar jar : _jars) {
+				if (jar._entries.contains(name)) {
+					return jar.getEntryUrl(name);
+				}
+			}
+			return null;
+		}
+		/**
+		 * @return The copies in ${jetty.home}/work/shared-lib of the shared jars.
+		 */
+		List<URL> getURLs() {
+			List<URL> urls = new ArrayList<URL>(_jars.size());
+			for (SharedJar jar : _jars) {
+				urls.add(jar._url);
+			}
+			return urls;
+		}
+		List<URL> findResources(String name) {
+			List<URL> urls = null;
+			for (SharedJar jar : _jars) {
+				if (jar._entries.contains(name)) {
+					if (urls == null) {
+						urls = new ArrayList<URL>(1);
+					}
+					urls.add(jar.getEntryUrl(name));
+				}
+			}
+			return urls != null ? urls : Collections.<URL>emptyList();
+		}
+		void release() {
+			if (_released.compareAndSet(false, true)) {
+				for (SharedJar jar : _jars) {
+					jar._webapps.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads its own classes first like a webapp does; then delegates to the lib/etc classloader.
+	 */
+	private class SharedClassLoader extends URLClassLoader {
+		/** class entry -> the shared jar that defines it. */
+		private final ConcurrentHashMap<String,SharedJar> _definitions;
+		SharedClassLoader(ClassLoader parent, ConcurrentHashMap<String,SharedJar> definitions) {
+			super(new URL[0], parent);
+			_definitions = definitions;
+		}
+		void add(SharedJar jar) {
+			addURL(jar._url);
+		}
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve)
+		throws ClassNotFoundException {
+			Class<?> c = findLoadedClass(name);
+			if (c == null) {
+				String entry = name.replace('.', '/') + ".class";
+				SharedJar jar = _definitions.get(entry);
+				if (jar == null) {
+					return super.loadClass(name, resolve);
+				}
+				c = findClass(name);
+				jar._loadedClasses.incrementAndGet();
+				Integer size = _classSizes.get(entry);
+				if (size != null) {
+					jar._loadedBytes.addAndGet(size);
+				}
+			}
+			if (resolve) {
+				resolveClass(c);
+			}
+			return c;
+		}
+		@Override
+		public String toString() {
+			return "shared-lib[" + getURLs().length + " jars]";
+		}
+	}
+
+	/** path of a jar -> its fingerprint; to avoid hashing again an unchanged jar. */
+	private static class Fingerprint {
+		private final long _length;
+		private final long _lastModified;
+		private final String _hash;
+		Fingerprint(long length, long lastModified, String hash) {
+			_length = length;
+			_lastModified = lastModified;
+			_hash = hash;
+		}
+	}
+
+	private final Pattern[] _patterns;
+	private File _workDir;
+	private ClassLoader _parent;
+	/** Guarded by this. */
+	private SharedClassLoader _loader;
+	/** hash -> the shared jar. Guarded by this. */
+	private Map<String,SharedJar> _jarsByHash = new HashMap<String,SharedJar>();
+	/** class entry -> the shared jar that defines it. Replaced with the shared classloader. */
+	private ConcurrentHashMap<String,SharedJar> _classes =
+		new ConcurrentHashMap<String,SharedJar>();
+	/** class entry -> the size of its class file. */
+	private final ConcurrentHashMap<String,Integer> _classSizes =
+		new ConcurrentHashMap<String,Integer>();
+	/** the hashes of the jars that are kept in their webapp. Guarded by this. */
+	private final Set<String> _unshareable = new HashSet<String>();
+	/** Guarded by this. */
+	private final Map<String,Fingerprint> _fingerprints = new HashMap<String,Fingerprint>();
+	private final AtomicLong _conflicts = new AtomicLong();
+
+	SharedLibrariesImpl() {
+		_patterns = parsePatterns(System.getProperty(SYS_PROP_SHARED));
+	}
+
+	/**
+	 * A new lib/etc classloader starts a new shared classloader; the webapps that
+	 * already have a lease keep using the previous one.
+	 * @param parent The lib/etc classloader.
+	 * @param workDir Where the shared jars are copied.
+	 */
+	synchronized void configure(ClassLoader parent, File workDir) {
+		if (_parent != null && _parent != parent) {
+			_loader = null;
+			_jarsByHash = new HashMap<String,SharedJar>();
+			_classes = new ConcurrentHashMap<String,SharedJar>();
+			//the conflicts were with the classes of the previous shared classloader.
+			_unshareable.clear();
+		}
+		_parent = parent;
+		_workDir = workDir;
+	}
+
+	/**
+	 * Shares the jars of the webapp that can be.
+	 * @param contributor The bundle of the webapp.
+	 * @param libDir The WEB-INF/lib folder of the webapp; null when it is not a folder.
+	 * @return The shared jars of the webapp; null when none is shared.
+	 */
+	synchronized Lease share(Bundle contributor, File libDir) {
+		if (libDir == null || _workDir == null) {
+			return null;
+		}
+		Pattern[] headerPatterns = parsePatterns((String)contributor.getHeaders().get(HEADER_SHARED));
+		if (_patterns == null && headerPatterns == null) {
+			return null;
+		}
+		File[] files = libDir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		List<SharedJar> jars = new ArrayList<SharedJar>();
+		Set<String> fileNames = new HashSet<String>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.toLowerCase().endsWith(".jar") || !file.isFile()
+					|| (!matches(_patterns, name) && !matches(headerPatterns, name))) {
+				continue;
+			}
+			try {
+				String hash = fingerprint(file);
+				if (_unshareable.contains(hash)) {
+					continue;
+				}
+				SharedJar jar = _jarsByHash.get(hash);
+				if (jar == null) {
+					jar = load(file, hash);
+					if (jar == null) {
+						_unshareable.add(hash);
+						continue;
+					}
+				}
+				if (!jars.contains(jar)) {
+					jar._webapps.incrementAndGet();
+					jars.add(jar);
+				}
+				fileNames.add(name);
+			} catch (IOException e) {
+				System.err.println("Warn: unable to share " + file + ": " + e.getMessage());
+			}
+		}
+		return jars.isEmpty() ? null : new Lease(jars, fileNames, _loader);
+	}
+
+	/**
+	 * Copies the jar into the work folder and adds it to the shared classloader.
+	 * @return null when the jar cannot be shared.
+	 */
+	private SharedJar load(File file, String hash) throws IOException {
+		Set<String> entries = new HashSet<String>();
+		Map<String,Integer> classSizes = new HashMap<String,Integer>();
+		JarFile jarFile = new JarFile(file);
+		try {
+			Enumeration<JarEntry> en = jarFile.entries();
+			while (en.hasMoreElements()) {
+				JarEntry entry = en.nextElement();
+				String name = entry.getName();
+				if (entry.isDirectory()) {
+					continue;
+				}
+				if (name.startsWith("META-INF/") && name.endsWith(".tld")) {
+					//jasper looks for the tag-libraries in the jars of the webapp.
+					return null;
+				}
+				entries.add(name);
+				if (name.endsWith(".class")) {
+					SharedJar other = _classes.get(name);
+					if (other != null) {
+						_conflicts.incrementAndGet();
+						System.err.println("Warn: " + file.getName() + " is not shared: "
+								+ name + " is already defined by " + other.getKey());
+						return null;
+					}
+					classSizes.put(name, (int)Math.max(entry.getSize(), 0));
+				}
+			}
+		} finally {
+			jarFile.close();
+		}
+		File copy = new File(_workDir, hash + ".jar");
+		if (!copy.exists() || copy.length() != file.length()) {
+			copy(file, copy);
+		}
+		SharedJar jar = new SharedJar(file.getName(), hash, copy.toURI().toURL(), entries);
+		for (Map.Entry<String,Integer> e : classSizes.entrySet()) {
+			_classSizes.put(e.getKey(), e.getValue());
+			_classes.put(e.getKey(), jar);
+		}
+		if (_loader == null) {
+			_loader = new SharedClassLoader(_parent, _classes);
+		}
+		_loader.add(jar);
+		_jarsByHash.put(hash, jar);
+		return jar;
+	}
+
+	private String fingerprint(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		Fingerprint fingerprint = _fingerprints.get(path);
+		if (fingerprint != null && fingerprint._length == file.length()
+				&& fingerprint._lastModified == file.lastModified()) {
+			return fingerprint._hash;
+		}
+		String hash = hash(file);
+		_fingerprints.put(path, new Fingerprint(file.length(), file.lastModified(), hash));
+		return hash;
+	}
+
+	private static String hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (Exception e) {
+			throw new IOException(e.getMessage());
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				digest.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copies into a temporary file then renames it: a partial copy is never used.
+	 */
+	private static void copy(File from, File to) throws IOException {
+		to.getParentFile().mkdirs();
+		File tmp = new File(to.getParentFile(), to.getName() + ".tmp");
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					out.write(buf, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		to.delete();
+		if (!tmp.renameTo(to)) {
+			throw new IOException("Unable to rename " + tmp + " into " + to);
+		}
+	}
+
+	/**
+	 * @param context
+	 * @return The WEB-INF/lib folder of the webapp; null when the webapp is not a folder.
+	 */
+	static File getWebInfLib(WebAppContext context) {
+		String war = context.getWar();
+		if (war == null) {
+			return null;
+		}
+		try {
+			File dir = Resource.newResource(war).getFile();
+			File lib = dir != null ? new File(dir, "WEB-INF/lib") : null;
+			return lib != null && lib.isDirectory() ? lib : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Pattern[] parsePatterns(String patterns) {
+		if (patterns == null || patterns.trim().length() == 0) {
+			return null;
+		}
+		List<Pattern> res = new ArrayList<Pattern>();
+		for (String p : patterns.split(",")) {
+			p = p.trim();
+			if (p.length() == 0) {
+				continue;
+			}
+			StringBuilder regex = new StringBuilder();
+			String[] parts = p.split("\\*", -1);
+			for (int i = 0; i < parts.length; i++) {
+				if (i != 0) {
+					regex.append(".*");
+				}
+				regex.append(Pattern.quote(parts[i]));
+			}
+			res.add(Pattern.compile(regex.toString()));
+		}
+		return res.isEmpty() ? null : res.toArray(new Pattern[res.size()]);
+	}
+
+	private static boolean matches(Pattern[] patterns, String name) {
+		if (patterns != null) {
+			for (Pattern p : patterns) {
+				if (p.matcher(name).matches()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public synchronized int getSharedJars() {
+		return _jarsByHash.size();
+	}
+
+	public synchronized long getLoadedClasses() {
+		long res = 0;
+		for (SharedJar jar : _jarsByHash.values()) {
+			res += jar._loadedClasses.get();
+		}
+		return res;
+	}
+
+	public synchronized long getSavedClassBytes() {
+		long res = 0;
+		for (SharedJar jar : _jarsByHash.values()) {
+			res += jar.getSavedBytes();
+		}
+		return res;
+	}
+
+	public long getConflicts() {
+		return _conflicts.get();
+	}
+
+	public synchronized Map<String,Integer> getWebappsByJar() {
+		Map<String,Integer> res = new TreeMap<String,Integer>();
+		for (SharedJar jar : _jarsByHash.values()) {
+			res.put(jar.getKey(), jar._webapps.get());
+		}
+		return res;
+	}
+
+	public synchronized Map<String,Long> getSavedClassBytesByJar() {
+		Map<String,Long> res = new TreeMap<String,Long>();
+		for (SharedJar jar : _jarsByHash.values()) {
+			res.put(jar.getKey(), jar.getSavedBytes());
+		}
+		return res;
+	}
+
+	/**
+	 * @return MBean attribute: "jar webapps loadedClasses/classes savedBytes" for each shared jar.
+	 */
+	public synchronized String[] getSharedJarsSummary() {
+		Map<String,String> lines = new TreeMap<String,String>();
+		for (SharedJar jar : _jarsByHash.values()) {
+			int classes = 0;
+			for (String entry : jar._entries) {
+				if (entry.endsWith(".class")) {
+					classes++;
+				}
+			}
+			lines.put(jar.getKey(), jar.getKey() + " " + jar._webapps.get() + " "
+					+ jar._loadedClasses.get() + "/" + classes + " " + jar.getSavedBytes());
+		}
+		return lines.values().toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return "shared jars=" + getSharedJars() + " saved=" + getSavedClassBytes();
+	}
+
+}
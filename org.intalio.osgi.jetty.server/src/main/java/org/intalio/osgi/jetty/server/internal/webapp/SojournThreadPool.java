@@ -0,0 +1,119 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Wraps the thread pool of the server to know how long each job waited in its queue.
+ * <p>
+ * The job running on the current thread can read it once with {@link #takeSojourn()}:
+ * the first request handled by a connection's job carries the wait; the following
+ * requests of the same job did not wait in the queue.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class SojournThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+	/** System.nanoTime() when the job of the current thread was dispatched; 0 once taken. */
+	private static final ThreadLocal<long[]> DISPATCHED_AT = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private final ThreadPool _delegate;
+
+	/**
+	 * @param delegate The thread pool that runs the jobs.
+	 */
+	SojournThreadPool(ThreadPool delegate) {
+		_delegate = delegate;
+	}
+
+	/**
+	 * @return The thread pool that runs the jobs.
+	 */
+	ThreadPool getDelegate() {
+		return _delegate;
+	}
+
+	/**
+	 * @return Nanoseconds the job of the current thread waited before it ran;
+	 * 0 when it was already taken or when the thread is not one of the pool.
+	 */
+	static long takeSojourn() {
+		long[] dispatchedAt = DISPATCHED_AT.get();
+		long at = dispatchedAt[0];
+		if (at == 0) {
+			return 0;
+		}
+		dispatchedAt[0] = 0;
+		return Math.max(System.nanoTime() - at, 0);
+	}
+
+	public boolean dispatch(final Runnable job) {
+		final long at = System.nanoTime();
+		return _delegate.dispatch(new Runnable() {
+			public void run() {
+				long[] dispatchedAt = DISPATCHED_AT.get();
+				dispatchedAt[0] = at;
+				try {
+					job.run();
+				} finally {
+					dispatchedAt[0] = 0;
+				}
+			}
+		});
+	}
+
+	public void join() throws InterruptedException {
+		_delegate.join();
+	}
+
+	public int getThreads() {
+		return _delegate.getThreads();
+	}
+
+	public int getIdleThreads() {
+		return _delegate.getIdleThreads();
+	}
+
+	public boolean isLowOnThreads() {
+		return _delegate.isLowOnThreads();
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		if (_delegate instanceof LifeCycle) {
+			((LifeCycle)_delegate).start();
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		if (_delegate instanceof LifeCycle) {
+			((LifeCycle)_delegate).stop();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "sojourn of " + _delegate;
+	}
+
+}
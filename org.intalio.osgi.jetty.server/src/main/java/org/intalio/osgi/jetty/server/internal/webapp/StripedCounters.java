@@ -0,0 +1,104 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters incremented by many threads at once.
+ * <p>
+ * Each counter is striped: a thread adds to the stripe picked from its id and the
+ * value is the sum of the stripes. The stripes are padded on separate cache lines
+ * so that the threads do not contend on the same one.
+ * Reading is not atomic across the counters; good enough for statistics.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class StripedCounters {
+
+	/** longs per cache line: keeps the stripes apart. */
+	private static final int PADDING = 8;
+	/** number of stripes; a power of 2. */
+	static final int STRIPES = stripes();
+
+	private final int _counters;
+	/** counters rounded up to the padding. */
+	private final int _stride;
+	private final AtomicLongArray _cells;
+
+	/**
+	 * @param counters The number of counters.
+	 */
+	StripedCounters(int counters) {
+		this(counters, STRIPES);
+	}
+
+	/**
+	 * @param counters The number of counters.
+	 * @param stripes The number of stripes; a power of 2.
+	 */
+	StripedCounters(int counters, int stripes) {
+		_counters = counters;
+		_stride = ((counters + PADDING - 1) / PADDING) * PADDING;
+		_cells = new AtomicLongArray(_stride * stripes);
+	}
+
+	/**
+	 * @param counter
+	 * @param delta
+	 */
+	void add(int counter, long delta) {
+		_cells.addAndGet(stripe() * _stride + counter, delta);
+	}
+
+	void increment(int counter) {
+		_cells.incrementAndGet(stripe() * _stride + counter);
+	}
+
+	long get(int counter) {
+		long sum = 0;
+		for (int i = counter; i < _cells.length(); i += _stride) {
+			sum += _cells.get(i);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < _cells.length(); i++) {
+			_cells.set(i, 0);
+		}
+	}
+
+	/**
+	 * @return The number of counters.
+	 */
+	int size() {
+		return _counters;
+	}
+
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		//spread the consecutive ids.
+		int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h >>> 16) & (_cells.length() / _stride - 1);
+	}
+
+	private static int stripes() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int stripes = 1;
+		while (stripes < cpus * 2 && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+}
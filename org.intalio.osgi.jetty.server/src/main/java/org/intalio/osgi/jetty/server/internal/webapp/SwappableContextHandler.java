@@ -0,0 +1,224 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.internal.webapp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandlerContainer;
+import org.eclipse.jetty.server.handler.ContextHandler;
+
+/**
+ * The handler that stays in the {@link ContextRouter} for a context path
+ * while the versions of the context are swapped underneath.
+ * <p>
+ * Replacing a handler of a HandlerCollection stops it right away;
+ * here the new version of the context is swapped in with a single volatile write
+ * and the previous one is returned to the caller that drains it: it keeps serving the
+ * requests it had already accepted until {@link Generation#getInFlight()} drops to 0.
+ * A request suspended by the context stays in flight until it completes.
+ * </p>
+ * <p>
+ * It also counts the requests served on the context path: the
+ * {@link ContextRequestStatistics} are kept across the versions of the context.
+ * </p>
+ * <p>
+ * When the context declares a {@link Bulkhead}, the requests take one of its permits
+ * before they enter the context.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+class SwappableContextHandler extends AbstractHandlerContainer {
+
+	/**
+	 * A version of the context and the number of requests it is serving.
+	 */
+	static class Generation {
+		private final ContextHandler _context;
+		private final AtomicInteger _inFlight = new AtomicInteger();
+		/** set once swapped out: no new request enters. */
+		private volatile boolean _retired = false;
+		Generation(ContextHandler context) {
+			_context = context;
+		}
+		ContextHandler getContext() {
+			return _context;
+		}
+		int getInFlight() {
+			return _inFlight.get();
+		}
+		/**
+		 * @return false when the generation was retired in the mean time.
+		 */
+		private boolean enter() {
+			_inFlight.incrementAndGet();
+			if (_retired) {
+				_inFlight.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		/**
+		 * The dispatch returns: the request leaves now or when it completes if the
+		 * context suspended it. Same as {@link Bulkhead#exit(Request)}.
+		 */
+		private void exit(Request baseRequest) {
+			AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+			if (!continuation.isSuspended()) {
+				_inFlight.decrementAndGet();
+				return;
+			}
+			continuation.addContinuationListener(new ContinuationListener() {
+				public void onComplete(Continuation c) {
+					_inFlight.decrementAndGet();
+				}
+				public void onTimeout(Continuation c) {
+				}
+			});
+		}
+	}
+
+	private volatile Generation _current;
+	private volatile Bulkhead _bulkhead;
+	private final ContextRequestStatistics _statistics;
+
+	/**
+	 * @param context
+	 * @param statistics The counters of the context path.
+	 */
+	SwappableContextHandler(ContextHandler context, ContextRequestStatistics statistics) {
+		_current = new Generation(context);
+		_statistics = statistics;
+	}
+
+	/**
+	 * @return The context currently served or null when it was undeployed.
+	 */
+	ContextHandler getContext() {
+		Generation g = _current;
+		return g != null ? g._context : null;
+	}
+
+	/**
+	 * @param context The new version of the context; already started. Null to stop
+	 * serving this context path.
+	 * @return The previous version; retired: it does not accept new requests.
+	 * Null if there was none.
+	 */
+	Generation swap(ContextHandler context) {
+		Generation old = _current;
+		_current = context != null ? new Generation(context) : null;
+		if (old != null) {
+			old._retired = true;
+		}
+		return old;
+	}
+
+	/**
+	 * @param bulkhead The bulkhead of the new version of the context; null for none.
+	 * @return The previous one: it must be closed. Null if there was none.
+	 */
+	Bulkhead setBulkhead(Bulkhead bulkhead) {
+		Bulkhead old = _bulkhead;
+		_bulkhead = bulkhead;
+		return old;
+	}
+
+	public void handle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+		boolean counted = _statistics.enter(baseRequest);
+		long start = counted ? System.nanoTime() : 0;
+		try {
+			Generation g = _current;
+			while (g != null) {
+				if (g.enter()) {
+					Bulkhead bulkhead = _bulkhead;
+					try {
+						if (bulkhead != null && !bulkhead.acquire(g._context, baseRequest, response)) {
+							//suspended until a permit is free or rejected.
+							bulkhead = null;
+							return;
+						}
+						g._context.handle(target, baseRequest, request, response);
+					} finally {
+						if (bulkhead != null) {
+							bulkhead.exit(baseRequest);
+						}
+						g.exit(baseRequest);
+					}
+					return;
+				}
+				//swapped while we were entering: go to the new version.
+				g = _current;
+			}
+			//undeployed: let the other contexts have a go.
+		} finally {
+			if (counted) {
+				_statistics.exit(baseRequest, start, baseRequest.isHandled());
+			}
+		}
+	}
+
+	public Handler[] getHandlers() {
+		Generation g = _current;
+		return g != null ? new Handler[] { g._context } : new Handler[0];
+	}
+
+	@Override
+	protected Object expandChildren(Object list, Class<?> byClass) {
+		Generation g = _current;
+		return g != null ? expandHandler(g._context, list, byClass(byClass)) : list;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<Handler> byClass(Class<?> byClass) {
+		return (Class<Handler>)byClass;
+	}
+
+	@Override
+	public void setServer(Server server) {
+		super.setServer(server);
+		Generation g = _current;
+		if (g != null) {
+			g._context.setServer(server);
+		}
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		Generation g = _current;
+		if (g != null && !g._context.isStarted()) {
+			g._context.start();
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		Generation g = _current;
+		if (g != null) {
+			g._context.stop();
+		}
+	}
+
+}
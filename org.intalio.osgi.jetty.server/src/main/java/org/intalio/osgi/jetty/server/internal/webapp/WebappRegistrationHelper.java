@@ -10,20 +10,23 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.internal.webapp;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
-import org.apache.jasper.compiler.TldLocationsCache;
 import org.eclipse.jetty.deploy.ConfigurationManager;
 import org.eclipse.jetty.deploy.ContextDeployer;
 import org.eclipse.jetty.deploy.WebAppDeployer;
@@ -31,19 +34,31 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.util.AttributesMap;
+import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.webapp.JettyWebXmlConfiguration;
 import org.eclipse.jetty.webapp.WebAppClassLoader;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.eclipse.jetty.webapp.WebXmlConfiguration;
 import org.eclipse.jetty.xml.XmlConfiguration;
 import org.intalio.osgi.jetty.server.JettyBootstrapActivator;
+import org.intalio.osgi.jetty.server.internal.jsp.JspPrecompiler;
+import org.intalio.osgi.jetty.server.internal.jsp.JspScratchDirectories;
 import org.intalio.osgi.jetty.server.internal.jsp.TldConfigurationHelper;
+import org.intalio.osgi.jetty.server.internal.jsp.TldJarIndex;
 import org.intalio.osgi.jetty.server.internal.jsp.TldLocatableURLClassloader;
 import org.intalio.osgi.jetty.server.internal.jsp.TldLocatableURLClassloaderWithInsertedJettyClassloader;
-import org.intalio.osgi.jetty.server.utils.FileLocatorHelper;
+import org.intalio.osgi.jetty.server.internal.jsp.TldRegistry;
+import org.intalio.osgi.jetty.server.internal.resource.BundleJarResource;
+import org.intalio.osgi.jetty.server.internal.threadpool.VirtualThreadPool;
+import org.intalio.osgi.jetty.server.management.AdmissionControl;
+import org.intalio.osgi.jetty.server.management.DeploymentTimings;
+import org.intalio.osgi.jetty.server.management.RequestStatistics;
+import org.intalio.osgi.jetty.server.management.SharedLibraries;
+import org.intalio.osgi.jetty.server.utils.BundleResolver;
+import org.intalio.osgi.jetty.server.utils.SystemPropertiesHelper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceRegistration;
 import org.xml.sax.SAXException;
 
 /**
@@ -60,23 +75,157 @@ import org.xml.sax.SAXException;
  * as configured in its etc/jetty.xml file.
  * Well as close as possible to that.
  * </p>
+ * <p>
+ * The deployments themselves run on the worker threads of a {@link DeploymentEngine}:
+ * the register methods return a future on the started context.
+ * </p>
+ * <p>
+ * Redeploying a context swaps the new version in once it is started;
+ * the previous version is drained of its requests then stopped: see {@link DeployedContexts}.
+ * </p>
+ * <p>
+ * A bundle with the header <code>Jetty-LazyStart: true</code> is only started on its
+ * first request: see {@link LazyContextHandler}.
+ * </p>
+ * <p>
+ * A bundle packaged as a jar is served directly from the jar through
+ * a {@link BundleJarResource}: it is not extracted.
+ * </p>
+ * <p>
+ * The deployed contexts are routed by a {@link ContextRouter} inserted in front of the
+ * ContextHandlerCollection: adding a context does not rebuild the collection.
+ * </p>
+ * <p>
+ * The requests that waited too long for a thread are shed in front of the
+ * router: see {@link AdmissionControlImpl}.
+ * A bundle can bound the number of threads its context uses: see {@link Bulkhead}.
+ * </p>
+ * <p>
+ * The jars that several webapps embed in WEB-INF/lib can be loaded once for all of them:
+ * see {@link SharedLibrariesImpl}.
+ * </p>
+ * <p>
+ * When the jars of ${jetty.home}/lib/etc change, a new lib/etc classloader is built and the
+ * contexts whose classloader chains through the previous one are redeployed with it:
+ * see {@link LibEtcClassLoaderHelper}. The previous classloader is closed once they are drained.
+ * </p>
+ * <p>
+ * The context files are watched instead of polled: see {@link DirectoryWatcher}.
+ * The folder of the ContextDeployer of etc/jetty.xml, ${jetty.home}/contexts, is deployed
+ * by this class: a context file created or modified there is deployed in place of its
+ * previous version; a deleted one is undeployed. The override of the context file of a
+ * bundle in ${jetty.contexts.home}/&lt;bundle-symbolic-name&gt;/ that is created, modified
+ * or deleted re-creates the context of that bundle only; it replaces the deployed one
+ * atomically. The system property <code>jetty.contexts.watch=false</code> keeps the polling
+ * ContextDeployer and reads the overrides only when a bundle is registered.
+ * </p>
+ * <p>
+ * The system property <code>jetty.threadpool=virtual</code> replaces the thread pool
+ * configured by etc/jetty.xml with a {@link VirtualThreadPool}.
+ * </p>
  * Limitations:
  * <ul>
- * <li>all bundles that contain a webapp are assumed unzipped.</li>
+ * <li>the jars inside WEB-INF/lib of a jarred bundle are not supported.</li>
  * </ul>
  * @author hmalphettes
  */
 class WebappRegistrationHelper {
 	
+	/** System property: comma separated list of the files that configure the server;
+	 * relative to jetty.home. Defaults on etc/jetty.xml */
+	public static final String SYS_PROP_ETC_CONFIG_URLS = "jetty.etc.config.urls";
+	/** System property: false to poll ${jetty.home}/contexts with the ContextDeployer. */
+	public static final String SYS_PROP_CONTEXTS_WATCH = "jetty.contexts.watch";
+	/** System property: how long a context file must not change before it is deployed;
+	 * in milliseconds. Defaults to 500. */
+	public static final String SYS_PROP_CONTEXTS_WATCH_QUIET = "jetty.contexts.watch.quiet";
+	
 	private Server _server;
 	private ContextDeployer _ctxtDeployer;
 	private WebAppDeployer _webappDeployer;
 	private ContextHandlerCollection _ctxtHandler;
+	/** the contexts deployed in the router. */
+	private DeployedContexts _deployedContexts;
+	private final DeploymentEngine _deploymentEngine = new DeploymentEngine();
+	/** the cached locations and classloaders of the bundles. */
+	private final BundleResolver _bundleResolver = new BundleResolver();
+	/** the jars that contain tag-libraries. */
+	private final TldJarIndex _tldJarIndex = new TldJarIndex(_bundleResolver);
+	/** compiles the jsps of the webapps that declare Jetty-PrecompileJsp. */
+	private final JspPrecompiler _jspPrecompiler = new JspPrecompiler();
+	/** the tlds parsed once for all the webapps. */
+	private TldRegistry _tldRegistry;
+	/** the scratch directories of jasper that survive the restarts. */
+	private JspScratchDirectories _jspScratchDirectories;
+	/** refreshes the lookup caches of the classloaders. */
+	private final LookupCacheInvalidator _lookupCacheInvalidator = new LookupCacheInvalidator();
+	/** the context files parsed once. */
+	private final ContextFileTemplates _contextFileTemplates = new ContextFileTemplates();
+	/** where the time goes. */
+	private final DeploymentTimingsImpl _timings = new DeploymentTimingsImpl();
+	private ServiceRegistration _timingsRegistration;
+	/** the requests served by each context. */
+	private final RequestStatisticsImpl _requestStatistics = new RequestStatisticsImpl();
+	private ServiceRegistration _requestStatisticsRegistration;
+	/** sheds the requests that waited too long for a thread. */
+	private final AdmissionControlImpl _admissionControl = new AdmissionControlImpl();
+	private ServiceRegistration _admissionControlRegistration;
+	/** the jars of WEB-INF/lib loaded once for all the webapps. */
+	private final SharedLibrariesImpl _sharedLibraries = new SharedLibrariesImpl();
+	private ServiceRegistration _sharedLibrariesRegistration;
+	private BundleContext _bundleContext;
 	
 	/** this class loader loads the jars inside {$jetty.home}/lib/etc
 	 * it is meant as a migration path and for jars that are not OSGi
-	 * ready. */
-	private ClassLoader _libEtcClassLoader;
+	 * ready. Replaced when lib/etc is reloaded. */
+	private volatile ClassLoader _libEtcClassLoader;
+	private File _jettyHome;
+	/** reloads lib/etc and deploys the context files when they change. */
+	private DirectoryWatcher _directoryWatcher;
+	/** context path -> how to deploy again the context deployed there. */
+	private final Map<String,Redeployment> _redeployments =
+		new ConcurrentHashMap<String,Redeployment>();
+	/** context file of ${jetty.home}/contexts -> the context deployed from it.
+	 * Guarded by itself. */
+	private final Map<File,ContextHandler> _homeContexts = new HashMap<File,ContextHandler>();
+	/** context file of ${jetty.home}/contexts -> the lock that applies its changes in order. */
+	private final ConcurrentHashMap<File,Object> _homeContextLocks =
+		new ConcurrentHashMap<File,Object>();
+	/** override in ${jetty.contexts.home} -> the context file it overrides. */
+	private final Map<File,ContextOverride> _contextOverrides =
+		new ConcurrentHashMap<File,ContextOverride>();
+	
+	/**
+	 * Deploys again a context with the current lib/etc classloader.
+	 */
+	private abstract class Redeployment {
+		protected final ContextHandler _context;
+		private final Bundle _contributor;
+		Redeployment(ContextHandler context, Bundle contributor) {
+			_context = context;
+			_contributor = contributor;
+		}
+		/**
+		 * Executed by one of the threads of the deployment engine.
+		 * @return The context that replaces the deployed context.
+		 */
+		abstract ContextHandler redeploy(PhaseTimer timer) throws Exception;
+	}
+	
+	/**
+	 * The context file of a bundle that can be overridden in ${jetty.contexts.home}.
+	 */
+	private static class ContextOverride {
+		private final Bundle _contributor;
+		private final String _contextFileRelativePath;
+		private final Class<?> _classInBundle;
+		ContextOverride(Bundle contributor, String contextFileRelativePath,
+				Class<?> classInBundle) {
+			_contributor = contributor;
+			_contextFileRelativePath = contextFileRelativePath;
+			_classInBundle = classInBundle;
+		}
+	}
 	
 	public WebappRegistrationHelper(Server server) {
 		_server = server;
@@ -84,30 +233,57 @@ class WebappRegistrationHelper {
 	
 	
 	public void setup(BundleContext context) throws Exception {
-		File _installLocation = FileLocatorHelper.getBundleInstallLocation(context.getBundle());
+		context.addBundleListener(_bundleResolver);
+		File _installLocation = _bundleResolver.getBundleInstallLocation(context.getBundle());
 		TldConfigurationHelper.fixupDtdResolution();
+		_tldJarIndex.open(context);
+		_bundleContext = context;
+		context.addBundleListener(_lookupCacheInvalidator);
 		
 		String jettyHome = System.getProperty("jetty.home");
 		if (jettyHome == null || jettyHome.length() == 0) {
 			jettyHome = _installLocation.getAbsolutePath() + "/jettyhome";
 			System.setProperty("jetty.home", jettyHome);
 		}
+		_tldRegistry = new TldRegistry(new File(jettyHome, "work/tld-registry.cache"));
+		_tldRegistry.load();
+		_jspScratchDirectories = new JspScratchDirectories(new File(jettyHome, "work/jsp"));
 		String jettyLogs = System.getProperty("jetty.logs");
 		if (jettyLogs == null || jettyLogs.length() == 0) {
 			System.setProperty("jetty.logs", System.getProperty("jetty.home") + "/logs");
 		}
 		
 		
+		_timingsRegistration = context.registerService(
+				DeploymentTimings.class.getName(), _timings, new Properties());
+		_requestStatisticsRegistration = context.registerService(
+				RequestStatistics.class.getName(), _requestStatistics, new Properties());
+		_admissionControlRegistration = context.registerService(
+				AdmissionControl.class.getName(), _admissionControl, new Properties());
+		_sharedLibrariesRegistration = context.registerService(
+				SharedLibraries.class.getName(), _sharedLibraries, new Properties());
+		PhaseTimer setupTimer = _timings.newServerSetupTimer();
 		ClassLoader contextCl = Thread.currentThread().getContextClassLoader();
 		try {
-			
-			XmlConfiguration config = new XmlConfiguration(new FileInputStream(
-					System.getProperty("jetty.home") + "/etc/jetty.xml"));
+			setupTimer.phase(DeploymentTimings.PHASE_JETTY_XML);
+			List<XmlConfiguration> configs = new ArrayList<XmlConfiguration>();
+			XmlConfiguration last = null;
+			for (String etcFile : getEtcConfigFiles()) {
+				XmlConfiguration config = new XmlConfiguration(new FileInputStream(
+						new File(jettyHome, etcFile)));
+				if (last != null) {
+					//the ids defined by the previous files are visible.
+					config.setIdMap(last.getIdMap());
+				}
+				configs.add(config);
+				last = config;
+			}
 			
 			//passing this bundle's classloader as the context classlaoder
 			//makes sure there is access to all the jetty's bundles
-			
+			setupTimer.phase(DeploymentTimings.PHASE_LIB_ETC_CLASSLOADER);
 			File jettyHomeF = new File(jettyHome);
+			_jettyHome = jettyHomeF;
 			try {
 				_libEtcClassLoader = LibEtcClassLoaderHelper
 					.createLibEtcClassLoaderHelper(jettyHomeF, _server,
@@ -115,17 +291,32 @@ class WebappRegistrationHelper {
 			} catch (MalformedURLException e) {
 				e.printStackTrace();
 			}
+			_sharedLibraries.configure(_libEtcClassLoader, new File(jettyHome, "work/shared-lib"));
 			
+			setupTimer.phase(DeploymentTimings.PHASE_SERVER_CONFIGURE);
 			Thread.currentThread().setContextClassLoader(_libEtcClassLoader);
-			config.configure(_server);
+			for (XmlConfiguration config : configs) {
+				config.configure(_server);
+			}
+			//-Djetty.threadpool=virtual
+			VirtualThreadPool.configure(_server);
 			
 			init();
+			//exposed as an MBean when etc/jetty-jmx.xml has setup the MBeanContainer.
+			_server.getContainer().addBean(_timings);
+			_server.getContainer().addBean(_requestStatistics);
+			_server.getContainer().addBean(_admissionControl);
+			_server.getContainer().addBean(_sharedLibraries);
 			
+			setupTimer.phase(DeploymentTimings.PHASE_SERVER_START);
 			_server.start();
+			watchDirectories(jettyHomeF);
 //					_server.join();
 		} catch (Throwable t) {
+			setupTimer.failed();
 			t.printStackTrace();
 		} finally {
+			setupTimer.end();
 			Thread.currentThread().setContextClassLoader(contextCl);
 		}
 
@@ -162,6 +353,17 @@ class WebappRegistrationHelper {
 					"Using a default one is not supported at" +
 					" this point. " + " Please review the jetty.xml file used.");
 		}
+		ContextRouter router = ContextRouter.insert(_server, _ctxtHandler);
+		if (router == null) {
+			throw new IllegalStateException(
+					"ERROR: The ContextHandlerCollection must be inside a HandlerWrapper" +
+					" or a HandlerCollection. " + " Please review the jetty.xml file used.");
+		}
+		if (_admissionControl.isEnabled()) {
+			AdmissionHandler.insert(_server, router, _admissionControl);
+		}
+		_deployedContexts = new DeployedContexts(_server, router,
+				_requestStatistics, _admissionControl, _jspScratchDirectories);
 		List<ContextDeployer> ctxtDeployers = _server.getBeans(ContextDeployer.class);
 		
 		if (ctxtDeployers == null || ctxtDeployers.isEmpty()) {
@@ -170,6 +372,10 @@ class WebappRegistrationHelper {
 					" this point. " + " Please review the jetty.xml file used.");
 		} else {
 			_ctxtDeployer = ctxtDeployers.get(0);
+			if (isWatchingContexts()) {
+				//its folder is watched instead of polled.
+				_server.removeBean(_ctxtDeployer);
+			}
 		}
 		List<WebAppDeployer> wDeployers = _server.getBeans(WebAppDeployer.class);
 		
@@ -183,6 +389,329 @@ class WebappRegistrationHelper {
 		
 	}
 	
+	/**
+	 * Stops accepting new deployments.
+	 */
+	public void stop() {
+		if (_directoryWatcher != null) {
+			_directoryWatcher.stop();
+			_directoryWatcher = null;
+		}
+		_deploymentEngine.stop();
+		if (_deployedContexts != null) {
+			_deployedContexts.stop();
+		}
+		_tldJarIndex.close();
+		_jspPrecompiler.stop();
+		if (_bundleContext != null) {
+			_bundleContext.removeBundleListener(_lookupCacheInvalidator);
+			_bundleContext.removeBundleListener(_bundleResolver);
+		}
+		if (_tldRegistry != null) {
+			_tldRegistry.save();
+		}
+		_contextFileTemplates.clear();
+		_redeployments.clear();
+		_contextOverrides.clear();
+		synchronized (_homeContexts) {
+			_homeContexts.clear();
+		}
+		_homeContextLocks.clear();
+		_server.getContainer().removeBean(_timings);
+		_server.getContainer().removeBean(_requestStatistics);
+		_server.getContainer().removeBean(_admissionControl);
+		_server.getContainer().removeBean(_sharedLibraries);
+		unregisterService(_timingsRegistration);
+		_timingsRegistration = null;
+		unregisterService(_requestStatisticsRegistration);
+		_requestStatisticsRegistration = null;
+		unregisterService(_admissionControlRegistration);
+		_admissionControlRegistration = null;
+		unregisterService(_sharedLibrariesRegistration);
+		_sharedLibrariesRegistration = null;
+	}
+	
+	private static void unregisterService(ServiceRegistration registration) {
+		if (registration != null) {
+			try {
+				registration.unregister();
+			} catch (IllegalStateException ise) {
+				//the bundle is stopping.
+			}
+		}
+	}
+	
+	/**
+	 * Builds a new lib/etc classloader then redeploys the contexts whose classloader chains
+	 * through the previous one. The other contexts keep serving; the previous classloader
+	 * is closed once its contexts are drained.
+	 * Executed by the thread of the scheduler of the deployed contexts.
+	 */
+	private void reloadLibEtc() {
+		ClassLoader previous = _libEtcClassLoader;
+		ClassLoader loader;
+		try {
+			loader = LibEtcClassLoaderHelper.createLibEtcClassLoaderHelper(_jettyHome, _server,
+					JettyBootstrapActivator.class.getClassLoader());
+		} catch (Exception e) {
+			System.err.println("Warn: unable to reload lib/etc");
+			e.printStackTrace();
+			return;
+		}
+		_libEtcClassLoader = loader;
+		_sharedLibraries.configure(loader, new File(_jettyHome, "work/shared-lib"));
+		List<Future<ContextHandler>> redeployments = new ArrayList<Future<ContextHandler>>();
+		for (Map.Entry<String,Redeployment> e : _redeployments.entrySet()) {
+			Redeployment redeployment = e.getValue();
+			ContextHandler context = _deployedContexts.getContext(e.getKey());
+			if (context == null) {
+				//undeployed.
+				_redeployments.remove(e.getKey());
+			} else if (context == redeployment._context
+					&& DeployedContexts.chainsThrough(context, previous)) {
+				redeployments.add(redeploy(redeployment));
+			}
+		}
+		if (previous != loader && previous != JettyBootstrapActivator.class.getClassLoader()) {
+			_deployedContexts.closeWhenUnused(previous, redeployments);
+		}
+	}
+	
+	private Future<ContextHandler> redeploy(final Redeployment redeployment) {
+		String contextPath = redeployment._context.getContextPath();
+		final PhaseTimer timer = new PhaseTimer(redeployment._contributor.getSymbolicName(),
+				contextPath);
+		return _deploymentEngine.deploy(contextPath, null,
+				timed(timer, new Callable<ContextHandler>() {
+					public ContextHandler call() throws Exception {
+						return redeployment.redeploy(timer);
+					}
+				}), null);
+	}
+	
+	private static boolean isWatchingContexts() {
+		return !"false".equals(System.getProperty(SYS_PROP_CONTEXTS_WATCH));
+	}
+	
+	/**
+	 * Watches lib/etc, the folder of the ContextDeployer and ${jetty.contexts.home}.
+	 * Deploys the context files of the ContextDeployer's folder.
+	 */
+	private void watchDirectories(File jettyHome) throws Exception {
+		File libEtc = new File(jettyHome, "lib/etc");
+		boolean watchLibEtc = libEtc.isDirectory()
+			&& !"false".equals(System.getProperty(LibEtcClassLoaderHelper.SYS_PROP_WATCH));
+		if (!watchLibEtc && !isWatchingContexts()) {
+			return;
+		}
+		_directoryWatcher = DirectoryWatcher.start(_deployedContexts.getScheduler());
+		if (_directoryWatcher == null) {
+			if (_ctxtDeployer != null && isWatchingContexts()) {
+				//back to polling.
+				_server.addBean(_ctxtDeployer);
+				_ctxtDeployer.start();
+			}
+			return;
+		}
+		if (watchLibEtc) {
+			_directoryWatcher.watch(libEtc, false, ".jar", SystemPropertiesHelper.getLongProperty(
+					LibEtcClassLoaderHelper.SYS_PROP_WATCH_QUIET, 2000),
+					true, new DirectoryWatcher.Listener() {
+						public void changed(File file) {
+							reloadLibEtc();
+						}
+					});
+		}
+		if (!isWatchingContexts()) {
+			return;
+		}
+		long quietPeriod = SystemPropertiesHelper.getLongProperty(SYS_PROP_CONTEXTS_WATCH_QUIET, 500);
+		File homeContexts = _ctxtDeployer != null && _ctxtDeployer.getConfigurationDir() != null
+			? _ctxtDeployer.getConfigurationDir().getFile() : null;
+		if (homeContexts != null && homeContexts.isDirectory()) {
+			_directoryWatcher.watch(homeContexts, false, ".xml", quietPeriod, false,
+					new DirectoryWatcher.Listener() {
+						public void changed(File file) {
+							homeContextChanged(file);
+						}
+					});
+			File[] files = homeContexts.listFiles();
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.isFile() && file.getName().endsWith(".xml")) {
+					homeContextChanged(DirectoryWatcher.normalize(file));
+				}
+			}
+		}
+		String jettyContextsHome = System.getProperty("jetty.contexts.home");
+		if (jettyContextsHome != null && new File(jettyContextsHome).isDirectory()) {
+			_directoryWatcher.watch(new File(jettyContextsHome), true, ".xml", quietPeriod, false,
+					new DirectoryWatcher.Listener() {
+						public void changed(File file) {
+							contextOverrideChanged(file);
+						}
+					});
+		}
+	}
+	
+	/**
+	 * A context file of the ContextDeployer's folder was created, modified or deleted.
+	 */
+	private void homeContextChanged(final File file) {
+		if (!file.exists()) {
+			//not on the notifying thread: a deployment of the same file may hold its lock.
+			_deploymentEngine.deploy(null, null, new Callable<ContextHandler>() {
+				public ContextHandler call() throws Exception {
+					undeployHomeContext(file);
+					return null;
+				}
+			}, null);
+			return;
+		}
+		final PhaseTimer timer = new PhaseTimer(file.getName(), null);
+		_deploymentEngine.deploy(null, null, timed(timer, new Callable<ContextHandler>() {
+			public ContextHandler call() throws Exception {
+				return deployHomeContext(file, timer);
+			}
+		}), null);
+	}
+	
+	/**
+	 * Deploys a context file of the ContextDeployer's folder as the ContextDeployer would:
+	 * replaces the version deployed.
+	 * Executed by one of the threads of the deployment engine.
+	 */
+	private ContextHandler deployHomeContext(File file, PhaseTimer timer) throws Exception {
+		ClassLoader contextCl = Thread.currentThread().getContextClassLoader();
+		//the changes of a file are deployed in order; the other files concurrently.
+		synchronized (getHomeContextLock(file)) {
+			try {
+				if (!file.exists()) {
+					throw new IllegalStateException(file + " was deleted");
+				}
+				//the classloader that configured etc/jetty.xml
+				Thread.currentThread().setContextClassLoader(_libEtcClassLoader);
+				timer.phase(DeploymentTimings.PHASE_CONTEXT_XML);
+				ContextHandler context = createContextHandler(null,
+						Resource.newResource(file.toURI().toURL()));
+				if (context == null) {
+					throw new IllegalArgumentException("Unable to create a context from " + file);
+				}
+				_deployedContexts.deploy(context, null, timer);
+				ContextHandler previous;
+				synchronized (_homeContexts) {
+					previous = _homeContexts.put(file, context);
+				}
+				if (previous != null && !previous.getContextPath().equals(context.getContextPath())) {
+					//the context path was changed.
+					_deployedContexts.undeploy(previous);
+				}
+				return context;
+			} finally {
+				Thread.currentThread().setContextClassLoader(contextCl);
+			}
+		}
+	}
+	
+	/**
+	 * Undeploys the context of a context file of the ContextDeployer's folder that was deleted.
+	 * Executed by one of the threads of the deployment engine.
+	 */
+	private void undeployHomeContext(File file) {
+		synchronized (getHomeContextLock(file)) {
+			if (file.exists()) {
+				//created again: its deployment replaces the context.
+				return;
+			}
+			ContextHandler deployed;
+			synchronized (_homeContexts) {
+				deployed = _homeContexts.remove(file);
+			}
+			if (deployed != null) {
+				_deployedContexts.undeploy(deployed);
+			}
+			try {
+				_contextFileTemplates.remove(Resource.newResource(file.toURI().toURL()));
+			} catch (IOException e) {
+				//not cached.
+			}
+		}
+	}
+	
+	private Object getHomeContextLock(File file) {
+		Object lock = _homeContextLocks.get(file);
+		if (lock == null) {
+			lock = new Object();
+			Object existing = _homeContextLocks.putIfAbsent(file, lock);
+			if (existing != null) {
+				lock = existing;
+			}
+		}
+		return lock;
+	}
+	
+	/**
+	 * A file of ${jetty.contexts.home} was created, modified or deleted.
+	 */
+	private void contextOverrideChanged(final File file) {
+		final ContextOverride override = _contextOverrides.get(file);
+		if (override == null) {
+			//not the override of a registered context.
+			return;
+		}
+		final PhaseTimer timer = new PhaseTimer(override._contributor.getSymbolicName(), null);
+		_deploymentEngine.deploy(null, null, timed(timer, new Callable<ContextHandler>() {
+			public ContextHandler call() throws Exception {
+				return redeployContext(file, override, timer);
+			}
+		}), null);
+	}
+	
+	/**
+	 * Re-creates the context of a bundle from its override; from the context file inside
+	 * the bundle when the override was deleted. It is swapped in place of the context deployed.
+	 * Executed by one of the threads of the deployment engine.
+	 */
+	private ContextHandler redeployContext(File file, ContextOverride override,
+			PhaseTimer timer) throws Exception {
+		timer.phase(DeploymentTimings.PHASE_BUNDLE_LOCATION);
+		Resource contextFile = getContextFile(override._contributor,
+				override._contextFileRelativePath, file);
+		ContextHandler context = createContext(override._contributor, contextFile,
+				override._classInBundle, timer);
+		String contextPath = context.getContextPath();
+		ContextHandler predecessor = _deployedContexts.getContext(contextPath);
+		Redeployment redeployment = _redeployments.get(contextPath);
+		if (predecessor == null || redeployment == null || redeployment._context != predecessor
+				|| redeployment._contributor != override._contributor) {
+			//undeployed; or the context path was changed: it is applied when the bundle is
+			//registered again.
+			_contextOverrides.remove(file);
+			System.err.println("Warn: " + file + " is not applied: " + contextPath
+					+ " is not deployed by " + override._contributor.getSymbolicName());
+			throw new IllegalStateException(contextPath + " is not deployed by "
+					+ override._contributor.getSymbolicName());
+		}
+		return publishContext(override._contributor, contextFile, override._classInBundle,
+				context, timer, predecessor);
+	}
+	
+	/**
+	 * @return The files that configure the server; relative to jetty.home
+	 */
+	private static String[] getEtcConfigFiles() {
+		String prop = System.getProperty(SYS_PROP_ETC_CONFIG_URLS);
+		if (prop == null || prop.trim().length() == 0) {
+			return new String[] {"etc/jetty.xml"};
+		}
+		ArrayList<String> files = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(prop, ", \t");
+		while (tokenizer.hasMoreTokens()) {
+			files.add(tokenizer.nextToken());
+		}
+		return files.toArray(new String[files.size()]);
+	}
+	
 	/**
 	 * Deploy a new web application on the jetty server.
 	 * 
@@ -193,41 +722,129 @@ class WebappRegistrationHelper {
 	 * @param classInBundle A class that belongs to the current bundle
 	 * to inherit from the osgi classloader. Null to not have access to the
 	 * OSGI classloader.
+	 * @param status Notified of the progress of the deployment. Can be null.
+	 * @return The future on the started context.
 	 * @throws Exception
 	 */
-	public void registerWebapplication(Bundle bundle, String webappFolderPath,
-			String contextPath, Class<?> classInBundle) throws Exception {
-		File bundleInstall = FileLocatorHelper.getBundleInstallLocation(bundle);
-		File webapp = webappFolderPath != null && webappFolderPath.length() != 0
-			? new File(bundleInstall, webappFolderPath) : bundleInstall;
+	public Future<ContextHandler> registerWebapplication(Bundle bundle, String webappFolderPath,
+			String contextPath, Class<?> classInBundle, DeploymentStatusImpl status)
+	throws Exception {
+		PhaseTimer timer = new PhaseTimer(bundle.getSymbolicName(), contextPath);
+		timer.phase(DeploymentTimings.PHASE_BUNDLE_LOCATION);
+		File bundleInstall = _bundleResolver.getBundleInstallLocation(bundle);
+		Resource webapp;
+		if (bundleInstall.isFile()) {
+			//a jarred bundle: serve it directly from the jar.
+			webapp = BundleJarResource.newResource(bundleInstall, webappFolderPath);
+		} else {
+			webapp = Resource.newResource(
+					(webappFolderPath != null && webappFolderPath.length() != 0
+						? new File(bundleInstall, webappFolderPath) : bundleInstall)
+					.toURI().toURL());
+		}
 		if (!webapp.exists()) {
 			throw new IllegalArgumentException("Unable to locate " + contextPath
-					+ " inside ");
+					+ " inside " + bundle.getSymbolicName() + " (" + webapp + ")");
 		}
-		registerWebapplication(bundle, webapp, contextPath, classInBundle);
+		timer.end();
+		return registerWebapplication(bundle, webapp, contextPath, classInBundle, status, timer);
 	}
 
 	/**
 	 * @See {@link WebAppDeployer#scan()}
 	 * 
-	 * @param webapp
+	 * @param webapp The root of the webapp: a folder or a {@link BundleJarResource}
 	 * @param contextPath
 	 * @param classInBundle
-	 * @throws Exception
+	 * @param status Notified of the progress of the deployment. Can be null.
+	 * @return The future on the started context.
 	 */
-	public void registerWebapplication(Bundle contributor, File webapp,
-			String contextPath, Class<?> classInBundle) throws Exception {
-		
+	public Future<ContextHandler> registerWebapplication(Bundle contributor, Resource webapp,
+			String contextPath, Class<?> classInBundle, DeploymentStatusImpl status) {
+		return registerWebapplication(contributor, webapp, contextPath, classInBundle, status,
+				new PhaseTimer(contributor.getSymbolicName(), contextPath));
+	}
+	
+	private Future<ContextHandler> registerWebapplication(final Bundle contributor, final Resource webapp,
+			final String contextPath, final Class<?> classInBundle, DeploymentStatusImpl status,
+			final PhaseTimer timer) {
+		return _deploymentEngine.deploy(contextPath,
+				DeploymentEngine.getDependencies(contributor),
+				timed(timer, new Callable<ContextHandler>() {
+					public ContextHandler call() throws Exception {
+						return deployWebapplication(contributor, webapp,
+								contextPath, classInBundle, timer, null);
+					}
+				}), status);
+	}
+	
+	/**
+	 * Executed by one of the threads of the deployment engine.
+	 * @param predecessor The context reloaded; null for a new deployment.
+	 */
+	private ContextHandler deployWebapplication(final Bundle contributor, final Resource webapp,
+			final String contextPath, final Class<?> classInBundle, PhaseTimer timer,
+			ContextHandler predecessor) throws Exception {
+		_admissionControl.setWeight(contextPath, AdmissionControlImpl.getWeight(contributor));
+		if (LazyContextHandler.isLazyStart(contributor)) {
+			//only a placeholder until the first request.
+			LazyContextHandler lazy = new LazyContextHandler(contextPath, null,
+					new Callable<ContextHandler>() {
+						public ContextHandler call() throws Exception {
+							return createWebapplication(contributor, webapp,
+									contextPath, classInBundle,
+									new PhaseTimer(contributor.getSymbolicName(), contextPath));
+						}
+					}, LazyContextHandler.getIdleTimeout(contributor),
+					_deployedContexts.getScheduler());
+			deploy(lazy, contributor, timer, predecessor);
+			_redeployments.put(contextPath, new Redeployment(lazy, contributor) {
+				ContextHandler redeploy(PhaseTimer t) throws Exception {
+					return deployWebapplication(contributor, webapp, contextPath, classInBundle,
+							t, _context);
+				}
+			});
+			return lazy;
+		}
+		WebAppContext context = createWebapplication(contributor, webapp,
+				contextPath, classInBundle, timer);
+		//ok now start and register this webapp. we checked when we started jetty
+		//that there was at least one such handler for webapps.
+		//replaces the previous version of the webapp if there is one.
+		deploy(context, contributor, timer, predecessor);
+		_redeployments.put(contextPath, new Redeployment(context, contributor) {
+			ContextHandler redeploy(PhaseTimer t) throws Exception {
+				return deployWebapplication(contributor, webapp, contextPath, classInBundle,
+						t, _context);
+			}
+		});
+		return context;
+	}
+	
+	/**
+	 * Creates and configures the webapp; does not start it.
+	 */
+	private WebAppContext createWebapplication(Bundle contributor, Resource webapp,
+			String contextPath, Class<?> classInBundle, PhaseTimer timer) throws Exception {
 		ClassLoader contextCl = Thread.currentThread().getContextClassLoader();
 		try {
 			//make sure we provide access to all the jetty bundles by going through this bundle.
+			timer.phase(DeploymentTimings.PHASE_CLASSLOADER);
 			TldLocatableURLClassloader composite =
 				createContextClassLoader(contributor, classInBundle);
 			//configure with access to all jetty classes and also all the classes
 			//that the contributor gives access to.
 			Thread.currentThread().setContextClassLoader(composite);
 			
-			WebAppContext context = new WebAppContext(webapp.getAbsolutePath(), contextPath);
+			timer.phase(DeploymentTimings.PHASE_WEB_XML);
+			WebAppContext context;
+			if (webapp.getFile() != null) {
+				context = new WebAppContext(webapp.getFile().getAbsolutePath(), contextPath);
+			} else {
+				context = new WebAppContext();
+				context.setContextPath(contextPath);
+				setBundleJarResource(context, webapp);
+			}
 			
 			WebXmlConfiguration webXml = new WebXmlConfiguration();
 			webXml.configure(context);
@@ -237,22 +854,41 @@ class WebappRegistrationHelper {
 			
 			configureWebAppContext(context);
 			
-			//ok now register this webapp. we checked when we started jetty that there
-			//was at least one such handler for webapps.
-			_ctxtHandler.addHandler(context);
-			
-			configureContextClassLoader(context, composite);
-			
-			context.start();
-		
+			timer.phase(DeploymentTimings.PHASE_CLASSLOADER);
+			configureContextClassLoader(context, contributor, composite);
+			timer.phase(DeploymentTimings.PHASE_WEB_XML);
+			_tldRegistry.configure(context, _tldJarIndex.getJarsWithTlds());
+			_jspScratchDirectories.configure(context, contributor);
+			timer.end();
+			return context;
 		} finally {
 			Thread.currentThread().setContextClassLoader(contextCl);
 		}
 		
 	}
 	
+	/**
+	 * Undeploys the context currently deployed on a context path.
+	 * Its in-flight requests are drained before it is stopped.
+	 * @param contextPath
+	 */
 	public void unregister(String contextPath) {
-		//TODO
+		_deploymentEngine.undeployed(contextPath);
+		_deployedContexts.undeploy(contextPath);
+	}
+	
+	/**
+	 * Undeploys the context of a deployment; once the deployment is over
+	 * if it is still running. The context is not undeployed if it was replaced
+	 * by a new version in the mean time.
+	 * @param deployment
+	 * @param contextPath The context path when it is known; null otherwise.
+	 */
+	public void unregister(Future<ContextHandler> deployment, String contextPath) {
+		if (contextPath != null) {
+			_deploymentEngine.undeployed(contextPath);
+		}
+		_deployedContexts.undeployWhenDone(deployment);
 	}
 	
 	
@@ -265,35 +901,64 @@ class WebappRegistrationHelper {
 	 * @param webapp
 	 * @param contextPath
 	 * @param classInBundle
+	 * @param status Notified of the progress of the deployment. Can be null.
+	 * @return The future on the started context.
 	 * @throws Exception
 	 */
-	public void registerContext(Bundle contributor, String contextFileRelativePath,
-			Class<?> classInBundle) throws Exception {
+	public Future<ContextHandler> registerContext(Bundle contributor, String contextFileRelativePath,
+			Class<?> classInBundle, DeploymentStatusImpl status) throws Exception {
+		PhaseTimer timer = new PhaseTimer(contributor.getSymbolicName(), null);
+		timer.phase(DeploymentTimings.PHASE_BUNDLE_LOCATION);
+		File override = getContextFileOverride(contributor, contextFileRelativePath);
+		if (override != null && isWatchingContexts()) {
+			//creating, modifying or deleting the override re-creates the context.
+			_contextOverrides.put(DirectoryWatcher.normalize(override), new ContextOverride(
+					contributor, contextFileRelativePath, classInBundle));
+		}
+		Resource contextFile = getContextFile(contributor, contextFileRelativePath, override);
+		timer.end();
+		return registerContext(contributor, contextFile, classInBundle, status, timer);
+	}
+	
+	/**
+	 * @return The production override of the context file of a bundle:
+	 * ${jetty.contexts.home}/&lt;bundle-symbolic-name&gt;/&lt;contextFileRelativePath&gt;.
+	 * It might not exist. null when jetty.contexts.home is not set.
+	 */
+	private static File getContextFileOverride(Bundle contributor, String contextFileRelativePath) {
 		String jettyContextsHome = System.getProperty("jetty.contexts.home");
-		if (jettyContextsHome != null) {
-			File contextsHome = new File(jettyContextsHome);
-			if (!contextsHome.exists() || !contextsHome.isDirectory()) {
-				throw new IllegalArgumentException("the ${jetty.home.contexts} '"
-						+ jettyContextsHome + " must exist and be a folder"); 
-			}
-			File prodContextFile = new File(contextsHome,
-					contributor.getSymbolicName() + "/" + contextFileRelativePath);
-			if (prodContextFile.exists()) {
-				registerContext(contributor, prodContextFile, classInBundle);
-				return;
-			}
+		if (jettyContextsHome == null) {
+			return null;
 		}
-		File contextFile = new File(FileLocatorHelper
-				.getBundleInstallLocation(contributor), contextFileRelativePath);
-		if (contextFile.exists()) {
-			registerContext(contributor, contextFile, classInBundle);
-			return;
-		} else {
+		File contextsHome = new File(jettyContextsHome);
+		if (!contextsHome.exists() || !contextsHome.isDirectory()) {
+			throw new IllegalArgumentException("the ${jetty.home.contexts} '"
+					+ jettyContextsHome + " must exist and be a folder"); 
+		}
+		return new File(contextsHome, contributor.getSymbolicName() + "/" + contextFileRelativePath);
+	}
+	
+	/**
+	 * @param override The production override; null when there is none.
+	 * @return The override when it exists; the context file inside the bundle otherwise.
+	 */
+	private Resource getContextFile(Bundle contributor, String contextFileRelativePath,
+			File override) throws Exception {
+		if (override != null && override.exists()) {
+			return Resource.newResource(override.toURI().toURL());
+		}
+		File bundleInstall = _bundleResolver.getBundleInstallLocation(contributor);
+		Resource contextFile = bundleInstall.isFile()
+			? BundleJarResource.newResource(bundleInstall, contextFileRelativePath)
+			: Resource.newResource(new File(bundleInstall, contextFileRelativePath).toURI().toURL());
+		if (!contextFile.exists()) {
 			throw new IllegalArgumentException("Could not find the context " +
 					"file " + contextFileRelativePath + " for the bundle " +
 					contributor.getSymbolicName());
 		}
+		return contextFile;
 	}
+	
 	/**
 	 * This type of registration relies on jetty's complete context xml file.
 	 * Context encompasses jndi and all other things.
@@ -302,32 +967,139 @@ class WebappRegistrationHelper {
 	 * @param webapp
 	 * @param contextPath
 	 * @param classInBundle
-	 * @throws Exception
+	 * @param status Notified of the progress of the deployment. Can be null.
+	 * @return The future on the started context.
+	 */
+	private Future<ContextHandler> registerContext(final Bundle contributor,
+			final Resource contextFile, final Class<?> classInBundle, DeploymentStatusImpl status,
+			final PhaseTimer timer) {
+		//the context path is defined inside the context file.
+		return _deploymentEngine.deploy(null,
+				DeploymentEngine.getDependencies(contributor),
+				timed(timer, new Callable<ContextHandler>() {
+					public ContextHandler call() throws Exception {
+						return deployContext(contributor, contextFile, classInBundle, timer, null);
+					}
+				}), status);
+	}
+	
+	/**
+	 * Executed by one of the threads of the deployment engine.
+	 * @param predecessor The context reloaded; null for a new deployment.
 	 */
-	private void registerContext(Bundle contributor, File contextFile,
-			Class<?> classInBundle) throws Exception {
+	private ContextHandler deployContext(Bundle contributor, Resource contextFile,
+			Class<?> classInBundle, PhaseTimer timer, ContextHandler predecessor)
+	throws Exception {
+		ContextHandler context = createContext(contributor, contextFile, classInBundle, timer);
+		return publishContext(contributor, contextFile, classInBundle, context, timer, predecessor);
+	}
+	
+	/**
+	 * Deploys the context created from the context file.
+	 * @param predecessor The context replaced; null for a new deployment.
+	 */
+	private ContextHandler publishContext(final Bundle contributor, final Resource contextFile,
+			final Class<?> classInBundle, ContextHandler context, PhaseTimer timer,
+			ContextHandler predecessor) throws Exception {
+		timer.setContextPath(context.getContextPath());
+		_admissionControl.setWeight(context.getContextPath(),
+				AdmissionControlImpl.getWeight(contributor));
+		if (LazyContextHandler.isLazyStart(contributor)) {
+			//the context file is parsed to know the context path;
+			//the context is started on the first request.
+			LazyContextHandler lazy = new LazyContextHandler(context.getContextPath(), context,
+					new Callable<ContextHandler>() {
+						public ContextHandler call() throws Exception {
+							return createContext(contributor, contextFile, classInBundle,
+									new PhaseTimer(contributor.getSymbolicName(), null));
+						}
+					}, LazyContextHandler.getIdleTimeout(contributor),
+					_deployedContexts.getScheduler());
+			deploy(lazy, contributor, timer, predecessor);
+			_redeployments.put(lazy.getContextPath(), new Redeployment(lazy, contributor) {
+				ContextHandler redeploy(PhaseTimer t) throws Exception {
+					return deployContext(contributor, contextFile, classInBundle, t, _context);
+				}
+			});
+			return lazy;
+		}
+        //ok now start and register this context. we checked when we started jetty
+		//that there was at least one such handler for webapps.
+		//replaces the previous version of the context if there is one.
+		deploy(context, contributor, timer, predecessor);
+		_redeployments.put(context.getContextPath(), new Redeployment(context, contributor) {
+			ContextHandler redeploy(PhaseTimer t) throws Exception {
+				return deployContext(contributor, contextFile, classInBundle, t, _context);
+			}
+		});
+		return context;
+	}
+	
+	/**
+	 * Publishes the context; in place of its predecessor when it is reloaded.
+	 */
+	private void deploy(ContextHandler context, Bundle contributor, PhaseTimer timer,
+			ContextHandler predecessor) throws Exception {
+		if (context instanceof WebAppContext && JspPrecompiler.isPrecompile(contributor)) {
+			precompile((WebAppContext)context, timer);
+		}
+		if (predecessor != null) {
+			_deployedContexts.reload(context, Bulkhead.create(contributor), timer, predecessor);
+		} else {
+			_deployedContexts.deploy(context, Bulkhead.create(contributor), timer);
+		}
+	}
+	
+	/**
+	 * Starts the webapp and compiles its jsps: it is published once they are compiled.
+	 * A lazily started webapp is not precompiled.
+	 */
+	private void precompile(WebAppContext webapp, PhaseTimer timer) throws Exception {
+		timer.phase(DeploymentTimings.PHASE_START);
+		try {
+			DeployedContexts.start(webapp, _server);
+			timer.phase(DeploymentTimings.PHASE_PRECOMPILE_JSP);
+			_jspPrecompiler.precompile(webapp);
+		} catch (Exception e) {
+			DeployedContexts.stopAndRelease(webapp);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Creates and configures the context defined by the context file; does not start it.
+	 */
+	private ContextHandler createContext(Bundle contributor, Resource contextFile,
+			Class<?> classInBundle, PhaseTimer timer) throws Exception {
 		ClassLoader contextCl = Thread.currentThread().getContextClassLoader();
 		try {
 			//make sure we provide access to all the jetty bundles by going through this bundle.
+			timer.phase(DeploymentTimings.PHASE_CLASSLOADER);
 			TldLocatableURLClassloader composite =
 				createContextClassLoader(contributor, classInBundle);
 			//configure with access to all jetty classes and also all the classes
 			//that the contributor gives access to.
 			Thread.currentThread().setContextClassLoader(composite);
+			timer.phase(DeploymentTimings.PHASE_CONTEXT_XML);
 			ContextHandler context = createContextHandler(contributor, contextFile);
-//	        //[H]extra work for the path to the file:
-//	        if (context instanceof WebAppContext) {
-//	        	WebAppContext wah = (WebAppContext)context;
-//	        	Resource.newResource(wah.getWar());
-//	        }
-	
-	        //ok now register this webapp. we checked when we started jetty that there
-			//was at least one such handler for webapps.
-			_ctxtHandler.addHandler(context);
-			
-			configureContextClassLoader(context, composite);
-			
-			context.start();
+			if (context == null) {
+				throw new IllegalArgumentException("Unable to create a context from "
+						+ contextFile);
+			}
+	        //[H]extra work for the path to the file:
+	        if (context instanceof WebAppContext) {
+	        	adaptWarToJarredBundle(contributor, (WebAppContext)context);
+	        }
+	
+	        timer.phase(DeploymentTimings.PHASE_CLASSLOADER);
+			configureContextClassLoader(context, contributor, composite);
+			if (context instanceof WebAppContext) {
+				timer.phase(DeploymentTimings.PHASE_WEB_XML);
+				_tldRegistry.configure((WebAppContext)context, _tldJarIndex.getJarsWithTlds());
+				_jspScratchDirectories.configure((WebAppContext)context, contributor);
+			}
+			timer.end();
+			return context;
 		} finally {
 			Thread.currentThread().setContextClassLoader(contextCl);
 		}
@@ -336,50 +1108,56 @@ class WebappRegistrationHelper {
 	
 
 	/**
-	 * TODO: right now only the jetty-jsp bundle is scanned for common taglibs.
-	 * Should support a way to plug more bundles that contain taglibs.
-	 * 
-	 * The jasper TldScanner expects a URLClassloader to parse a jar for the
-	 * /META-INF/*.tld it may contain.
-	 * We place the bundles that we know contain such tag-libraries.
-	 * Please note that it will work if and only if the bundle is a jar (!)
-	 * Currently we just hardcode the bundle that contains the jstl implemenation.
-	 * 
-	 * A workaround when the tld cannot be parsed with this method is to copy and paste
-	 * it inside the WEB-INF of the webapplication where it is used.
-	 * 
-	 * Support only 2 types of packaging for the bundle:
-	 * - the bundle is a jar (recommended for runtime.)
-	 * - the bundle is a folder and contain jars in the root and/or in the lib folder
-	 * (nice for PDE developement situations) 
-	 * Unsupported: the bundle is a jar that embeds more jars.
-	 * 
-	 * @return
-	 * @throws Exception
+	 * Records the timings of the deployment once it is over.
 	 */
-	private URL[] getJarsWithTlds() throws Exception {
-		Bundle jasperBundler = FrameworkUtil.getBundle(TldLocationsCache.class);
-		File jasperLocation = FileLocatorHelper.getBundleInstallLocation(jasperBundler);
-		if (jasperLocation.isDirectory()) {
-			//try to find the jar files inside this folder
-			ArrayList<URL> urls = new ArrayList<URL>();
-			for (File f : jasperLocation.listFiles()) {
-				if (f.getName().endsWith(".jar") && f.isFile()) {
-					urls.add(f.toURI().toURL());
-				} else if (f.isDirectory() && f.getName().equals("lib")) {
-					for (File f2 : jasperLocation.listFiles()) {
-						if (f2.getName().endsWith(".jar") && f2.isFile()) {
-							urls.add(f2.toURI().toURL());
-						}
-					}
+	private Callable<ContextHandler> timed(final PhaseTimer timer,
+			final Callable<ContextHandler> deployment) {
+		return new Callable<ContextHandler>() {
+			public ContextHandler call() throws Exception {
+				try {
+					ContextHandler context = deployment.call();
+					timer.setContextPath(context.getContextPath());
+					return context;
+				} catch (Exception e) {
+					timer.failed();
+					throw e;
+				} finally {
+					_timings.record(timer);
 				}
 			}
-			return urls.toArray(new URL[urls.size()]);
-		} else {
-			return new URL[] {jasperLocation.toURI().toURL()};
-		}
+		};
 	}
 
+	/**
+	 * A context file for a jarred bundle points at the war with a url inside the jar.
+	 * Replace it by the equivalent {@link BundleJarResource}.
+	 */
+	private void adaptWarToJarredBundle(Bundle contributor, WebAppContext context)
+	throws Exception {
+		String war = context.getWar();
+		if (war == null || !war.startsWith("jar:")) {
+			return;
+		}
+		File bundleInstall = _bundleResolver.getBundleInstallLocation(contributor);
+		if (!bundleInstall.isFile()) {
+			return;
+		}
+		String prefix = BundleJarResource.getJarUrlPrefix(bundleInstall.getCanonicalFile());
+		if (war.startsWith(prefix)) {
+			setBundleJarResource(context, BundleJarResource.newResource(
+					bundleInstall, war.substring(prefix.length())));
+		}
+	}
+	
+	/**
+	 * Serve the webapp from the jar: never extract it.
+	 */
+	private void setBundleJarResource(WebAppContext context, Resource webapp) {
+		context.setBaseResource(webapp);
+		context.setWar(null);
+		context.setExtractWAR(false);
+		context.setCopyWebDir(false);
+	}
 
 	/**
 	 * Applies the properties of WebAppDeployer as defined in jetty.xml.
@@ -412,7 +1190,7 @@ class WebappRegistrationHelper {
 	 * @return
 	 */
 	@SuppressWarnings("unchecked")
-	protected ContextHandler createContextHandler(Bundle bundle, File contextFile) {
+	protected ContextHandler createContextHandler(Bundle bundle, Resource contextFile) {
 		
 		/*
 		 * Do something identical to what the ContextDeployer would have done:
@@ -429,17 +1207,18 @@ class WebappRegistrationHelper {
 		 */
 		ConfigurationManager _configMgr = getContextDeployerConfigurationManager();
         AttributesMap _contextAttributes = getContextDeployerContextAttributes();
-		InputStream in = null;
 		try {
-			in = new BufferedInputStream(new FileInputStream(contextFile));
-			XmlConfiguration xmlConfiguration=new XmlConfiguration(in);
+			//the parsed context file is cached: only the properties change.
+			XmlConfiguration xmlConfiguration=_contextFileTemplates.newXmlConfiguration(contextFile);
 	        HashMap<String,Object> properties = new HashMap<String,Object>();
 	        properties.put("Server", _server);
 	        if (_configMgr!=null) {
 	            properties.putAll(_configMgr.getProperties());
 	        }
 	        //insert the bundle's location as a property.
-	        setThisBundleHomeProperty(bundle, properties);
+	        if (bundle != null) {
+	        	setThisBundleHomeProperty(bundle, properties);
+	        }
 	        xmlConfiguration.setProperties(properties);
 	        
 	        //bug in equinox? if jetty plus is an optionally required-bundle, then we can't load the class! 
@@ -461,8 +1240,6 @@ class WebappRegistrationHelper {
 		} catch (Exception e ) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} finally {
-			if (in != null) try { in.close(); } catch (IOException ioe) {}
 		}
 		return null;
 	}
@@ -483,18 +1260,24 @@ class WebappRegistrationHelper {
 	 * the jars that some j2ee tools expect and look into. For example the jars
 	 * that contain tld files for jasper's jstl support.
 	 * </p>
+	 * <p>
+	 * The jars of WEB-INF/lib that are shared are loaded by the shared classloader:
+	 * see {@link SharedLibrariesImpl}.
+	 * </p>
 	 * @param context
 	 * @param contributor
-	 * @param webapp
-	 * @param contextPath
-	 * @param classInBundle
+	 * @param composite
 	 * @throws Exception
 	 */
-	protected void configureContextClassLoader(ContextHandler context,
+	protected void configureContextClassLoader(ContextHandler context, Bundle contributor,
 			TldLocatableURLClassloader composite) throws Exception {
 		if (context instanceof WebAppContext) {
-		    WebAppClassLoader wcl =
-		    	new WebAppClassLoader(composite, (WebAppContext) context);
+			WebAppContext webapp = (WebAppContext)context;
+			SharedLibrariesImpl.Lease lease = _sharedLibraries.share(contributor,
+					SharedLibrariesImpl.getWebInfLib(webapp));
+		    WebAppClassLoader wcl = lease != null
+		    	? new SharedLibWebAppClassLoader(composite, webapp, lease)
+		    	: new WebAppClassLoader(composite, webapp);
 		    //addJarsWithTlds(wcl);
 		    context.setClassLoader(wcl);
         } else {
@@ -506,7 +1289,10 @@ class WebappRegistrationHelper {
 	
 	protected TldLocatableURLClassloader createContextClassLoader(
 			Bundle contributor, Class<?> classInBundle) throws Exception {
-	    if (classInBundle != null) {
+	    //without a class in the bundle, the classloader of the bundle itself.
+	    ClassLoader osgiCl = classInBundle != null ? classInBundle.getClassLoader()
+	    	: contributor != null ? _bundleResolver.getClassLoader(contributor) : null;
+	    if (osgiCl != null) {
 	//this solution does not insert all the jetty related classes in the webapp's classloader:
 	//	WebAppClassLoader cl = new WebAppClassLoader(classInBundle.getClassLoader(), context);
 	//	context.setClassLoader(cl);
@@ -514,15 +1300,15 @@ class WebappRegistrationHelper {
 	    	//Make all of the jetty's classes available to the webapplication classloader
 	    	//also add the contributing bundle's classloader to give access to osgi to
 	    	//the contributed webapp.
-	        ClassLoader osgiCl = classInBundle.getClassLoader();
 	        TldLocatableURLClassloader composite =
 	        	new TldLocatableURLClassloaderWithInsertedJettyClassloader(
-	        			_libEtcClassLoader, osgiCl, getJarsWithTlds());
+	        			_libEtcClassLoader, osgiCl, _tldJarIndex.getJarsWithTlds());
+	        _lookupCacheInvalidator.track(contributor, composite);
 	        return composite;
 	    } else {
 	    	//Make all of the jetty's classes available to the webapplication classloader
 	    	TldLocatableURLClassloader composite = new TldLocatableURLClassloader(
-	    			_libEtcClassLoader, getJarsWithTlds());
+	    			_libEtcClassLoader, _tldJarIndex.getJarsWithTlds());
 	    	return composite;
 		    
 	    }
@@ -532,10 +1318,19 @@ class WebappRegistrationHelper {
 	/**
 	 * Set the property &quot;this.bundle.install&quot; to point to the location of the bundle.
 	 * Useful when <SystemProperty name="this.bundle.home"/> is used.
+	 * <p>
+	 * When the bundle is a jar, the property is the prefix of the urls inside
+	 * the jar: <code>jar:file:/path/to/bundle.jar!</code>
+	 * </p>
 	 */
 	private void setThisBundleHomeProperty(Bundle bundle, HashMap<String,Object> properties) {
 		try {
-			File location = FileLocatorHelper.getBundleInstallLocation(bundle);
+			File location = _bundleResolver.getBundleInstallLocation(bundle);
+			if (location.isFile()) {
+				properties.put("this.bundle.install",
+						BundleJarResource.getJarUrlPrefix(location.getCanonicalFile()));
+				return;
+			}
 			properties.put("this.bundle.install", location.getCanonicalPath());
 		} catch (Throwable t) {
 			System.err.println("Unable to set 'this.bundle.install' " +
@@ -0,0 +1,76 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+import java.util.Map;
+
+/**
+ * The requests admitted and shed by the admission control in front of the
+ * deployed contexts.
+ * <p>
+ * A request is shed with a 503 when it waited too long in the queue of the thread pool
+ * before it was handled. The limit follows CoDel: when the shortest wait of the last
+ * interval is above the target, the server is overloaded and the requests that waited
+ * longer than the target are shed; otherwise only the ones that waited longer than
+ * the interval are. The limit is multiplied by the weight of the context:
+ * the critical contexts are shed last.
+ * </p>
+ * <p>
+ * Published as an OSGi service by the jetty bootstrap. It is also added to the
+ * server's container: when the server is configured with etc/jetty-jmx.xml
+ * it is exposed as an MBean.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface AdmissionControl {
+
+	/**
+	 * @return Milliseconds: the acceptable wait in the queue.
+	 */
+	public long getTarget();
+
+	/**
+	 * @return Milliseconds: how often the shortest wait is checked against the target.
+	 */
+	public long getInterval();
+
+	/**
+	 * @return true when the shortest wait of the last interval was above the target.
+	 */
+	public boolean isOverloaded();
+
+	/**
+	 * @return The number of requests admitted.
+	 */
+	public long getAdmitted();
+
+	/**
+	 * @return The number of requests shed.
+	 */
+	public long getShed();
+
+	/**
+	 * @return context path -> the number of requests shed.
+	 */
+	public Map<String,Long> getShedByContext();
+
+	/**
+	 * @return context path -> its weight; the contexts that were not given one weigh 1.
+	 */
+	public Map<String,Integer> getWeights();
+
+	/**
+	 * Resets the counters.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,42 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+/**
+ * Counters of the lookup cache of a webapp's classloader.
+ * <p>
+ * The classloader of each deployed context implements this interface;
+ * for a WebAppContext it is the parent of the WebAppClassLoader.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface ClassLoaderLookupStatistics {
+
+	/** @return The number of classes found in the cache. */
+	public long getClassHits();
+
+	/** @return The number of classes known to be missing from the cache. */
+	public long getClassNegativeHits();
+
+	/** @return The number of class lookups that went through the delegation chain. */
+	public long getClassMisses();
+
+	/** @return The number of resources found in the cache. */
+	public long getResourceHits();
+
+	/** @return The number of resources known to be missing from the cache. */
+	public long getResourceNegativeHits();
+
+	/** @return The number of resource lookups that went through the delegation chain. */
+	public long getResourceMisses();
+
+}
@@ -0,0 +1,99 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+/**
+ * The status of the deployment of a webapp or a context.
+ * <p>
+ * One such object is published as an OSGi service for each ContextHandler
+ * service picked up by the jetty bootstrap. The service properties are updated
+ * at each transition so a bundle can wait for a webapp to be ready with a
+ * filter; for example:
+ * <code>(&amp;(objectclass=org.intalio.osgi.jetty.server.management.DeploymentStatus)(contextPath=/mywebapp)(deploymentState=STARTED))</code>
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface DeploymentStatus {
+
+	/** Service property: the context path once it is known. */
+	public static final String PROP_CONTEXT_PATH = "contextPath";
+	/** Service property: the name of the current {@link State}. */
+	public static final String PROP_STATE = "deploymentState";
+	/** Service property: symbolic name of the bundle that contributed the context. */
+	public static final String PROP_BUNDLE_SYMBOLIC_NAME = "bundleSymbolicName";
+	/** Service property: id of the bundle that contributed the context. */
+	public static final String PROP_BUNDLE_ID = "bundleId";
+
+	public enum State {
+		/** queued; waiting for a deployer thread or for the contexts it depends on. */
+		PENDING,
+		/** being configured and started. */
+		DEPLOYING,
+		/** started and serving requests. */
+		STARTED,
+		/** the deployment failed; see {@link DeploymentStatus#getFailure()} */
+		FAILED
+	}
+
+	/**
+	 * @return The context path or null when it is not known yet.
+	 * For example when the context is defined by a context file that is not parsed yet.
+	 */
+	public String getContextPath();
+
+	/**
+	 * @return The symbolic name of the bundle that contributed this context.
+	 */
+	public String getBundleSymbolicName();
+
+	public State getState();
+
+	/**
+	 * @return The cause of the failure or null.
+	 */
+	public Throwable getFailure();
+
+	/**
+	 * @return When the deployment was queued (System.currentTimeMillis()).
+	 */
+	public long getQueuedAt();
+
+	/**
+	 * @return When the deployment started to run on a deployer thread; 0 if it did not yet.
+	 */
+	public long getDeployingAt();
+
+	/**
+	 * @return When the deployment was started or failed; 0 if it is not over.
+	 */
+	public long getCompletedAt();
+
+	/**
+	 * @return The time spent waiting in the queue in milliseconds;
+	 * -1 if the deployment did not start yet.
+	 */
+	public long getQueuedDuration();
+
+	/**
+	 * @return The time spent deploying in milliseconds; -1 if the deployment is not over.
+	 */
+	public long getDeploymentDuration();
+
+	/**
+	 * Blocks until the deployment is over or the timeout expires.
+	 * @param timeout in milliseconds.
+	 * @return The state when the method returns.
+	 * @throws InterruptedException
+	 */
+	public State waitForCompletion(long timeout) throws InterruptedException;
+
+}
@@ -0,0 +1,105 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time goes when the server is setup and when the contexts are deployed.
+ * <p>
+ * Published as an OSGi service by the jetty bootstrap. It is also added to the
+ * server's container: when the server is configured with etc/jetty-jmx.xml
+ * it is exposed as an MBean.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface DeploymentTimings {
+
+	/** Deployment phase: locating the bundle and the webapp or the context file inside it. */
+	public static final String PHASE_BUNDLE_LOCATION = "bundleLocation";
+	/** Deployment phase: creating the classloader of the context. */
+	public static final String PHASE_CLASSLOADER = "classLoader";
+	/** Deployment phase: web.xml and jetty-web.xml. */
+	public static final String PHASE_WEB_XML = "webXml";
+	/** Deployment phase: the context file. */
+	public static final String PHASE_CONTEXT_XML = "contextXml";
+	/** Deployment phase: publishing the context in the ContextHandlerCollection. */
+	public static final String PHASE_ADD_HANDLER = "addHandler";
+	/** Deployment phase: starting the context. */
+	public static final String PHASE_START = "start";
+	/** Deployment phase: compiling the jsps before the webapp is published. */
+	public static final String PHASE_PRECOMPILE_JSP = "precompileJsp";
+
+	/** Server setup phase: parsing etc/jetty.xml */
+	public static final String PHASE_JETTY_XML = "jettyXml";
+	/** Server setup phase: the classloader of ${jetty.home}/lib/etc */
+	public static final String PHASE_LIB_ETC_CLASSLOADER = "libEtcClassLoader";
+	/** Server setup phase: configuring the server with etc/jetty.xml */
+	public static final String PHASE_SERVER_CONFIGURE = "serverConfigure";
+	/** Server setup phase: starting the server. */
+	public static final String PHASE_SERVER_START = "serverStart";
+
+	/**
+	 * The phases of the setup of the server or of a deployment.
+	 */
+	public interface Timing {
+
+		/**
+		 * @return The symbolic name of the bundle deployed; "server" for the setup of the server.
+		 */
+		public String getName();
+
+		/**
+		 * @return The context path or null if it is not known.
+		 */
+		public String getContextPath();
+
+		/**
+		 * @return When it started (System.currentTimeMillis()).
+		 */
+		public long getStartedAt();
+
+		/**
+		 * @return The sum of the durations of the phases in milliseconds.
+		 */
+		public long getTotalDuration();
+
+		/**
+		 * @return phase -> duration in milliseconds; in the order they were executed.
+		 */
+		public Map<String,Long> getPhases();
+
+		/**
+		 * @return true if it did not complete.
+		 */
+		public boolean isFailed();
+
+	}
+
+	/**
+	 * @return The setup of the server or null if it did not happen yet.
+	 */
+	public Timing getServerSetup();
+
+	/**
+	 * @return The last deployments; the most recent first.
+	 */
+	public List<Timing> getLastDeployments();
+
+	/**
+	 * @return bundle symbolic name -> phase -> the longest duration observed in milliseconds;
+	 * the slowest phases first.
+	 */
+	public Map<String,Map<String,Long>> getSlowestPhases();
+
+}
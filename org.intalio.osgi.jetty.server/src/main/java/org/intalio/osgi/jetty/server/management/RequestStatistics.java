@@ -0,0 +1,86 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+/**
+ * Request counters and latencies of each deployed context.
+ * <p>
+ * Published as an OSGi service by the jetty bootstrap. It is also added to the
+ * server's container: when the server is configured with etc/jetty-jmx.xml
+ * it is exposed as an MBean.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface RequestStatistics {
+
+	/**
+	 * The counters of the requests served on a context path;
+	 * they are kept when the context is redeployed.
+	 */
+	public interface ContextStatistics {
+
+		/** @return The context path. */
+		public String getContextPath();
+
+		/** @return When the counters were created or reset (System.currentTimeMillis()). */
+		public long getStatsSince();
+
+		/** @return The number of requests completed. */
+		public long getRequests();
+
+		/** @return The number of requests being served. */
+		public long getRequestsActive();
+
+		/** @return The number of bytes of the request bodies read. */
+		public long getBytesIn();
+
+		/** @return The number of bytes of the responses written. */
+		public long getBytesOut();
+
+		/**
+		 * @param statusClass 1 for 1xx, 2 for 2xx ... 5 for 5xx.
+		 * @return The number of responses completed with a status of this class.
+		 */
+		public long getResponses(int statusClass);
+
+		/**
+		 * @param percentile between 0 and 1. For example 0.99
+		 * @return The latency under which that proportion of the requests completed
+		 * in microseconds. Accurate within 7 percents.
+		 */
+		public long getLatency(double percentile);
+
+		/** @return The longest latency in microseconds. */
+		public long getLatencyMax();
+
+		/** @return The average latency in microseconds. */
+		public long getLatencyAverage();
+
+	}
+
+	/**
+	 * @return The context paths currently deployed.
+	 */
+	public String[] getContextPaths();
+
+	/**
+	 * @param contextPath
+	 * @return The counters of that context path or null if nothing is deployed there.
+	 */
+	public ContextStatistics getStatistics(String contextPath);
+
+	/**
+	 * Resets the counters of all the contexts.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,64 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.management;
+
+import java.util.Map;
+
+/**
+ * The jars of the webapps' WEB-INF/lib folders that are loaded once for all the webapps.
+ * <p>
+ * The jars are identified by the hash of their content: the webapps that embed the same
+ * jar share its classes instead of loading a copy each. The memory saved is estimated
+ * from the size of the class files loaded by the shared classloader times the number of
+ * additional webapps that use them.
+ * </p>
+ * <p>
+ * Published as an OSGi service by the jetty bootstrap. It is also added to the
+ * server's container: when the server is configured with etc/jetty-jmx.xml
+ * it is exposed as an MBean.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public interface SharedLibraries {
+
+	/**
+	 * @return The number of jars loaded by the shared classloader.
+	 */
+	public int getSharedJars();
+
+	/**
+	 * @return The number of classes loaded by the shared classloader.
+	 */
+	public long getLoadedClasses();
+
+	/**
+	 * @return Estimate of the bytes of classes that were not loaded again by each webapp.
+	 */
+	public long getSavedClassBytes();
+
+	/**
+	 * @return The number of jars that were kept in their webapp: a jar with other
+	 * content defines the same classes in the shared classloader.
+	 */
+	public long getConflicts();
+
+	/**
+	 * @return jar name and hash -> the number of webapps that use it.
+	 */
+	public Map<String,Integer> getWebappsByJar();
+
+	/**
+	 * @return jar name and hash -> estimate of the bytes of classes saved.
+	 */
+	public Map<String,Long> getSavedClassBytesByJar();
+
+}
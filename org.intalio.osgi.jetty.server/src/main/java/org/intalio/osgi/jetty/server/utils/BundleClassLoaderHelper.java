@@ -10,6 +10,10 @@
 *******************************************************************************/
 package org.intalio.osgi.jetty.server.utils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
 import org.osgi.framework.Bundle;
 
 /**
@@ -18,10 +22,43 @@ import org.osgi.framework.Bundle;
  * that way.
  * But from the Bundle would be nice.
  * This is dirty and only works on equinox!
+ * <p>
+ * On a framework that supports OSGi-4.3 the classloader is the one of the
+ * BundleWiring of the bundle; it is looked up with MethodHandles as we compile
+ * against OSGi-4.2. Otherwise the class of the Bundle-Activator is loaded.
+ * The classloader is cached by the {@link BundleResolver}.
+ * </p>
  * 
  * @author hmalphettes
  */
 public class BundleClassLoaderHelper {
+	
+	/** Bundle.adapt(BundleWiring.class); null before OSGi-4.3. */
+	private static final MethodHandle ADAPT;
+	/** BundleWiring.getClassLoader() */
+	private static final MethodHandle GET_CLASS_LOADER;
+	private static final Class<?> BUNDLE_WIRING;
+	static {
+		MethodHandle adapt = null;
+		MethodHandle getClassLoader = null;
+		Class<?> bundleWiring = null;
+		try {
+			bundleWiring = Class.forName("org.osgi.framework.wiring.BundleWiring",
+					false, Bundle.class.getClassLoader());
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			adapt = lookup.findVirtual(Bundle.class, "adapt",
+					MethodType.methodType(Object.class, Class.class));
+			getClassLoader = lookup.findVirtual(bundleWiring, "getClassLoader",
+					MethodType.methodType(ClassLoader.class)).asType(
+							MethodType.methodType(ClassLoader.class, Object.class));
+		} catch (Throwable t) {
+			//OSGi-4.2
+			adapt = null;
+		}
+		ADAPT = adapt;
+		GET_CLASS_LOADER = getClassLoader;
+		BUNDLE_WIRING = bundleWiring;
+	}
 
 	/**
 	 * Assuming the bundle is started.
@@ -29,6 +66,16 @@ public class BundleClassLoaderHelper {
 	 * @return
 	 */
 	public ClassLoader getClassLoader(Bundle bundle) {
+		if (ADAPT != null) {
+			try {
+				Object wiring = ADAPT.invokeExact(bundle, BUNDLE_WIRING);
+				if (wiring != null) {
+					return (ClassLoader)GET_CLASS_LOADER.invokeExact(wiring);
+				}
+			} catch (Throwable t) {
+				//not resolved: try the activator.
+			}
+		}
 		//TODO with introspection ?
 //		if (bundle instanceof org.eclipse.osgi.framework.internal.core.AbstractBundle) {
 //			org.eclipse.osgi.internal.loader.BundleLoader bLoader =
@@ -0,0 +1,112 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.utils;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+/**
+ * Caches the install location and the classloader of the bundles.
+ * <p>
+ * Locating a bundle opens a connection to its manifest and reads the internals of the
+ * framework: see {@link FileLocatorHelper}. Its classloader is found by loading a class:
+ * see {@link BundleClassLoaderHelper}. Both are resolved once per bundle id and
+ * last-modified time. They are evicted when the bundle is updated, unresolved or
+ * uninstalled: add this listener to the bundle context.
+ * </p>
+ *
+ * @author hmalphettes
+ */
+public class BundleResolver implements BundleListener {
+
+	/**
+	 * What is known of a version of a bundle.
+	 */
+	private static class Resolved {
+		private final long _lastModified;
+		private volatile File _location;
+		private volatile ClassLoader _classLoader;
+		Resolved(long lastModified) {
+			_lastModified = lastModified;
+		}
+	}
+
+	private final BundleClassLoaderHelper _classLoaderHelper = new BundleClassLoaderHelper();
+	/** bundle id -> its location and classloader. */
+	private final Map<Long,Resolved> _resolved = new ConcurrentHashMap<Long,Resolved>();
+
+	/**
+	 * @param bundle
+	 * @return Its installation location as a file: a folder or a jar.
+	 * @see FileLocatorHelper#getBundleInstallLocation(Bundle)
+	 */
+	public File getBundleInstallLocation(Bundle bundle) throws Exception {
+		Resolved resolved = getResolved(bundle);
+		File location = resolved._location;
+		if (location == null) {
+			location = FileLocatorHelper.getBundleInstallLocation(bundle);
+			resolved._location = location;
+		}
+		return location;
+	}
+
+	/**
+	 * @param bundle
+	 * @return The jar(s) file that is either the bundle itself, either the jars embedded inside it.
+	 * @see FileLocatorHelper#locateJarsInsideBundle(Bundle)
+	 */
+	public File[] locateJarsInsideBundle(Bundle bundle) throws Exception {
+		return FileLocatorHelper.locateJarsInsideBundle(getBundleInstallLocation(bundle));
+	}
+
+	/**
+	 * @param bundle Resolved.
+	 * @return Its classloader; null when it cannot be found.
+	 * @see BundleClassLoaderHelper#getClassLoader(Bundle)
+	 */
+	public ClassLoader getClassLoader(Bundle bundle) {
+		Resolved resolved = getResolved(bundle);
+		ClassLoader classLoader = resolved._classLoader;
+		if (classLoader == null) {
+			classLoader = _classLoaderHelper.getClassLoader(bundle);
+			resolved._classLoader = classLoader;
+		}
+		return classLoader;
+	}
+
+	private Resolved getResolved(Bundle bundle) {
+		Long id = bundle.getBundleId();
+		long lastModified = bundle.getLastModified();
+		Resolved resolved = _resolved.get(id);
+		if (resolved == null || resolved._lastModified != lastModified) {
+			//a listener might be notified of the update before this one.
+			resolved = new Resolved(lastModified);
+			_resolved.put(id, resolved);
+		}
+		return resolved;
+	}
+
+	public void bundleChanged(BundleEvent event) {
+		switch (event.getType()) {
+		case BundleEvent.UPDATED:
+		case BundleEvent.UNRESOLVED:
+		case BundleEvent.UNINSTALLED:
+			_resolved.remove(event.getBundle().getBundleId());
+			break;
+		}
+	}
+
+}
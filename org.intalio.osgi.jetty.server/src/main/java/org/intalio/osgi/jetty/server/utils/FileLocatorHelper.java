@@ -11,16 +11,27 @@
 package org.intalio.osgi.jetty.server.utils;
 
 import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.Bundle;
 
 /**
  * From a bundle to its location on the filesystem.
- * Assumes the bundle is not a jar.
+ * The location is either the folder of the bundle, either its jar.
+ * <p>
+ * Resolving the location opens a connection to the manifest of the bundle:
+ * use the cached {@link BundleResolver} when the same bundle is located several times.
+ * </p>
  * 
  * @author hmalphettes
  */
@@ -30,18 +41,67 @@ public class FileLocatorHelper {
 	//support equinox, felix and nuxeo's osgi implementations.
 	//not tested on nuxeo and felix just yet.
 	//The url nuxeo and felix return is created directly from the File so it should work.
-	private static Field BUNDLE_ENTRY_FIELD = null;
-	private static Field FILE_FIELD = null;
+	private static final Accessor BUNDLE_ENTRY_FIELD = new Accessor("bundleEntry", false);
+	private static final Accessor FILE_FIELD = new Accessor("file", false);
+	//equinox's ZipBundleEntry: the bundle is a jar.
+	private static final Accessor ZIP_BUNDLE_FILE_FIELD = new Accessor("bundleFile", false);
+	private static final Accessor BUNDLE_FILE_GET_BASE_FILE_METHOD =
+		new Accessor("getBaseFile", true);
+	
+	/**
+	 * Reads a field or calls a method without arguments of the framework's internals.
+	 * The member is looked up once per implementation class then invoked through a
+	 * MethodHandle.
+	 */
+	private static class Accessor {
+		private static final MethodType TYPE = MethodType.methodType(Object.class, Object.class);
+		private final String _name;
+		private final boolean _method;
+		/** implementation class -> the handle on its member. */
+		private final Map<Class<?>,MethodHandle> _handles =
+			new ConcurrentHashMap<Class<?>,MethodHandle>();
+		Accessor(String name, boolean method) {
+			_name = name;
+			_method = method;
+		}
+		Object get(Object target) throws Exception {
+			Class<?> cl = target.getClass();
+			MethodHandle handle = _handles.get(cl);
+			if (handle == null) {
+				if (_method) {
+					Method m = cl.getMethod(_name);
+					m.setAccessible(true);
+					handle = MethodHandles.lookup().unreflect(m);
+				} else {
+					Field f = cl.getDeclaredField(_name);
+					f.setAccessible(true);
+					handle = MethodHandles.lookup().unreflectGetter(f);
+				}
+				handle = handle.asType(TYPE);
+				_handles.put(cl, handle);
+			}
+			try {
+				return (Object)handle.invokeExact(target);
+			} catch (Exception e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
 	
 	/**
 	 * Works with equinox, felix, nuxeo and probably more.
 	 * Not exactly in the spirit of OSGi but quite necessary to support
 	 * self-contained webapps and other situations.
 	 * <p>
-	 * Currently only works with bundles that are not jar.
+	 * When the bundle is a jar, the jar itself is returned.
+	 * Equinox: bundleentry urls, a folder or a jar.
+	 * Felix: file urls for a folder; jar urls or bundle urls for a jar, in which case
+	 * the location of the bundle is used.
 	 * </p>
 	 * @param bundle The bundle
-	 * @return Its installation location as a file.
+	 * @return Its installation location as a file: a folder or a jar.
 	 * @throws Exception
 	 */
 	public static File getBundleInstallLocation(Bundle bundle) throws Exception {
@@ -54,22 +114,54 @@ public class FileLocatorHelper {
 			//this is the case with Felix and maybe other OSGI frameworks
 			//should make sure it is not a jar.
 			return new File(url.toURI()).getParentFile().getParentFile();
+		} else if (url.getProtocol().equals("jar")) {
+			//jar:file:/path/to/bundle.jar!/META-INF/MANIFEST.MF
+			String path = url.getPath();
+			int sep = path.indexOf("!/");
+			if (sep != -1 && path.startsWith("file:")) {
+				return new File(new URL(path.substring(0, sep)).toURI());
+			}
 		} else if (url.getProtocol().equals("bundleentry")) {
 			//say hello to equinox who has its own protocol.
 			//we use introspection like there is no tomorrow to get access to the File
 			URLConnection con = url.openConnection();
-			if (BUNDLE_ENTRY_FIELD == null) {
-				BUNDLE_ENTRY_FIELD = con.getClass().getDeclaredField("bundleEntry");
-				BUNDLE_ENTRY_FIELD.setAccessible(true);
-			}
 			Object bundleEntry = BUNDLE_ENTRY_FIELD.get(con);
-			if (FILE_FIELD == null) {
-				FILE_FIELD = bundleEntry.getClass().getDeclaredField("file");
-				FILE_FIELD.setAccessible(true);
+			if (bundleEntry.getClass().getName().endsWith("ZipBundleEntry")) {
+				//the bundle is a jar.
+				Object bundleFile = ZIP_BUNDLE_FILE_FIELD.get(bundleEntry);
+				return (File)BUNDLE_FILE_GET_BASE_FILE_METHOD.get(bundleFile);
 			}
 			File f = (File)FILE_FIELD.get(bundleEntry);
 			return f.getParentFile().getParentFile();
 		}
+		//for example felix's bundle:// urls when the bundle is a jar:
+		//fall back on the location of the bundle.
+		return getFileFromBundleLocation(bundle);
+	}
+	
+	/**
+	 * @param bundle
+	 * @return The file pointed by the bundle's location when it is a file url;
+	 * for example <code>reference:file:/path/to/bundle.jar</code>. null otherwise.
+	 */
+	private static File getFileFromBundleLocation(Bundle bundle) throws Exception {
+		String location = bundle.getLocation();
+		if (location == null) {
+			return null;
+		}
+		int at = location.indexOf('@');
+		if (location.startsWith("initial@")) {
+			location = location.substring(at + 1);
+		}
+		if (location.startsWith("reference:")) {
+			location = location.substring("reference:".length());
+		}
+		if (location.startsWith("file:")) {
+			File f = new File(new URL(location).getPath());
+			if (f.exists()) {
+				return f;
+			}
+		}
 		return null;
 	}
 	
@@ -110,7 +202,15 @@ public class FileLocatorHelper {
 	 * @return The jar(s) file that is either the bundle itself, either the jars embedded inside it.
 	 */
 	public static File[] locateJarsInsideBundle(Bundle bundle) throws Exception {
-		File jasperLocation = FileLocatorHelper.getBundleInstallLocation(bundle);
+		return locateJarsInsideBundle(FileLocatorHelper.getBundleInstallLocation(bundle));
+	}
+	
+	/**
+	 * @param jasperLocation The install location of the bundle.
+	 * @return The jar(s) file that is either the bundle itself, either the jars embedded inside it.
+	 * @see #locateJarsInsideBundle(Bundle)
+	 */
+	public static File[] locateJarsInsideBundle(File jasperLocation) {
 		if (jasperLocation.isDirectory()) {
 			//try to find the jar files inside this folder
 			ArrayList<File> urls = new ArrayList<File>();
@@ -118,7 +218,7 @@ public class FileLocatorHelper {
 				if (f.getName().endsWith(".jar") && f.isFile()) {
 					urls.add(f);
 				} else if (f.isDirectory() && f.getName().equals("lib")) {
-					for (File f2 : jasperLocation.listFiles()) {
+					for (File f2 : f.listFiles()) {
 						if (f2.getName().endsWith(".jar") && f2.isFile()) {
 							urls.add(f2);
 						}
@@ -0,0 +1,38 @@
+/******************************************************************************
+* Copyright (c) 2009, Intalio Inc.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Eclipse Public License v1.0
+* which accompanies this distribution, and is available at
+* http://www.eclipse.org/legal/epl-v10.html
+*
+* Contributors:
+*     Intalio Inc. - initial API and implementation
+*******************************************************************************/
+package org.intalio.osgi.jetty.server.utils;
+
+/**
+ * Reads the system properties that tune the server.
+ *
+ * @author hmalphettes
+ */
+public class SystemPropertiesHelper {
+
+	/**
+	 * @param name
+	 * @param defaultValue
+	 * @return The value of the system property; the default value when it is not set
+	 * or not a number.
+	 */
+	public static long getLongProperty(String name, long defaultValue) {
+		String prop = System.getProperty(name);
+		if (prop != null) {
+			try {
+				return Long.parseLong(prop.trim());
+			} catch (NumberFormatException nfe) {
+				System.err.println("Warn: invalid " + name + " '" + prop + "'");
+			}
+		}
+		return defaultValue;
+	}
+
+}